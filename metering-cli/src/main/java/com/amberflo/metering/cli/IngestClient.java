@@ -0,0 +1,102 @@
+package com.amberflo.metering.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Posts batches of meter records (a json array of the records, as written by the file sink of the metering-pipeline
+ * module) to the ingest api.
+ *
+ * A batch which failed with an IO error (including a timeout) or a 5xx/429 response is retried with an exponential
+ * backoff. As each record has its own 'uniqueId', a batch which was committed before the failure isn't counted twice.
+ */
+class IngestClient {
+    static final String DEFAULT_INGEST_URL = "https://app.amberflo.io/ingest";
+    private static final int TIMEOUT_MILLIS = 30_000;
+    private static final long INITIAL_BACKOFF_MILLIS = 200;
+    private static final long MAX_BACKOFF_MILLIS = 10_000;
+
+    private final URL ingestUrl;
+    private final String appKey;
+    private final int retries;
+
+    IngestClient(final String ingestUrl, final String appKey, final int retries) throws IOException {
+        this.ingestUrl = new URL(ingestUrl);
+        this.appKey = appKey;
+        this.retries = retries;
+    }
+
+    /**
+     * @param records a json array of meter records.
+     * @throws IOException if the batch was rejected, or still failed after all of the retries.
+     */
+    void post(final byte[] records) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            final String failure = tryPost(records);
+            if (failure == null) {
+                return;
+            }
+            if (attempt >= retries) {
+                throw new IOException("Failed to post a batch after " + (attempt + 1) + " attempts: " + failure);
+            }
+            Thread.sleep(Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << attempt));
+        }
+    }
+
+    /**
+     * @return null if the batch was accepted, or the reason of a retryable failure.
+     */
+    private String tryPost(final byte[] records) throws IOException {
+        final HttpURLConnection connection;
+        final int status;
+        try {
+            connection = (HttpURLConnection) ingestUrl.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(records.length);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("X-API-Key", appKey);
+            try (final OutputStream body = connection.getOutputStream()) {
+                body.write(records);
+            }
+            status = connection.getResponseCode();
+        } catch (final IOException e) {
+            return e.toString();
+        }
+
+        // Read the whole response, so the (keep-alive) connection can be reused.
+        final String response = readResponse(connection, status);
+        if (status / 100 == 2) {
+            return null;
+        }
+        if (status / 100 == 5 || status == 429) {
+            return "status " + status;
+        }
+        throw new IOException("The ingest api rejected a batch with status " + status + ": " + response);
+    }
+
+    private static String readResponse(final HttpURLConnection connection, final int status) {
+        try (final InputStream stream = status / 100 == 2 ? connection.getInputStream() :
+                connection.getErrorStream()) {
+            if (stream == null) {
+                return "";
+            }
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            return "";
+        }
+    }
+}
@@ -11,6 +11,7 @@ import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.concurrent.Callable;
 
@@ -28,7 +29,8 @@ import java.util.concurrent.Callable;
  * 2. https://www.baeldung.com/java-picocli-create-command-line-program
  */
 @Command(name = "meter", mixinStandardHelpOptions = true, version = "meter 1.0.0",
-        description = "Send a simple meter to Amberflo")
+        description = "Send a simple meter to Amberflo",
+        subcommands = {MetricsCommand.class, UploadCommand.class, ReplayCommand.class, UsageCommand.class})
 public class MeterCommand implements Callable<Integer> {
     public static final String CLI = "CLI";
     public static final Domain DOMAIN = Domain.Prod;
@@ -90,6 +92,7 @@ public class MeterCommand implements Callable<Integer> {
         int exitCode =
                 new CommandLine(new MeterCommand())
                         .registerConverter(LocalDateTime.class, new LocalDateTimeConverter())
+                        .registerConverter(Instant.class, new UtcTimeConverter())
                 .execute(args);
         System.exit(exitCode);
     }
@@ -0,0 +1,52 @@
+package com.amberflo.metering.cli;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Lists and opens NDJSON meter files (as written by the 'FileSinkClient' of the metering-pipeline module) - a meter
+ * record per line, optionally gzipped.
+ */
+final class MeterFiles {
+    static final String NDJSON_SUFFIX = ".ndjson";
+    static final String GZIP_SUFFIX = ".ndjson.gz";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private MeterFiles() {
+    }
+
+    /**
+     * @return the given file, or the NDJSON files of the given directory (sorted by name, which starts with the time
+     * the file was created). In progress ('.part') and broken ('.broken') files are skipped.
+     */
+    static List<Path> list(final Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return Collections.singletonList(path);
+        }
+
+        final List<Path> files = new ArrayList<>();
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+            for (final Path file : stream) {
+                final String name = file.getFileName().toString();
+                if (Files.isRegularFile(file) && (name.endsWith(NDJSON_SUFFIX) || name.endsWith(GZIP_SUFFIX))) {
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    static InputStream open(final Path file) throws IOException {
+        final InputStream stream = Files.newInputStream(file);
+        return file.getFileName().toString().endsWith(GZIP_SUFFIX) ? new GZIPInputStream(stream, BUFFER_SIZE) :
+                stream;
+    }
+}
@@ -0,0 +1,80 @@
+package com.amberflo.metering.cli;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import javax.management.Attribute;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Dumps the metrics of all of the meter pipelines of a running JVM, including the metrics of their priority lanes (as
+ * published over JMX by the metering-pipeline module).
+ *
+ * The JVM should be started with remote JMX enabled, for example:
+ * -Dcom.sun.management.jmxremote.port=9999 -Dcom.sun.management.jmxremote.authenticate=false
+ * -Dcom.sun.management.jmxremote.ssl=false
+ */
+@Command(name = "metrics", mixinStandardHelpOptions = true,
+        description = "Dump the metrics of the meter pipelines of a running JVM (over JMX)")
+class MetricsCommand implements Callable<Integer> {
+    static final String PIPELINE_MBEANS = "com.amberflo.metering:type=MeterPipeline,*";
+    static final String LANE_MBEANS = "com.amberflo.metering:type=MeterPipelineLane,pipeline=%s,*";
+
+    @Option(names = {"-j", "--jmx"}, required = true, description = "The JMX end-point of the JVM. Either " +
+            "'host:port' or a full 'service:jmx:...' url")
+    private String jmx;
+
+    @Override
+    public Integer call() throws Exception {
+        final JMXServiceURL url = jmx.startsWith("service:jmx:") ? new JMXServiceURL(jmx) :
+                new JMXServiceURL("service:jmx:rmi:///jndi/rmi://" + jmx + "/jmxrmi");
+
+        final List<Map<String, Object>> pipelines = new ArrayList<>();
+        try (final JMXConnector connector = JMXConnectorFactory.connect(url)) {
+            final MBeanServerConnection connection = connector.getMBeanServerConnection();
+            for (final ObjectName name : connection.queryNames(new ObjectName(PIPELINE_MBEANS), null)) {
+                final Map<String, Object> pipeline = readAttributes(connection, name);
+
+                final List<Map<String, Object>> lanes = new ArrayList<>();
+                final String lanesPattern = String.format(LANE_MBEANS, name.getKeyProperty("name"));
+                for (final ObjectName laneName : connection.queryNames(new ObjectName(lanesPattern), null)) {
+                    lanes.add(readAttributes(connection, laneName));
+                }
+                pipeline.put("Lanes", lanes);
+
+                pipelines.add(pipeline);
+            }
+        }
+
+        final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        System.out.println(gson.toJson(pipelines));
+        return 0;
+    }
+
+    private static Map<String, Object> readAttributes(final MBeanServerConnection connection,
+                                                      final ObjectName name) throws Exception {
+        final MBeanAttributeInfo[] infos = connection.getMBeanInfo(name).getAttributes();
+        final String[] names = new String[infos.length];
+        for (int i = 0; i < infos.length; i++) {
+            names[i] = infos[i].getName();
+        }
+
+        final Map<String, Object> attributes = new LinkedHashMap<>();
+        for (final Attribute attribute : connection.getAttributes(name, names).asList()) {
+            attributes.put(attribute.getName(), attribute.getValue());
+        }
+        return attributes;
+    }
+}
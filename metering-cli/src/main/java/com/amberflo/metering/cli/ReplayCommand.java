@@ -0,0 +1,316 @@
+package com.amberflo.metering.cli;
+
+import com.amberflo.metering.ingest.MeteringContext;
+import com.amberflo.metering.ingest.meter_message.Domain;
+import com.amberflo.metering.ingest.meter_message.MeterMessage;
+import com.amberflo.metering.ingest.meter_message.MeterMessageBuilder;
+import com.amberflo.metering.ingest.meter_message.Region;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Replays captured meters (NDJSON meter files, as written by the 'FileSinkClient' of the metering-pipeline module)
+ * through a metering context with the given batching settings, so you can benchmark these settings against the shape
+ * of your real traffic.
+ *
+ * The meters are sent according to their original inter-arrival times ('--speed 1'), N times faster ('--speed N'), or
+ * as fast as possible ('--speed max'). By default the meter times are shifted so the first meter is sent with the
+ * current time. The input is streamed, so the memory doesn't depend on the size of the capture. Lines which aren't a
+ * meter record (for example the partial last line of a file which was written when the process crashed) are skipped
+ * and counted, and a file is abandoned only if it can't be read.
+ *
+ * Once done, the command reports the throughput, the latency of the meter calls, how far behind the schedule the
+ * replay was (the replay can't keep up with the speed if the meter calls block), and the time it took to flush the
+ * remaining meters when the context was closed.
+ *
+ * Note that the metering client generates a new id for each meter, so the replayed meters are counted again - replay
+ * into a test account.
+ */
+@Command(name = "replay", mixinStandardHelpOptions = true,
+        description = "Replay captured meter files through a metering context, and report its throughput and latency")
+class ReplayCommand implements Callable<Integer> {
+    static final String MAX_SPEED = "max";
+    // The amount of skipped lines which are reported (each) per file.
+    private static final int MAX_REPORTED_LINES = 10;
+
+    @Option(names = {"-k", "--app_key"}, required = true, description = "appKey identifies your account with Amberflo")
+    private String appKey;
+
+    @Option(names = {"-f", "--file"}, required = true, description = "A meter file, or a directory of meter files")
+    private Path input;
+
+    @Option(names = {"-s", "--speed"}, description = "1 for the original timing, N for N times faster, or 'max' " +
+            "for as fast as possible (default: 1)")
+    private String speed = "1";
+
+    @Option(names = {"--domain"}, description = "The domain of the metering context (default: Prod)")
+    private Domain domain = MeterCommand.DOMAIN;
+
+    @Option(names = {"--region"}, description = "The region of the metering context (default: US_West)")
+    private Region region = MeterCommand.REGION;
+
+    @Option(names = {"--max_delay_in_sec"}, description = "The max delay of a batch of the metering context " +
+            "(default: 0.5)")
+    private double maxDelayInSec = 0.5;
+
+    @Option(names = {"--max_batch_size"}, description = "The max batch size of the metering context (default: 100)")
+    private int maxBatchSize = 100;
+
+    @Option(names = {"--original_time"}, description = "Send the meters with their original times")
+    private boolean originalTime = false;
+
+    private final LatencyHistogram callLatency = new LatencyHistogram();
+    private final LatencyHistogram scheduleLag = new LatencyHistogram();
+    private long skippedFiles;
+    private long skippedLines;
+    // The start of the replay, and the time of the first meter.
+    private long startNanos;
+    private long startMillis;
+    private long firstMeterTimeInMillis = Long.MIN_VALUE;
+    private long lastMeterTimeInMillis;
+
+    @Override
+    public Integer call() throws Exception {
+        final double speedFactor = MAX_SPEED.equalsIgnoreCase(speed) ? Double.POSITIVE_INFINITY :
+                Double.parseDouble(speed);
+        if (!(speedFactor > 0)) {
+            throw new IllegalArgumentException("The speed should be a positive number or 'max': " + speed);
+        }
+
+        final MeteringContext context = MeteringContext.createOrReplaceContext(appKey, MeterCommand.CLI, domain,
+                region, maxDelayInSec, maxBatchSize);
+        final long flushNanos;
+        try {
+            final Consumer<MeterMessage> metering = context.meteringInstance()::meter;
+            for (final Path file : MeterFiles.list(input)) {
+                replay(file, metering, speedFactor);
+            }
+        } finally {
+            final long closeStartNanos = System.nanoTime();
+            context.close();
+            flushNanos = System.nanoTime() - closeStartNanos;
+        }
+
+        report(speedFactor, flushNanos);
+        return 0;
+    }
+
+    private void replay(final Path file, final Consumer<MeterMessage> metering, final double speedFactor) {
+        long lineNumber = 0;
+        int fileSkippedLines = 0;
+        try (final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(MeterFiles.open(file), StandardCharsets.UTF_8), 64 * 1024)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+
+                final CapturedMeter meter;
+                try {
+                    meter = read(line);
+                } catch (final IOException | RuntimeException e) {
+                    skippedLines++;
+                    if (++fileSkippedLines <= MAX_REPORTED_LINES) {
+                        System.err.println("Skipping line " + lineNumber + " of " + file + ": " + e);
+                    }
+                    continue;
+                }
+                replay(meter, metering, speedFactor);
+            }
+        } catch (final IOException e) {
+            System.err.println("Skipping the rest of " + file + " (after line " + lineNumber + "): " + e);
+            skippedFiles++;
+        }
+        if (fileSkippedLines > MAX_REPORTED_LINES) {
+            System.err.println("Skipped " + fileSkippedLines + " lines of " + file);
+        }
+    }
+
+    /**
+     * @return the meter record of the given line.
+     * @throws IOException or a runtime exception if the line isn't a meter record.
+     */
+    private static CapturedMeter read(final String line) throws IOException {
+        final JsonReader reader = new JsonReader(new StringReader(line));
+        String meterName = null;
+        String customerId = null;
+        double meterValue = 1;
+        long meterTimeInMillis = 0;
+        final Map<String, String> dimensions = new HashMap<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "meterApiName":
+                    meterName = reader.nextString();
+                    break;
+                case "customerId":
+                    customerId = reader.nextString();
+                    break;
+                case "meterValue":
+                    meterValue = reader.nextDouble();
+                    break;
+                case "meterTimeInMillis":
+                    meterTimeInMillis = reader.nextLong();
+                    break;
+                case "dimensions":
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        dimensions.put(reader.nextName(), reader.nextString());
+                    }
+                    reader.endObject();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (reader.peek() != JsonToken.END_DOCUMENT) {
+            throw new IOException("Unexpected content after the meter record");
+        }
+        if (meterName == null || customerId == null) {
+            throw new IOException("The meter record has no meterApiName or customerId");
+        }
+        return new CapturedMeter(meterName, customerId, meterValue, meterTimeInMillis, dimensions);
+    }
+
+    private void replay(final CapturedMeter meter, final Consumer<MeterMessage> metering, final double speedFactor) {
+        final long meterTimeInMillis = meter.meterTimeInMillis;
+        final Map<String, String> dimensions = meter.dimensions;
+        waitForSchedule(meterTimeInMillis, speedFactor);
+
+        final long sentTimeInMillis = originalTime ? meterTimeInMillis :
+                meterTimeInMillis - firstMeterTimeInMillis + startMillis;
+        final MeterMessageBuilder builder = MeterMessageBuilder.createInstance(meter.meterName,
+                LocalDateTime.ofInstant(Instant.ofEpochMilli(sentTimeInMillis), ZoneId.systemDefault()),
+                meter.customerId)
+                .setMeterValue(meter.meterValue);
+
+        // The file sink writes these attributes as dimensions.
+        final String serviceName = dimensions.remove("serviceName");
+        if (serviceName != null) {
+            builder.setServiceName(serviceName);
+        }
+        final String serviceCall = dimensions.remove("serviceCall");
+        if (serviceCall != null) {
+            builder.setServiceCall(serviceCall);
+        }
+        if ("true".equals(dimensions.remove("error"))) {
+            builder.asError();
+        }
+        if (!dimensions.isEmpty()) {
+            builder.setDimensionsMap(dimensions);
+        }
+
+        final long callStartNanos = System.nanoTime();
+        metering.accept(builder.build());
+        callLatency.record(System.nanoTime() - callStartNanos);
+    }
+
+    /**
+     * Waits until the time the given meter should be sent at according to the speed, or records how late it is.
+     */
+    private void waitForSchedule(final long meterTimeInMillis, final double speedFactor) {
+        if (firstMeterTimeInMillis == Long.MIN_VALUE) {
+            firstMeterTimeInMillis = meterTimeInMillis;
+            startNanos = System.nanoTime();
+            startMillis = System.currentTimeMillis();
+        }
+        lastMeterTimeInMillis = Math.max(lastMeterTimeInMillis, meterTimeInMillis);
+        if (Double.isInfinite(speedFactor)) {
+            return;
+        }
+
+        final long scheduledNanos = startNanos +
+                (long) (TimeUnit.MILLISECONDS.toNanos(meterTimeInMillis - firstMeterTimeInMillis) / speedFactor);
+        long waitNanos = scheduledNanos - System.nanoTime();
+        if (waitNanos < 0) {
+            scheduleLag.record(-waitNanos);
+            return;
+        }
+        while (waitNanos > 0) {
+            LockSupport.parkNanos(waitNanos);
+            waitNanos = scheduledNanos - System.nanoTime();
+        }
+        scheduleLag.record(0);
+    }
+
+    private void report(final double speedFactor, final long flushNanos) {
+        final long meters = callLatency.getCount();
+        if (meters == 0) {
+            System.out.println("no meters were replayed");
+            return;
+        }
+
+        final double replaySec = (System.nanoTime() - startNanos - flushNanos) / 1e9;
+        final double capturedSec = (lastMeterTimeInMillis - firstMeterTimeInMillis) / 1000.0;
+        System.out.printf("replayed %d meters in %.1f sec (captured over %.1f sec, speed: %s)%n", meters, replaySec,
+                capturedSec, Double.isInfinite(speedFactor) ? MAX_SPEED : speed);
+        System.out.printf("throughput: %.0f meters/sec (%.0f meters/sec including the flush on close)%n",
+                meters / replaySec, meters / (replaySec + flushNanos / 1e9));
+        System.out.printf("meter call latency: p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us%n",
+                micros(callLatency.percentile(0.5)), micros(callLatency.percentile(0.99)),
+                micros(callLatency.percentile(0.999)), micros(callLatency.getMax()));
+        if (scheduleLag.getCount() > 0) {
+            System.out.printf("behind schedule: p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                    millis(scheduleLag.percentile(0.5)), millis(scheduleLag.percentile(0.99)),
+                    millis(scheduleLag.getMax()));
+        }
+        System.out.printf("flush on close: %.1f ms%n", millis(flushNanos));
+        if (skippedLines > 0) {
+            System.out.println("skipped " + skippedLines + " lines which aren't meter records (see the errors above)");
+        }
+        if (skippedFiles > 0) {
+            System.out.println("skipped the rest of " + skippedFiles + " files which couldn't be read (see the " +
+                    "errors above)");
+        }
+    }
+
+    private static double micros(final long nanos) {
+        return nanos / 1e3;
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * A meter record of a captured file.
+     */
+    private static final class CapturedMeter {
+        private final String meterName;
+        private final String customerId;
+        private final double meterValue;
+        private final long meterTimeInMillis;
+        private final Map<String, String> dimensions;
+
+        private CapturedMeter(final String meterName, final String customerId, final double meterValue,
+                              final long meterTimeInMillis, final Map<String, String> dimensions) {
+            this.meterName = meterName;
+            this.customerId = customerId;
+            this.meterValue = meterValue;
+            this.meterTimeInMillis = meterTimeInMillis;
+            this.dimensions = dimensions;
+        }
+    }
+}
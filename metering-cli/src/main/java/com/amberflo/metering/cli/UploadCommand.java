@@ -0,0 +1,183 @@
+package com.amberflo.metering.cli;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonParseException;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads a directory of NDJSON meter files (as written by the 'FileSinkClient' of the metering-pipeline module) to
+ * the ingest api.
+ *
+ * The files are read one after the other, and their batches are posted by a pool of 'parallelism' threads. A file
+ * whose batches were all accepted is renamed with an '.uploaded' suffix (or deleted), so the command can be run again
+ * after a failure, and only the files which weren't uploaded are sent again. Re-sending a batch doesn't double count,
+ * as each meter record has its own 'uniqueId'.
+ *
+ * In progress files ('.part') are skipped, and so are lines which aren't a json object (for example the last line of a
+ * file which was written when the process crashed).
+ */
+@Command(name = "upload", mixinStandardHelpOptions = true,
+        description = "Upload a directory of NDJSON meter files to Amberflo")
+class UploadCommand implements Callable<Integer> {
+    static final String UPLOADED_SUFFIX = ".uploaded";
+
+    @Option(names = {"-k", "--app_key"}, required = true, description = "appKey identifies your account with Amberflo")
+    private String appKey;
+
+    @Option(names = {"-d", "--directory"}, required = true, description = "The directory of the meter files")
+    private Path directory;
+
+    @Option(names = {"-p", "--parallelism"}, description = "The amount of concurrent requests (default: 16)")
+    private int parallelism = 16;
+
+    @Option(names = {"-b", "--batch_size"}, description = "The amount of meters per request (default: 500)")
+    private int batchSize = 500;
+
+    @Option(names = {"-r", "--retries"}, description = "The amount of retries of a failed request (default: 5)")
+    private int retries = 5;
+
+    @Option(names = {"--delete"}, description = "Delete the uploaded files (instead of renaming them)")
+    private boolean delete = false;
+
+    @Option(names = {"--ingest_url"}, description = "The ingest api end-point")
+    private String ingestUrl = IngestClient.DEFAULT_INGEST_URL;
+
+    private final AtomicLong uploadedFiles = new AtomicLong();
+    private final AtomicLong failedFiles = new AtomicLong();
+    private final AtomicLong uploadedMeters = new AtomicLong();
+    private final AtomicLong skippedLines = new AtomicLong();
+
+    @Override
+    public Integer call() throws Exception {
+        final IngestClient client = new IngestClient(ingestUrl, appKey, retries);
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        // Bounds the amount of batches which are held in memory.
+        final Semaphore pendingBatches = new Semaphore(parallelism * 2);
+        final long startMillis = System.currentTimeMillis();
+
+        final List<CompletableFuture<Void>> files = new ArrayList<>();
+        try {
+            for (final Path file : MeterFiles.list(directory)) {
+                files.add(upload(file, client, executor, pendingBatches));
+            }
+            CompletableFuture.allOf(files.toArray(new CompletableFuture[0])).handle((ignored, e) -> null).join();
+        } finally {
+            executor.shutdown();
+        }
+
+        System.out.printf("uploaded %d meters from %d files in %.1f sec (%d failed files, %d skipped lines)%n",
+                uploadedMeters.get(), uploadedFiles.get(), (System.currentTimeMillis() - startMillis) / 1000.0,
+                failedFiles.get(), skippedLines.get());
+        return failedFiles.get() == 0 ? 0 : 1;
+    }
+
+    /**
+     * Reads the given file, and submits its batches.
+     * @return a future which completes once all of the batches of the file were posted, and the file was renamed.
+     */
+    private CompletableFuture<Void> upload(final Path file, final IngestClient client, final ExecutorService executor,
+                                           final Semaphore pendingBatches) throws InterruptedException {
+        final List<CompletableFuture<Void>> batches = new ArrayList<>();
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(MeterFiles.open(file),
+                StandardCharsets.UTF_8))) {
+            final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            int batchMeters = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!isRecord(line)) {
+                    skippedLines.incrementAndGet();
+                    continue;
+                }
+
+                batch.write(batchMeters == 0 ? '[' : ',');
+                final byte[] record = line.getBytes(StandardCharsets.UTF_8);
+                batch.write(record, 0, record.length);
+                if (++batchMeters == batchSize) {
+                    batches.add(submit(batch, batchMeters, client, executor, pendingBatches));
+                    batch.reset();
+                    batchMeters = 0;
+                }
+            }
+            if (batchMeters > 0) {
+                batches.add(submit(batch, batchMeters, client, executor, pendingBatches));
+            }
+        } catch (final IOException e) {
+            System.err.println("Failed to read " + file + ": " + e);
+            batches.add(failed(e));
+        }
+
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture[0])).handle((ignored, e) -> {
+            if (e != null) {
+                System.err.println("Failed to upload " + file + ": " + e.getCause());
+                failedFiles.incrementAndGet();
+                return null;
+            }
+            try {
+                if (delete) {
+                    Files.delete(file);
+                } else {
+                    Files.move(file, file.resolveSibling(file.getFileName() + UPLOADED_SUFFIX),
+                            StandardCopyOption.ATOMIC_MOVE);
+                }
+                uploadedFiles.incrementAndGet();
+            } catch (final IOException renameError) {
+                System.err.println("Uploaded " + file + " but failed to mark it as uploaded: " + renameError);
+                failedFiles.incrementAndGet();
+            }
+            return null;
+        });
+    }
+
+    private CompletableFuture<Void> submit(final ByteArrayOutputStream batch, final int meters,
+                                           final IngestClient client, final ExecutorService executor,
+                                           final Semaphore pendingBatches) throws InterruptedException {
+        batch.write(']');
+        final byte[] records = batch.toByteArray();
+
+        pendingBatches.acquire();
+        return CompletableFuture.runAsync(() -> {
+            try {
+                client.post(records);
+                uploadedMeters.addAndGet(meters);
+            } catch (final IOException | InterruptedException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            } finally {
+                pendingBatches.release();
+            }
+        }, executor);
+    }
+
+    private static CompletableFuture<Void> failed(final Exception e) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    private static boolean isRecord(final String line) {
+        try {
+            final JsonElement element = JsonParser.parseString(line);
+            return element.isJsonObject();
+        } catch (final JsonParseException e) {
+            return false;
+        }
+    }
+}
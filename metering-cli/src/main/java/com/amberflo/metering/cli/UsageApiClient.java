@@ -0,0 +1,135 @@
+package com.amberflo.metering.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Posts usage queries (the json of the metering client's 'MeterAggregationMetadata') to the usage api, and hands the
+ * response body to the caller as a stream - so large responses don't have to be held in memory.
+ *
+ * A query which failed with an IO error (including a timeout) or a 5xx/429 response, before any of the response was
+ * read, is retried with an exponential backoff.
+ */
+class UsageApiClient {
+    static final String DEFAULT_USAGE_URL = "https://app.amberflo.io/usage";
+    private static final int CONNECT_TIMEOUT_MILLIS = 30_000;
+    // The usage api can take a while to aggregate a long range.
+    private static final int READ_TIMEOUT_MILLIS = 120_000;
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 10_000;
+
+    /**
+     * Reads the body of a successful response.
+     */
+    interface ResponseHandler {
+        void handle(InputStream body) throws IOException;
+    }
+
+    /**
+     * A query which failed with the given status (after all of the retries, for a retryable status).
+     */
+    static class UsageApiException extends IOException {
+        private final int status;
+
+        UsageApiException(final int status, final String message) {
+            super(message);
+            this.status = status;
+        }
+
+        int getStatus() {
+            return status;
+        }
+    }
+
+    private final URL usageUrl;
+    private final String appKey;
+    private final int retries;
+
+    UsageApiClient(final String usageUrl, final String appKey, final int retries) throws IOException {
+        this.usageUrl = new URL(usageUrl);
+        this.appKey = appKey;
+        this.retries = retries;
+    }
+
+    /**
+     * @param query the json of the query.
+     * @throws UsageApiException if the query was rejected, or still failed after all of the retries.
+     * @throws IOException if the response failed while it was read by the handler (the query isn't retried, as the
+     * handler already consumed part of the response).
+     */
+    void query(final byte[] query, final ResponseHandler handler) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            final HttpURLConnection connection = (HttpURLConnection) usageUrl.openConnection();
+            final int status;
+            try {
+                connection.setRequestMethod("POST");
+                connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+                connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(query.length);
+                connection.setRequestProperty("Content-Type", "application/json");
+                connection.setRequestProperty("Accept-Encoding", "gzip");
+                connection.setRequestProperty("X-API-Key", appKey);
+                try (final OutputStream body = connection.getOutputStream()) {
+                    body.write(query);
+                }
+                status = connection.getResponseCode();
+            } catch (final IOException e) {
+                if (attempt >= retries) {
+                    throw new IOException("The usage query failed after " + (attempt + 1) + " attempts: " + e, e);
+                }
+                backoff(attempt);
+                continue;
+            }
+
+            if (status / 100 == 2) {
+                try (final InputStream body = body(connection, connection.getInputStream())) {
+                    handler.handle(body);
+                }
+                return;
+            }
+
+            final String error = readError(connection);
+            if ((status / 100 == 5 || status == 429) && attempt < retries) {
+                backoff(attempt);
+                continue;
+            }
+            throw new UsageApiException(status, "The usage api failed the query with status " + status + ": " + error);
+        }
+    }
+
+    private static void backoff(final int attempt) throws InterruptedException {
+        Thread.sleep(Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << attempt));
+    }
+
+    private static InputStream body(final HttpURLConnection connection, final InputStream stream)
+            throws IOException {
+        return "gzip".equalsIgnoreCase(connection.getContentEncoding()) ? new GZIPInputStream(stream, 64 * 1024) :
+                stream;
+    }
+
+    private static String readError(final HttpURLConnection connection) {
+        try (final InputStream stream = connection.getErrorStream()) {
+            if (stream == null) {
+                return "";
+            }
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            try (final InputStream body = body(connection, stream)) {
+                int read;
+                while ((read = body.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                }
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.amberflo.metering.cli;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+
+import java.util.concurrent.Callable;
+
+/**
+ * The parent of the usage api sub-commands (see {@link UsageExportCommand}).
+ */
+@Command(name = "usage", mixinStandardHelpOptions = true, description = "Query the usage api",
+        subcommands = {UsageExportCommand.class})
+class UsageCommand implements Callable<Integer> {
+    @Override
+    public Integer call() {
+        // A sub-command is required.
+        CommandLine.usage(this, System.err);
+        return 2;
+    }
+}
@@ -0,0 +1,347 @@
+package com.amberflo.metering.cli;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports the results of a usage query to a csv or NDJSON file - a row per group
+ * (for example per customer with '--group_by customerId') and time interval.
+ *
+ * Long ranges are split into chunks of '--chunk_size' intervals (a query per chunk), as the usage api limits the size
+ * of its responses. A chunk which fails with a 413 or a 5xx response is split in half and queried again. The responses
+ * are parsed token by token and written as they are read (see {@link UsageResponseReader}), so the memory doesn't
+ * depend on the size of the responses.
+ *
+ * If a chunk fails, the rows of the chunks before it are kept (the rows the failed chunk already wrote to an
+ * uncompressed output file are removed), and the command prints the '--start_time' to resume from - with '--append'
+ * the rest of the export is added to the same file.
+ *
+ * Note that a '--take' limit applies to each chunk on its own.
+ *
+ * The query is the json of the 'MeterAggregationMetadata' of the metering client's usage api, built here - the usage
+ * models aren't part of the client version the CLI depends on.
+ */
+@Command(name = "export", mixinStandardHelpOptions = true,
+        description = "Export the results of a usage query to a csv or NDJSON file")
+class UsageExportCommand implements Callable<Integer> {
+    enum Format { csv, ndjson }
+
+    enum Aggregation { SUM, MIN, MAX }
+
+    enum Interval { HOUR, DAY, WEEK, MONTH }
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    @Option(names = {"-k", "--app_key"}, required = true, description = "appKey identifies your account with Amberflo")
+    private String appKey;
+
+    @Option(names = {"-m", "--meter_name"}, required = true, description = "The meter api name")
+    private String meterApiName;
+
+    @Option(names = {"-a", "--aggregation"}, description = "SUM, MIN or MAX (default: SUM)")
+    private Aggregation aggregation = Aggregation.SUM;
+
+    @Option(names = {"-i", "--interval"}, description = "HOUR, DAY, WEEK or MONTH (default: DAY)")
+    private Interval interval = Interval.DAY;
+
+    @Option(names = {"-s", "--start_time"}, required = true, description = "The UTC start time - a date " +
+            "(2021-04-01), a date-time (2021-04-01T10:00:00) or epoch seconds")
+    private Instant startTime;
+
+    @Option(names = {"-e", "--end_time"}, description = "The UTC end time (exclusive, default: now)")
+    private Instant endTime;
+
+    @Option(names = {"-g", "--group_by"}, description = "A field to group by, for example 'customerId' (can be " +
+            "repeated)")
+    private List<String> groupBy = new ArrayList<>();
+
+    @Option(names = {"--filter"}, description = "A filter of the form 'field=value1,value2' (can be repeated)")
+    private List<String> filters = new ArrayList<>();
+
+    @Option(names = {"--take"}, description = "Only the top N groups (of each chunk)")
+    private Long take;
+
+    @Option(names = {"--ascending"}, description = "Take the bottom groups instead of the top ones")
+    private boolean ascending = false;
+
+    @Option(names = {"-f", "--format"}, description = "csv or ndjson (default: csv)")
+    private Format format = Format.csv;
+
+    @Option(names = {"-o", "--output"}, description = "The output file (default: stdout). Gzipped if its name " +
+            "ends with '.gz'")
+    private Path output;
+
+    @Option(names = {"--append"}, description = "Append to the output file instead of replacing it (without a csv " +
+            "header if the file isn't empty), for example to resume a failed export")
+    private boolean append = false;
+
+    @Option(names = {"--chunk_size"}, description = "The amount of intervals per query (default: 168 hours, " +
+            "31 days, 13 weeks or 12 months)")
+    private Integer chunkSize;
+
+    @Option(names = {"-r", "--retries"}, description = "The amount of retries of a failed query (default: 5)")
+    private int retries = 5;
+
+    @Option(names = {"--usage_url"}, description = "The usage api end-point")
+    private String usageUrl = UsageApiClient.DEFAULT_USAGE_URL;
+
+    private UsageApiClient client;
+    private Map<String, List<String>> filter;
+    private UsageRowWriter rowWriter;
+    private long rows;
+    private long queries;
+    // The rows of the completed chunks, and the size of an uncompressed output file once they were written (-1 if
+    // unknown).
+    private long completedRows;
+    private long completedBytes = -1;
+
+    @Override
+    public Integer call() throws Exception {
+        final long start = truncate(startTime.getEpochSecond(), interval);
+        final long end = (endTime != null ? endTime : Instant.now()).getEpochSecond();
+        final int intervalsPerChunk = chunkSize != null ? chunkSize : defaultChunkSize(interval);
+        if (end <= start || intervalsPerChunk <= 0) {
+            System.err.println("Invalid range: start_time=" + startTime + ", end_time=" + endTime +
+                    ", chunk_size=" + intervalsPerChunk);
+            return 2;
+        }
+
+        try {
+            filter = parseFilters(filters);
+        } catch (final IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 2;
+        }
+
+        client = new UsageApiClient(usageUrl, appKey, retries);
+        final long startMillis = System.currentTimeMillis();
+
+        long chunkStart = start;
+        final boolean header = !append || output == null || !Files.exists(output) || Files.size(output) == 0;
+        try (final Writer writer = openOutput()) {
+            rowWriter = format == Format.csv ? UsageRowWriter.csv(writer, groupBy, header) :
+                    UsageRowWriter.ndjson(writer);
+            writer.flush();
+            completedBytes = isPlainFile() ? Files.size(output) : -1;
+            while (chunkStart < end) {
+                long chunkEnd = chunkStart;
+                int intervals = 0;
+                while (chunkEnd < end && intervals < intervalsPerChunk) {
+                    chunkEnd = next(chunkEnd, interval);
+                    intervals++;
+                }
+                chunkEnd = Math.min(chunkEnd, end);
+
+                export(chunkStart, chunkEnd, intervals);
+                writer.flush();
+                completedRows = rows;
+                completedBytes = isPlainFile() ? Files.size(output) : -1;
+                chunkStart = chunkEnd;
+            }
+        } catch (final IOException e) {
+            System.err.println("Failed to export the chunk which starts at " + Instant.ofEpochSecond(chunkStart) +
+                    ": " + e.getMessage());
+            if (completedBytes >= 0 && removeIncompleteChunk()) {
+                System.err.println("Exported " + completedRows + " rows. Resume with --start_time " + chunkStart +
+                        " --append -o " + output);
+            } else {
+                System.err.println("Exported " + rows + " rows (the rows of this chunk might be partly written). " +
+                        "Resume with --start_time " + chunkStart + " to a new output file");
+            }
+            return 1;
+        }
+
+        System.err.printf("exported %d rows with %d queries in %.1f sec%n", rows, queries,
+                (System.currentTimeMillis() - startMillis) / 1000.0);
+        return 0;
+    }
+
+    /**
+     * Queries a chunk, and splits it in half if the usage api failed with a 413 or a 5xx (most likely as the
+     * response was too large).
+     */
+    private void export(final long chunkStart, final long chunkEnd, final int intervals)
+            throws IOException, InterruptedException {
+        final byte[] query = query(chunkStart, chunkEnd).toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            queries++;
+            client.query(query, body -> {
+                final JsonReader reader = new JsonReader(new BufferedReader(
+                        new InputStreamReader(body, StandardCharsets.UTF_8), OUTPUT_BUFFER_SIZE));
+                rows += new UsageResponseReader(meterApiName, chunkStart, chunkEnd, rowWriter).read(reader);
+            });
+        } catch (final UsageApiClient.UsageApiException e) {
+            if (intervals <= 1 || (e.getStatus() != 413 && e.getStatus() / 100 != 5)) {
+                throw e;
+            }
+
+            final int firstHalf = intervals / 2;
+            long middle = chunkStart;
+            for (int i = 0; i < firstHalf; i++) {
+                middle = next(middle, interval);
+            }
+            System.err.println("Splitting the chunk which starts at " + Instant.ofEpochSecond(chunkStart) +
+                    " (status " + e.getStatus() + ")");
+            export(chunkStart, middle, firstHalf);
+            export(middle, chunkEnd, intervals - firstHalf);
+        }
+    }
+
+    private JsonObject query(final long chunkStart, final long chunkEnd) {
+        final JsonObject timeRange = new JsonObject();
+        timeRange.addProperty("startTimeInSeconds", chunkStart);
+        timeRange.addProperty("endTimeInSeconds", chunkEnd);
+
+        final JsonObject query = new JsonObject();
+        query.addProperty("meterApiName", meterApiName);
+        query.addProperty("aggregation", aggregation.name());
+        query.addProperty("timeGroupingInterval", interval.name());
+        query.add("timeRange", timeRange);
+        if (!groupBy.isEmpty()) {
+            query.add("groupBy", toJsonArray(groupBy));
+        }
+        if (!filter.isEmpty()) {
+            final JsonObject filterObject = new JsonObject();
+            for (final Map.Entry<String, List<String>> entry : filter.entrySet()) {
+                filterObject.add(entry.getKey(), toJsonArray(entry.getValue()));
+            }
+            query.add("filter", filterObject);
+        }
+        if (take != null) {
+            final JsonObject takeObject = new JsonObject();
+            takeObject.addProperty("limit", take);
+            takeObject.addProperty("isAscending", ascending);
+            query.add("take", takeObject);
+        }
+        return query;
+    }
+
+    private static JsonArray toJsonArray(final List<String> values) {
+        final JsonArray array = new JsonArray();
+        for (final String value : values) {
+            array.add(value);
+        }
+        return array;
+    }
+
+    /**
+     * Truncates the output file to the rows of the completed chunks.
+     * @return false if it failed.
+     */
+    private boolean removeIncompleteChunk() {
+        try (final FileChannel channel = FileChannel.open(output, StandardOpenOption.WRITE)) {
+            channel.truncate(completedBytes);
+            return true;
+        } catch (final IOException e) {
+            System.err.println("Failed to remove the rows of the failed chunk from " + output + ": " + e);
+            return false;
+        }
+    }
+
+    private boolean isPlainFile() {
+        return output != null && !output.getFileName().toString().endsWith(".gz");
+    }
+
+    private Writer openOutput() throws IOException {
+        // An appended gzip stream is a new member of the file, which gzip readers read as a continuation.
+        OutputStream stream = output == null ? System.out : Files.newOutputStream(output, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        if (output != null && output.getFileName().toString().endsWith(".gz")) {
+            stream = new GZIPOutputStream(stream, OUTPUT_BUFFER_SIZE);
+        }
+        return new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), OUTPUT_BUFFER_SIZE);
+    }
+
+    private static Map<String, List<String>> parseFilters(final List<String> filters) {
+        final Map<String, List<String>> filter = new LinkedHashMap<>();
+        for (final String entry : filters) {
+            final int separator = entry.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid filter '" + entry + "' (expected field=value1,value2)");
+            }
+            filter.put(entry.substring(0, separator), Arrays.asList(entry.substring(separator + 1).split(",")));
+        }
+        return filter;
+    }
+
+    static int defaultChunkSize(final Interval interval) {
+        switch (interval) {
+            case HOUR:
+                return 168;
+            case DAY:
+                return 31;
+            case WEEK:
+                return 13;
+            case MONTH:
+                return 12;
+            default:
+                throw new IllegalArgumentException("Unsupported interval: " + interval);
+        }
+    }
+
+    /**
+     * @return the start of the interval (in UTC) the given time is in - the usage api extends the time range in the
+     * same way.
+     */
+    static long truncate(final long epochSeconds, final Interval interval) {
+        final ZonedDateTime time = Instant.ofEpochSecond(epochSeconds).atZone(ZoneOffset.UTC);
+        switch (interval) {
+            case HOUR:
+                return time.truncatedTo(ChronoUnit.HOURS).toEpochSecond();
+            case DAY:
+                return time.truncatedTo(ChronoUnit.DAYS).toEpochSecond();
+            case WEEK:
+                return time.truncatedTo(ChronoUnit.DAYS)
+                        .with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)).toEpochSecond();
+            case MONTH:
+                return time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1).toEpochSecond();
+            default:
+                throw new IllegalArgumentException("Unsupported interval: " + interval);
+        }
+    }
+
+    private static long next(final long intervalStart, final Interval interval) {
+        final ZonedDateTime time = Instant.ofEpochSecond(intervalStart).atZone(ZoneOffset.UTC);
+        switch (interval) {
+            case HOUR:
+                return time.plusHours(1).toEpochSecond();
+            case DAY:
+                return time.plusDays(1).toEpochSecond();
+            case WEEK:
+                return time.plusWeeks(1).toEpochSecond();
+            case MONTH:
+                return time.plusMonths(1).toEpochSecond();
+            default:
+                throw new IllegalArgumentException("Unsupported interval: " + interval);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.amberflo.metering.cli;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads a usage api response (a 'DetailedMeterAggregation') token by token, and writes a row for each time interval
+ * value of each group - without building the response tree. Only the values of the current group are held in memory
+ * (as the group info might come after them).
+ *
+ * The response looks like:
+ * {"metadata": {...}, "clientMeters": [{"groupInfo": {"groupBy": {"customerId": "..."}}, "groupValue": 12,
+ * "values": [{"secondsSinceEpochUtc": 1617235200, "value": 5}, ...]}, ...], ...}
+ */
+class UsageResponseReader {
+    private final String meterApiName;
+    private final long startTimeInSeconds;
+    private final long endTimeInSeconds;
+    private final UsageRowWriter writer;
+    // The values of the current group.
+    private long[] times = new long[64];
+    private double[] values = new double[64];
+    private int size;
+    private long rows;
+
+    /**
+     * Only the values of intervals which start in [startTimeInSeconds, endTimeInSeconds) are written, so the edge
+     * intervals of adjacent chunks aren't written twice.
+     */
+    UsageResponseReader(final String meterApiName, final long startTimeInSeconds, final long endTimeInSeconds,
+                        final UsageRowWriter writer) {
+        this.meterApiName = meterApiName;
+        this.startTimeInSeconds = startTimeInSeconds;
+        this.endTimeInSeconds = endTimeInSeconds;
+        this.writer = writer;
+    }
+
+    /**
+     * @return the amount of rows which were written.
+     */
+    long read(final JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+            // A batch of aggregations.
+            reader.beginArray();
+            while (reader.hasNext()) {
+                readAggregation(reader);
+            }
+            reader.endArray();
+        } else {
+            readAggregation(reader);
+        }
+        return rows;
+    }
+
+    private void readAggregation(final JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("clientMeters".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    readGroup(reader);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readGroup(final JsonReader reader) throws IOException {
+        Map<String, String> groupBy = Collections.emptyMap();
+        size = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if ("groupInfo".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                groupBy = readGroupInfo(reader);
+            } else if ("values".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    readValue(reader);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        for (int i = 0; i < size; i++) {
+            if (times[i] >= startTimeInSeconds && times[i] < endTimeInSeconds) {
+                writer.write(meterApiName, times[i], groupBy, values[i]);
+                rows++;
+            }
+        }
+    }
+
+    private static Map<String, String> readGroupInfo(final JsonReader reader) throws IOException {
+        final Map<String, String> groupBy = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("groupBy".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    final String field = reader.nextName();
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.nextNull();
+                    } else {
+                        groupBy.put(field, reader.nextString());
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return groupBy;
+    }
+
+    private void readValue(final JsonReader reader) throws IOException {
+        long time = Long.MIN_VALUE;
+        double value = Double.NaN;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if ("secondsSinceEpochUtc".equals(name) && reader.peek() == JsonToken.NUMBER) {
+                time = reader.nextLong();
+            } else if ("value".equals(name) && reader.peek() == JsonToken.NUMBER) {
+                value = reader.nextDouble();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (time == Long.MIN_VALUE || Double.isNaN(value)) {
+            return;
+        }
+        if (size == times.length) {
+            times = Arrays.copyOf(times, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        times[size] = time;
+        values[size] = value;
+        size++;
+    }
+}
@@ -0,0 +1,104 @@
+package com.amberflo.metering.cli;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the rows of a usage export - a row per group and time interval.
+ */
+interface UsageRowWriter {
+    String METER_API_NAME_COLUMN = "meterApiName";
+    String TIME_COLUMN = "time";
+    String SECONDS_SINCE_EPOCH_COLUMN = "secondsSinceEpochUtc";
+    String VALUE_COLUMN = "value";
+
+    /**
+     * @param groupBy the values of the 'groupBy' fields of the row's group.
+     */
+    void write(String meterApiName, long secondsSinceEpochUtc, Map<String, String> groupBy, double value)
+            throws IOException;
+
+    /**
+     * A csv with a column per 'groupBy' field.
+     * @param header whether to write the header line (not when appending to an existing export).
+     */
+    static UsageRowWriter csv(final Writer writer, final List<String> groupBy, final boolean header)
+            throws IOException {
+        if (header) {
+            writer.write(METER_API_NAME_COLUMN + "," + TIME_COLUMN + "," + SECONDS_SINCE_EPOCH_COLUMN);
+            for (final String field : groupBy) {
+                writer.write(',');
+                writer.write(csvValue(field));
+            }
+            writer.write("," + VALUE_COLUMN + "\n");
+        }
+
+        return (meterApiName, secondsSinceEpochUtc, groupValues, value) -> {
+            writer.write(csvValue(meterApiName));
+            writer.write(',');
+            writer.write(Instant.ofEpochSecond(secondsSinceEpochUtc).toString());
+            writer.write(',');
+            writer.write(Long.toString(secondsSinceEpochUtc));
+            for (final String field : groupBy) {
+                writer.write(',');
+                final String groupValue = groupValues.get(field);
+                if (groupValue != null) {
+                    writer.write(csvValue(groupValue));
+                }
+            }
+            writer.write(',');
+            writer.write(number(value));
+            writer.write('\n');
+        };
+    }
+
+    /**
+     * A json object per line, with the 'groupBy' fields as top level fields.
+     */
+    static UsageRowWriter ndjson(final Writer writer) {
+        final JsonWriter json = new JsonWriter(writer);
+        // Allows multiple top level values.
+        json.setLenient(true);
+
+        return (meterApiName, secondsSinceEpochUtc, groupValues, value) -> {
+            json.beginObject();
+            json.name(METER_API_NAME_COLUMN).value(meterApiName);
+            json.name(TIME_COLUMN).value(Instant.ofEpochSecond(secondsSinceEpochUtc).toString());
+            json.name(SECONDS_SINCE_EPOCH_COLUMN).value(secondsSinceEpochUtc);
+            for (final Map.Entry<String, String> entry : groupValues.entrySet()) {
+                json.name(entry.getKey()).value(entry.getValue());
+            }
+            json.name(VALUE_COLUMN).value(value);
+            json.endObject();
+            json.flush();
+            writer.write('\n');
+        };
+    }
+
+    static String csvValue(final String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 &&
+                value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * @return the value without an exponent (and without a fraction for whole numbers).
+     */
+    static String number(final double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return Double.toString(value);
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return BigDecimal.valueOf(value).toPlainString();
+    }
+}
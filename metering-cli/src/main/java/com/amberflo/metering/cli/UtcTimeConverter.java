@@ -0,0 +1,33 @@
+package com.amberflo.metering.cli;
+
+import picocli.CommandLine;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Converts a UTC date ('2021-04-01'), date-time ('2021-04-01T10:00:00' or '2021-04-01T10:00:00Z') or the time since
+ * epoch in seconds to an {@link Instant}.
+ */
+class UtcTimeConverter implements CommandLine.ITypeConverter<Instant> {
+    public Instant convert(final String value) {
+        try {
+            if (value.chars().allMatch(Character::isDigit)) {
+                return Instant.ofEpochSecond(Long.parseLong(value));
+            }
+            if (value.length() == 10) {
+                return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant();
+            }
+            if (value.endsWith("Z")) {
+                return Instant.parse(value);
+            }
+            return LocalDateTime.parse(value).toInstant(ZoneOffset.UTC);
+        } catch (final DateTimeParseException | NumberFormatException e) {
+            throw new CommandLine.TypeConversionException("'" + value + "' isn't a UTC date, date-time or epoch " +
+                    "seconds");
+        }
+    }
+}
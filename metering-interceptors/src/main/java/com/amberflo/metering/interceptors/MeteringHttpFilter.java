@@ -0,0 +1,56 @@
+package com.amberflo.metering.interceptors;
+
+import com.amberflo.metering.ingest.meter_message.ThreadContext;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+
+/**
+ * A {@link com.sun.net.httpserver.HttpServer} filter which meters every request (see {@link RequestMetering}).
+ *
+ * The customer id of the request is also set on the {@link ThreadContext} while the request is handled, so meters
+ * recorded by the handler itself don't need to provide it.
+ *
+ * <pre>
+ *     final HttpContext context = server.createContext("/orders", ordersHandler);
+ *     context.getFilters().add(new MeteringHttpFilter(new RequestMetering(serviceCallMetering)));
+ * </pre>
+ */
+public class MeteringHttpFilter extends Filter {
+    private final RequestMetering requestMetering;
+
+    public MeteringHttpFilter(final RequestMetering requestMetering) {
+        this.requestMetering = requestMetering;
+    }
+
+    @Override
+    public void doFilter(final HttpExchange exchange, final Chain chain) throws IOException {
+        final String customerId = exchange.getRequestHeaders().getFirst(requestMetering.getCustomerIdHeader());
+        if (customerId == null || customerId.isEmpty()) {
+            chain.doFilter(exchange);
+            return;
+        }
+
+        final CountingOutputStream responseBody = new CountingOutputStream(exchange.getResponseBody());
+        exchange.setStreams(null, responseBody);
+
+        final long startTime = System.nanoTime();
+        Throwable error = null;
+        try (final ThreadContext context = new ThreadContext()) {
+            context.setCustomerInfo(customerId);
+            chain.doFilter(exchange);
+        } catch (final IOException | RuntimeException | Error e) {
+            error = e;
+            throw e;
+        } finally {
+            requestMetering.record(customerId, exchange.getRequestMethod(), exchange.getHttpContext().getPath(),
+                    startTime, error, exchange.getResponseCode(), responseBody.getCount());
+        }
+    }
+
+    @Override
+    public String description() {
+        return "Meters the requests with the Amberflo metering client";
+    }
+}
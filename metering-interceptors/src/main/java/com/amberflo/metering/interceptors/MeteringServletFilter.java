@@ -0,0 +1,177 @@
+package com.amberflo.metering.interceptors;
+
+import com.amberflo.metering.ingest.meter_message.ThreadContext;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletMapping;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.function.Function;
+
+/**
+ * A servlet filter which meters every http request (see {@link RequestMetering}).
+ *
+ * The customer id of the request is also set on the {@link ThreadContext} while the request is handled, so meters
+ * recorded by the servlet itself don't need to provide it.
+ *
+ * As the filter needs a {@link RequestMetering}, register it programmatically (or through your DI framework):
+ * <pre>
+ *     servletContext.addFilter("metering", new MeteringServletFilter(requestMetering)).addMappingForUrlPatterns(...);
+ * </pre>
+ * The customer id header can be overridden with a 'customerIdHeader' filter init-param.
+ *
+ * Async requests are metered once they complete, so the filter must be registered as async supported for servlets
+ * which start async processing. Response bytes are counted when they are written through the response the filter
+ * passed down the chain (for example when async processing is started with {@code startAsync(request, response)}).
+ *
+ * The path of the service call is the route of the request (see {@link #defaultRoute(HttpServletRequest)}) - never the
+ * request path itself, which might contain ids. A framework which knows the route template of the request (for example
+ * '/orders/{id}') can set it as the {@link #ROUTE_ATTRIBUTE} request attribute, or pass its own route resolver.
+ */
+public class MeteringServletFilter implements Filter {
+    public static final String CUSTOMER_ID_HEADER_PARAM = "customerIdHeader";
+    /**
+     * A request attribute with the (low cardinality) route of the request, set while the request is handled.
+     */
+    public static final String ROUTE_ATTRIBUTE = "com.amberflo.metering.route";
+    /**
+     * The route of requests whose servlet mapping has no pattern (the context root, or an unknown mapping).
+     */
+    public static final String DEFAULT_ROUTE = "/";
+
+    private final RequestMetering requestMetering;
+    private final Function<HttpServletRequest, String> routeResolver;
+    private String customerIdHeader;
+
+    public MeteringServletFilter(final RequestMetering requestMetering) {
+        this(requestMetering, MeteringServletFilter::defaultRoute);
+    }
+
+    /**
+     * @param routeResolver returns the route of a request once it was handled (null for the {@link #DEFAULT_ROUTE}).
+     * It must return a low cardinality value, as each route is metered as a service call of its own.
+     */
+    public MeteringServletFilter(final RequestMetering requestMetering,
+                                 final Function<HttpServletRequest, String> routeResolver) {
+        this.requestMetering = requestMetering;
+        this.routeResolver = routeResolver;
+        this.customerIdHeader = requestMetering.getCustomerIdHeader();
+    }
+
+    /**
+     * @return the {@link #ROUTE_ATTRIBUTE} of the request if it was set, and otherwise the url pattern of the servlet
+     * mapping which matched the request (for example '/orders', '/api/*' or '*.do', and '/' for a front-controller
+     * servlet such as Spring's DispatcherServlet).
+     */
+    public static String defaultRoute(final HttpServletRequest request) {
+        final Object route = request.getAttribute(ROUTE_ATTRIBUTE);
+        if (route != null) {
+            return route.toString();
+        }
+        final HttpServletMapping mapping = request.getHttpServletMapping();
+        return mapping == null ? null : mapping.getPattern();
+    }
+
+    @Override
+    public void init(final FilterConfig filterConfig) {
+        final String header = filterConfig.getInitParameter(CUSTOMER_ID_HEADER_PARAM);
+        if (header != null && !header.isEmpty()) {
+            customerIdHeader = header;
+        }
+    }
+
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain)
+            throws IOException, ServletException {
+        if (!(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final HttpServletRequest httpRequest = (HttpServletRequest) request;
+        final String customerId = httpRequest.getHeader(customerIdHeader);
+        if (customerId == null || customerId.isEmpty()) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final CountingResponseWrapper httpResponse = new CountingResponseWrapper((HttpServletResponse) response);
+        final long startTime = System.nanoTime();
+        Throwable error = null;
+        try (final ThreadContext context = new ThreadContext()) {
+            context.setCustomerInfo(customerId);
+            chain.doFilter(request, httpResponse);
+        } catch (final IOException | ServletException | RuntimeException | Error e) {
+            error = e;
+            throw e;
+        } finally {
+            if (error == null && httpRequest.isAsyncStarted()) {
+                // The status and the body of an async request are only final once it completes.
+                httpRequest.getAsyncContext().addListener(
+                        new MeteringAsyncListener(customerId, httpRequest, httpResponse, startTime));
+            } else {
+                record(customerId, httpRequest, httpResponse, startTime, error);
+            }
+        }
+    }
+
+    private void record(final String customerId, final HttpServletRequest request,
+                        final CountingResponseWrapper response, final long startTime, final Throwable error) {
+        requestMetering.record(customerId, request.getMethod(), route(request), startTime, error,
+                response.getStatus(), response.getCount());
+    }
+
+    private String route(final HttpServletRequest request) {
+        final String route = routeResolver.apply(request);
+        return route == null || route.isEmpty() ? DEFAULT_ROUTE : route;
+    }
+
+    /**
+     * Records the meter of an async request once it completes (after an error or a timeout as well, as the container
+     * completes the request then).
+     */
+    private final class MeteringAsyncListener implements AsyncListener {
+        private final String customerId;
+        private final HttpServletRequest request;
+        private final CountingResponseWrapper response;
+        private final long startTime;
+        private volatile Throwable error;
+
+        private MeteringAsyncListener(final String customerId, final HttpServletRequest request,
+                                      final CountingResponseWrapper response, final long startTime) {
+            this.customerId = customerId;
+            this.request = request;
+            this.response = response;
+            this.startTime = startTime;
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) {
+            record(customerId, request, response, startTime, error);
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) {
+            error = event.getThrowable();
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) {
+            // The container completes the request after the timeout, which records it.
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) {
+            // The request was dispatched and started async again - keep listening for its completion.
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
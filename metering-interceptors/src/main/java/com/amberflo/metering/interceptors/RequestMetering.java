@@ -0,0 +1,57 @@
+package com.amberflo.metering.interceptors;
+
+import com.amberflo.metering.pipeline.ServiceCallMetering;
+
+/**
+ * The shared logic of the metering interceptors.
+ *
+ * For each request with a customer id header, the interceptors meter (through a {@link ServiceCallMetering}):
+ * 1. A 'Call' meter - marked as an error if the handler threw an exception or returned a 5xx status.
+ * 2. A 'Call.processingTime' meter - the time it took to handle the request in millis.
+ * 3. A 'Call.dataUsage' meter - the size of the response body in Mb (if there was a body).
+ *
+ * The service call is the request method and the (low cardinality) path the handler is mapped to, for example
+ * 'GET /orders'. Requests without a customer id header aren't metered.
+ */
+public class RequestMetering {
+    public static final String DEFAULT_CUSTOMER_ID_HEADER = "X-Customer-Id";
+
+    private static final double BYTES_IN_MB = 1024 * 1024;
+
+    private final ServiceCallMetering serviceCallMetering;
+    private final String customerIdHeader;
+
+    public RequestMetering(final ServiceCallMetering serviceCallMetering) {
+        this(serviceCallMetering, DEFAULT_CUSTOMER_ID_HEADER);
+    }
+
+    public RequestMetering(final ServiceCallMetering serviceCallMetering, final String customerIdHeader) {
+        this.serviceCallMetering = serviceCallMetering;
+        this.customerIdHeader = customerIdHeader;
+    }
+
+    public String getCustomerIdHeader() {
+        return customerIdHeader;
+    }
+
+    /**
+     * Meters a request which started at the given {@link System#nanoTime()}.
+     * @param error the exception the handler threw (null if it didn't).
+     */
+    void record(final String customerId, final String method, final String path, final long startTimeInNanos,
+                final Throwable error, final int status, final long responseBytes) {
+        final Class<?> errorType = error != null ? error.getClass() :
+                status >= 500 ? ServerErrorResponse.class : null;
+
+        serviceCallMetering.record(customerId, method + " " + path, startTimeInNanos, errorType,
+                responseBytes / BYTES_IN_MB);
+    }
+
+    /**
+     * Used as the error type of requests which completed with a 5xx status.
+     */
+    static final class ServerErrorResponse {
+        private ServerErrorResponse() {
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.amberflo.metering.logs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A template of a meter attribute, made of literals and '${field}' references to the fields of a log line (the named
+ * groups of a regex rule, or the dotted paths of a json rule). For example: '${method} ${path}', or just 'ApiCalls'.
+ */
+final class FieldTemplate {
+    private static final Pattern REFERENCE = Pattern.compile("\\$\\{([^}]+)}");
+
+    // The literals and field names, one after the other (starting with a literal).
+    private final String[] parts;
+    private final List<String> fields;
+
+    private FieldTemplate(final String[] parts, final List<String> fields) {
+        this.parts = parts;
+        this.fields = fields;
+    }
+
+    static FieldTemplate parse(final String template) {
+        final List<String> parts = new ArrayList<>();
+        final List<String> fields = new ArrayList<>();
+        final Matcher matcher = REFERENCE.matcher(template);
+        int literalStart = 0;
+        while (matcher.find()) {
+            parts.add(template.substring(literalStart, matcher.start()));
+            parts.add(matcher.group(1));
+            fields.add(matcher.group(1));
+            literalStart = matcher.end();
+        }
+        parts.add(template.substring(literalStart));
+        return new FieldTemplate(parts.toArray(new String[0]), Collections.unmodifiableList(fields));
+    }
+
+    /**
+     * @return the names of the fields the template refers to.
+     */
+    List<String> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return the value of the template, or null if one of the fields is missing.
+     */
+    String resolve(final Function<String, String> fieldValues) {
+        if (parts.length == 1) {
+            return parts[0];
+        }
+        if (parts.length == 3 && parts[0].isEmpty() && parts[2].isEmpty()) {
+            return fieldValues.apply(parts[1]);
+        }
+
+        final StringBuilder value = new StringBuilder();
+        for (int i = 0; i < parts.length; i++) {
+            if (i % 2 == 0) {
+                value.append(parts[i]);
+            } else {
+                final String fieldValue = fieldValues.apply(parts[i]);
+                if (fieldValue == null) {
+                    return null;
+                }
+                value.append(fieldValue);
+            }
+        }
+        return value.toString();
+    }
+}
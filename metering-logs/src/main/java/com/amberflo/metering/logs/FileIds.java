@@ -0,0 +1,39 @@
+package com.amberflo.metering.logs;
+
+import java.nio.file.Path;
+
+/**
+ * The ids of the log files, which are the first part of the unique ids of their meters (see {@link LogTailer}).
+ *
+ * A line which is read again (after a crash, or a restart from an older checkpoint) must get the same unique id, so
+ * the ingest api can drop it - the hash below must never change. It's 64 bit FNV-1a over the chars of the path, the
+ * file key and the generation of the file, followed by the MurmurHash3 64 bit finalizer.
+ */
+final class FileIds {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private FileIds() {
+    }
+
+    /**
+     * @return the id of the given generation of a file, as a hex string.
+     */
+    static String of(final Path path, final String fileKey, final long generation) {
+        return Long.toHexString(hash(path + "|" + fileKey + "|" + generation));
+    }
+
+    static long hash(final String value) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
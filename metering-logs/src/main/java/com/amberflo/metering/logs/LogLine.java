@@ -0,0 +1,54 @@
+package com.amberflo.metering.logs;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * A line of a log file, with its json form (parsed once, and only if a json rule needs it).
+ */
+final class LogLine {
+    private final String text;
+    private JsonObject json;
+    private boolean jsonParsed;
+
+    LogLine(final String text) {
+        this.text = text;
+    }
+
+    String getText() {
+        return text;
+    }
+
+    /**
+     * @return the value of the given dotted path ('user.id') of the json form of the line, or null if the line isn't
+     * a json object, or the path is missing or isn't a primitive.
+     */
+    String jsonField(final String path) {
+        JsonElement element = getJson();
+        int start = 0;
+        while (element != null && element.isJsonObject()) {
+            final int end = path.indexOf('.', start);
+            element = element.getAsJsonObject().get(end < 0 ? path.substring(start) : path.substring(start, end));
+            if (end < 0) {
+                return element != null && element.isJsonPrimitive() ? element.getAsString() : null;
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    private JsonObject getJson() {
+        if (!jsonParsed) {
+            jsonParsed = true;
+            try {
+                final JsonElement element = JsonParser.parseString(text);
+                json = element.isJsonObject() ? element.getAsJsonObject() : null;
+            } catch (final JsonParseException e) {
+                json = null;
+            }
+        }
+        return json;
+    }
+}
@@ -0,0 +1,481 @@
+package com.amberflo.metering.logs;
+
+import com.amberflo.metering.pipeline.MeterInterner;
+import com.amberflo.metering.pipeline.MeterSender;
+import com.amberflo.metering.pipeline.QueuedMeter;
+import com.amberflo.metering.pipeline.metrics.PipelineMetrics;
+import com.amberflo.metering.pipeline.metrics.MetricsRegistry;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tails log files, maps their lines to meters with {@link LogRule}s, and sends the meters in large batches with a
+ * {@link MeterSender} - for metering services you can't change (legacy services, proxies, etc).
+ *
+ * The log files are the queue of the extractor: a batch is sent once it reaches 'maxBatchSize' meters or is older
+ * than 'maxDelayInSec', and the offsets of the files (see {@link LogTailer}) are persisted only once the lines before
+ * them were sent. A batch which failed is retried (with a backoff) until it is sent, and no more lines are read in the
+ * meantime. After a crash, the lines after the last persisted offsets are read again - each meter has an idempotency
+ * key made of the identity of its file and the offset of its line, so the {@link
+ * com.amberflo.metering.pipeline.IngestApiSender} doesn't count them twice.
+ *
+ * The extractor reads the files from a single thread (see {@link #start()}), and reports the same metrics as a
+ * {@link com.amberflo.metering.pipeline.MeterPipeline} (see {@link PipelineMetrics}).
+ */
+public class LogMeterExtractor implements AutoCloseable {
+    public static final String DEFAULT_NAME = "logs";
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+    public static final double DEFAULT_MAX_DELAY_IN_SEC = 1;
+    public static final long DEFAULT_POLL_INTERVAL_MILLIS = 250;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_MILLIS = 1000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LogMeterExtractor.class);
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    private final String name;
+    private final MeterSender sender;
+    private final List<Source> sources;
+    private final OffsetStore offsetStore;
+    private final MeterInterner interner;
+    private final int maxBatchSize;
+    private final long maxDelayInNanos;
+    private final long pollIntervalMillis;
+    private final PipelineMetrics metrics;
+
+    private final List<QueuedMeter> batch = new ArrayList<>();
+    private volatile int pendingMeters;
+    private long batchStartNanos;
+    // The checkpoints of all of the lines which were sent (or weren't metered), by path.
+    private final Map<String, LogTailer.Checkpoint> committed = new HashMap<>();
+    private boolean committedChanged;
+    private long lastSaveMillis;
+
+    private final LongAdder lines = new LongAdder();
+    private final LongAdder unmatchedLines = new LongAdder();
+    private volatile boolean closed;
+    private Thread thread;
+
+    private LogMeterExtractor(final Builder builder) {
+        this.name = builder.name;
+        this.sender = builder.sender;
+        this.offsetStore = builder.offsetsFile == null ? null : new OffsetStore(builder.offsetsFile);
+        this.interner = builder.interner;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.maxDelayInNanos = (long) (builder.maxDelayInSec * TimeUnit.SECONDS.toNanos(1));
+        this.pollIntervalMillis = builder.pollIntervalMillis;
+
+        final Map<String, LogTailer.Checkpoint> saved = offsetStore == null ? Collections.emptyMap() :
+                offsetStore.load();
+        this.sources = new ArrayList<>();
+        for (final Map.Entry<Path, List<LogRule>> source : builder.sources.entrySet()) {
+            final String path = source.getKey().toString();
+            sources.add(new Source(new LogTailer(source.getKey(), saved.get(path), builder.startAtEnd),
+                    source.getValue()));
+            if (saved.containsKey(path)) {
+                committed.put(path, saved.get(path));
+            }
+        }
+
+        this.metrics = new PipelineMetrics(name, sender.getClientType(), () -> pendingMeters,
+                builder.metricsRegistry);
+        sender.setMetrics(metrics);
+        if (builder.jmxEnabled) {
+            metrics.registerMBean();
+        }
+    }
+
+    public static Builder builder(final MeterSender sender) {
+        return new Builder(sender);
+    }
+
+    /**
+     * Creates an extractor from a json config file:
+     * <pre>
+     *     {
+     *       "name": "nginx",
+     *       "offsetsFile": "/var/lib/log-metering/offsets.json",
+     *       "startAtEnd": true,
+     *       "maxBatchSize": 1000,
+     *       "maxDelayInSec": 1,
+     *       "sources": [
+     *         { "path": "/var/log/nginx/access.log", "rules": [ ... ] }
+     *       ]
+     *     }
+     * </pre>
+     * See {@link LogRule#fromConfig(JsonObject)} for the rules.
+     */
+    public static LogMeterExtractor fromConfig(final Path configFile, final MeterSender sender) throws IOException {
+        final JsonObject config;
+        try (final Reader reader = Files.newBufferedReader(configFile, StandardCharsets.UTF_8)) {
+            config = JsonParser.parseReader(reader).getAsJsonObject();
+        }
+
+        final Builder builder = builder(sender);
+        if (config.has("name")) {
+            builder.setName(config.get("name").getAsString());
+        }
+        if (config.has("offsetsFile")) {
+            builder.setOffsetsFile(Paths.get(config.get("offsetsFile").getAsString()));
+        }
+        if (config.has("startAtEnd")) {
+            builder.setStartAtEnd(config.get("startAtEnd").getAsBoolean());
+        }
+        if (config.has("maxBatchSize")) {
+            builder.setMaxBatchSize(config.get("maxBatchSize").getAsInt());
+        }
+        if (config.has("maxDelayInSec")) {
+            builder.setMaxDelayInSec(config.get("maxDelayInSec").getAsDouble());
+        }
+        if (config.has("pollIntervalMillis")) {
+            builder.setPollIntervalMillis(config.get("pollIntervalMillis").getAsLong());
+        }
+        for (final JsonElement sourceElement : config.getAsJsonArray("sources")) {
+            final JsonObject source = sourceElement.getAsJsonObject();
+            final List<LogRule> rules = new ArrayList<>();
+            for (final JsonElement rule : source.getAsJsonArray("rules")) {
+                rules.add(LogRule.fromConfig(rule.getAsJsonObject()));
+            }
+            builder.addSource(Paths.get(source.get("path").getAsString()), rules.toArray(new LogRule[0]));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Starts tailing the files in a new thread.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException("The log meter extractor was already started");
+        }
+        thread = new Thread(this::run, "log-meter-extractor-" + name);
+        thread.start();
+    }
+
+    /**
+     * Sends the pending meters, saves the offsets and stops tailing the files.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        final Thread current;
+        synchronized (this) {
+            current = thread;
+        }
+        if (current != null) {
+            try {
+                current.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (final Source source : sources) {
+            try {
+                source.tailer.close();
+            } catch (final IOException e) {
+                LOGGER.debug("Failed to close {}", source.tailer.getPath(), e);
+            }
+        }
+        sender.close();
+        metrics.unregisterMBean();
+    }
+
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the amount of lines which were read.
+     */
+    public long getLineCount() {
+        return lines.sum();
+    }
+
+    /**
+     * @return the amount of lines which none of the rules matched.
+     */
+    public long getUnmatchedLineCount() {
+        return unmatchedLines.sum();
+    }
+
+    private void run() {
+        while (!closed) {
+            final boolean readLines = readLines();
+            if (batch.size() >= maxBatchSize ||
+                    (!batch.isEmpty() && System.nanoTime() - batchStartNanos >= maxDelayInNanos)) {
+                sendBatch();
+            }
+            saveOffsets(false);
+
+            if (!readLines) {
+                try {
+                    Thread.sleep(pollIntervalMillis);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            sendBatch();
+        }
+        saveOffsets(true);
+    }
+
+    /**
+     * Reads lines from each of the files (up to 'maxBatchSize' from each) until the batch is full.
+     * @return true if any line was read.
+     */
+    private boolean readLines() {
+        boolean readLines = false;
+        for (final Source source : sources) {
+            try {
+                for (int i = 0; i < maxBatchSize && batch.size() < maxBatchSize; i++) {
+                    final String line = source.tailer.nextLine();
+                    if (line == null) {
+                        break;
+                    }
+                    readLines = true;
+                    extract(source, line);
+                }
+            } catch (final IOException e) {
+                LOGGER.warn("Failed to read {}", source.tailer.getPath(), e);
+            }
+        }
+
+        if (batch.isEmpty()) {
+            // All of the lines which were read weren't metered.
+            commit();
+        }
+        return readLines;
+    }
+
+    private void extract(final Source source, final String text) {
+        lines.increment();
+        final LogLine line = new LogLine(text);
+        final int sizeBefore = batch.size();
+        for (int i = 0; i < source.rules.size(); i++) {
+            final String uniqueId = source.rules.size() == 1 ? source.tailer.lineId() :
+                    source.tailer.lineId() + "-" + i;
+            final QueuedMeter meter = source.rules.get(i).toMeter(line, uniqueId, interner);
+            if (meter != null) {
+                if (batch.isEmpty()) {
+                    batchStartNanos = System.nanoTime();
+                }
+                batch.add(meter);
+            }
+        }
+
+        final int meters = batch.size() - sizeBefore;
+        if (meters == 0) {
+            unmatchedLines.increment();
+        } else {
+            pendingMeters = batch.size();
+            metrics.recordEnqueued(meters, batch.size());
+        }
+    }
+
+    /**
+     * Sends the batch, and retries until it is sent (or the extractor is closed).
+     */
+    private void sendBatch() {
+        long backoffMillis = INITIAL_BACKOFF_MILLIS;
+        while (true) {
+            final long startNanos = System.nanoTime();
+            try {
+                sender.send(batch);
+                final long endNanos = System.nanoTime();
+                metrics.recordBatch(batch.size(), endNanos - batchStartNanos, endNanos - startNanos, true);
+                batch.clear();
+                pendingMeters = 0;
+                commit();
+                return;
+            } catch (final Exception e) {
+                if (closed) {
+                    // The lines will be read again on the next start, as their offsets weren't saved.
+                    LOGGER.warn("Failed to send a batch of {} meters while closing", batch.size(), e);
+                    metrics.recordDropped(batch.size());
+                    batch.clear();
+                    pendingMeters = 0;
+                    return;
+                }
+                LOGGER.warn("Failed to send a batch of {} meters, retrying in {} millis", batch.size(),
+                        backoffMillis, e);
+                metrics.recordRetry();
+            }
+
+            try {
+                Thread.sleep(backoffMillis);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                closed = true;
+            }
+            backoffMillis = Math.min(MAX_BACKOFF_MILLIS, backoffMillis * 2);
+        }
+    }
+
+    /**
+     * Marks the current positions of the files as committed (all of the lines before them were sent).
+     */
+    private void commit() {
+        for (final Source source : sources) {
+            final LogTailer.Checkpoint checkpoint = source.tailer.checkpoint();
+            if (checkpoint != null) {
+                committedChanged |= !checkpoint.equals(committed.put(source.tailer.getPath().toString(), checkpoint));
+            }
+        }
+    }
+
+    private void saveOffsets(final boolean force) {
+        if (offsetStore == null || !committedChanged) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (!force && now - lastSaveMillis < DEFAULT_CHECKPOINT_INTERVAL_MILLIS) {
+            return;
+        }
+
+        try {
+            offsetStore.save(committed);
+            committedChanged = false;
+            lastSaveMillis = now;
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to save the log offsets", e);
+        }
+    }
+
+    private static final class Source {
+        private final LogTailer tailer;
+        private final List<LogRule> rules;
+
+        private Source(final LogTailer tailer, final List<LogRule> rules) {
+            this.tailer = tailer;
+            this.rules = rules;
+        }
+    }
+
+    public static class Builder {
+        private final MeterSender sender;
+        private final Map<Path, List<LogRule>> sources = new LinkedHashMap<>();
+        private String name = DEFAULT_NAME;
+        private Path offsetsFile;
+        private boolean startAtEnd;
+        private MeterInterner interner = MeterInterner.shared();
+        private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        private double maxDelayInSec = DEFAULT_MAX_DELAY_IN_SEC;
+        private long pollIntervalMillis = DEFAULT_POLL_INTERVAL_MILLIS;
+        private MetricsRegistry metricsRegistry = MetricsRegistry.NOOP;
+        private boolean jmxEnabled = true;
+
+        private Builder(final MeterSender sender) {
+            this.sender = sender;
+        }
+
+        /**
+         * Adds a log file, with the rules which map its lines to meters. A line can be mapped to a meter by each of the
+         * rules.
+         */
+        public Builder addSource(final Path path, final LogRule... rules) {
+            if (rules.length == 0) {
+                throw new IllegalArgumentException("No rules were provided for " + path);
+            }
+            sources.computeIfAbsent(path, ignored -> new ArrayList<>()).addAll(List.of(rules));
+            return this;
+        }
+
+        /**
+         * Optional - the name of the extractor in its metrics. Defaults to 'logs'.
+         */
+        public Builder setName(final String name) {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * Optional - the file the offsets of the log files are persisted to. Without it, the extractor starts over
+         * (according to {@link #setStartAtEnd(boolean)}) when it is restarted.
+         */
+        public Builder setOffsetsFile(final Path offsetsFile) {
+            this.offsetsFile = offsetsFile;
+            return this;
+        }
+
+        /**
+         * Optional - whether to start at the end of a file which has no saved offset (and skip its history), or from
+         * its start. Defaults to false (from the start).
+         */
+        public Builder setStartAtEnd(final boolean startAtEnd) {
+            this.startAtEnd = startAtEnd;
+            return this;
+        }
+
+        public Builder setInterner(final MeterInterner interner) {
+            this.interner = interner;
+            return this;
+        }
+
+        public Builder setMaxBatchSize(final int maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        public Builder setMaxDelayInSec(final double maxDelayInSec) {
+            this.maxDelayInSec = maxDelayInSec;
+            return this;
+        }
+
+        /**
+         * Optional - how long to wait before checking the files again once there are no new lines. Defaults to 250ms.
+         */
+        public Builder setPollIntervalMillis(final long pollIntervalMillis) {
+            this.pollIntervalMillis = pollIntervalMillis;
+            return this;
+        }
+
+        public Builder setMetricsRegistry(final MetricsRegistry metricsRegistry) {
+            this.metricsRegistry = metricsRegistry;
+            return this;
+        }
+
+        public Builder setJmxEnabled(final boolean jmxEnabled) {
+            this.jmxEnabled = jmxEnabled;
+            return this;
+        }
+
+        public LogMeterExtractor build() {
+            if (sources.isEmpty()) {
+                throw new IllegalArgumentException("No log files were provided");
+            }
+            if (maxBatchSize <= 0 || maxDelayInSec <= 0 || pollIntervalMillis <= 0) {
+                throw new IllegalArgumentException("Invalid log meter extractor settings: maxBatchSize=" +
+                        maxBatchSize + ", maxDelayInSec=" + maxDelayInSec + ", pollIntervalMillis=" +
+                        pollIntervalMillis);
+            }
+            return new LogMeterExtractor(this);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.amberflo.metering.logs;
+
+import com.amberflo.metering.ingest.MeteringContext;
+import com.amberflo.metering.pipeline.MeterSender;
+import com.amberflo.metering.pipeline.MeterSenders;
+import com.amberflo.metering.pipeline.MeteringClientSender;
+
+import java.nio.file.Paths;
+
+/**
+ * Runs a {@link LogMeterExtractor} with the given config file (see
+ * {@link LogMeterExtractor#fromConfig(java.nio.file.Path, MeterSender)}) until the
+ * process is stopped. The meters are sent with the sender of the "clientType" of the metering config (see
+ * {@link MeterSenders}).
+ */
+public class LogMeteringMain {
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("usage: LogMeteringMain [config file]");
+            System.exit(1);
+        }
+
+        final MeterSender sender = MeterSenders.fromConfig();
+        final LogMeterExtractor extractor = LogMeterExtractor.fromConfig(Paths.get(args[0]), sender);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            extractor.close();
+            if (sender instanceof MeteringClientSender) {
+                MeteringContext.flushAndClose();
+            }
+        }, "log-metering-shutdown"));
+        extractor.start();
+    }
+}
@@ -0,0 +1,291 @@
+package com.amberflo.metering.logs;
+
+import com.amberflo.metering.pipeline.MeterInterner;
+import com.amberflo.metering.pipeline.QueuedMeter;
+import com.amberflo.metering.pipeline.QueuedMeterBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maps a log line to a meter. There are 2 kinds of rules:
+ * 1. Regex - the line should match the pattern of the rule, and the fields of the line are the named groups of the
+ * pattern ('(?&lt;customer&gt;\S+)').
+ * 2. Json - the line should be a json object, and the fields of the line are the dotted paths of its attributes
+ * ('tenant.id').
+ *
+ * The meter attributes are {@link FieldTemplate}s of these fields ('${customer}', 'ApiCalls', '${method} ${path}').
+ * The meter name and customer id are required. The meter value defaults to 1, and the meter time to the time the line
+ * was read. A rule can also have conditions ('when') - regexes which the given fields should contain.
+ *
+ * A line which doesn't match the rule (or has a missing or invalid required field) isn't metered by the rule.
+ */
+public class LogRule {
+    public static final String EPOCH_MILLIS = "epochMillis";
+    public static final String EPOCH_SECONDS = "epochSeconds";
+    public static final String ISO = "iso";
+
+    private static final Pattern GROUP_NAME = Pattern.compile("\\(\\?<([a-zA-Z][a-zA-Z0-9]*)>");
+
+    private final Pattern pattern;
+    private final FieldTemplate meterName;
+    private final FieldTemplate customerId;
+    private final FieldTemplate meterValue;
+    private final FieldTemplate time;
+    private final String timeFormat;
+    private final DateTimeFormatter timeFormatter;
+    private final Map<String, FieldTemplate> dimensions;
+    private final Map<String, Pattern> conditions;
+
+    private LogRule(final Builder builder) {
+        this.pattern = builder.pattern;
+        this.meterName = builder.meterName;
+        this.customerId = builder.customerId;
+        this.meterValue = builder.meterValue;
+        this.time = builder.time;
+        this.timeFormat = builder.timeFormat;
+        this.timeFormatter = builder.timeFormatter;
+        this.dimensions = new LinkedHashMap<>(builder.dimensions);
+        this.conditions = new LinkedHashMap<>(builder.conditions);
+    }
+
+    /**
+     * A rule for lines which match the given pattern.
+     */
+    public static Builder regex(final String pattern) {
+        return new Builder(Pattern.compile(pattern));
+    }
+
+    /**
+     * A rule for json lines.
+     */
+    public static Builder json() {
+        return new Builder(null);
+    }
+
+    /**
+     * Creates a rule from its json config:
+     * <pre>
+     *     {
+     *       "pattern": "^(?&lt;customer&gt;\\S+) (?&lt;method&gt;\\S+) (?&lt;path&gt;\\S+) (?&lt;bytes&gt;\\d+)",
+     *       "meterName": "ApiCalls",
+     *       "customerId": "${customer}",
+     *       "meterValue": "1",
+     *       "time": "${time}",
+     *       "timeFormat": "epochMillis",
+     *       "dimensions": { "endpoint": "${method} ${path}" },
+     *       "when": { "method": "^(GET|POST)$" }
+     *     }
+     * </pre>
+     * A rule without a "pattern" is a json rule.
+     */
+    public static LogRule fromConfig(final JsonObject config) {
+        final Builder builder = config.has("pattern") ? regex(config.get("pattern").getAsString()) : json();
+        builder.setMeterName(string(config, "meterName"))
+                .setCustomerId(string(config, "customerId"));
+        if (config.has("meterValue")) {
+            builder.setMeterValue(string(config, "meterValue"));
+        }
+        if (config.has("time")) {
+            builder.setTime(string(config, "time"), config.has("timeFormat") ? string(config, "timeFormat") : ISO);
+        }
+        if (config.has("dimensions")) {
+            for (final Map.Entry<String, JsonElement> dimension : config.getAsJsonObject("dimensions").entrySet()) {
+                builder.setDimension(dimension.getKey(), dimension.getValue().getAsString());
+            }
+        }
+        if (config.has("when")) {
+            for (final Map.Entry<String, JsonElement> condition : config.getAsJsonObject("when").entrySet()) {
+                builder.when(condition.getKey(), condition.getValue().getAsString());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the meter of the given line, or null if the line doesn't match the rule.
+     */
+    QueuedMeter toMeter(final LogLine line, final String uniqueId, final MeterInterner interner) {
+        final Function<String, String> fields;
+        if (pattern != null) {
+            final Matcher matcher = pattern.matcher(line.getText());
+            if (!matcher.find()) {
+                return null;
+            }
+            fields = matcher::group;
+        } else {
+            fields = line::jsonField;
+        }
+
+        for (final Map.Entry<String, Pattern> condition : conditions.entrySet()) {
+            final String value = fields.apply(condition.getKey());
+            if (value == null || !condition.getValue().matcher(value).find()) {
+                return null;
+            }
+        }
+
+        final String name = meterName.resolve(fields);
+        final String customer = customerId.resolve(fields);
+        if (name == null || name.isEmpty() || customer == null || customer.isEmpty()) {
+            return null;
+        }
+
+        final double value;
+        final long timeInMillis;
+        try {
+            value = meterValue == null ? 1 : Double.parseDouble(meterValue.resolve(fields));
+            timeInMillis = time == null ? System.currentTimeMillis() : parseTime(time.resolve(fields));
+        } catch (final NullPointerException | NumberFormatException | DateTimeParseException e) {
+            return null;
+        }
+
+        final Map<String, String> lineDimensions = new HashMap<>();
+        for (final Map.Entry<String, FieldTemplate> dimension : dimensions.entrySet()) {
+            final String dimensionValue = dimension.getValue().resolve(fields);
+            if (dimensionValue != null) {
+                lineDimensions.put(dimension.getKey(), dimensionValue);
+            }
+        }
+
+        return QueuedMeterBuilder.createInstance(name, timeInMillis, customer)
+                .setMeterValue(value)
+                .setDimensionsMap(lineDimensions)
+                .setUniqueId(uniqueId)
+                .build(interner);
+    }
+
+    private long parseTime(final String value) {
+        switch (timeFormat) {
+            case EPOCH_MILLIS:
+                return Long.parseLong(value);
+            case EPOCH_SECONDS:
+                return (long) (Double.parseDouble(value) * 1000);
+            default:
+                return Instant.from(timeFormatter.parse(value)).toEpochMilli();
+        }
+    }
+
+    private static String string(final JsonObject config, final String name) {
+        final JsonElement element = config.get(name);
+        if (element == null || element.isJsonNull()) {
+            throw new IllegalArgumentException("The log rule has no '" + name + "': " + config);
+        }
+        return element.getAsString();
+    }
+
+    public static class Builder {
+        private final Pattern pattern;
+        private FieldTemplate meterName;
+        private FieldTemplate customerId;
+        private FieldTemplate meterValue;
+        private FieldTemplate time;
+        private String timeFormat;
+        private DateTimeFormatter timeFormatter;
+        private final Map<String, FieldTemplate> dimensions = new LinkedHashMap<>();
+        private final Map<String, Pattern> conditions = new LinkedHashMap<>();
+
+        private Builder(final Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        public Builder setMeterName(final String template) {
+            this.meterName = FieldTemplate.parse(template);
+            return this;
+        }
+
+        public Builder setCustomerId(final String template) {
+            this.customerId = FieldTemplate.parse(template);
+            return this;
+        }
+
+        /**
+         * Optional - defaults to 1.
+         */
+        public Builder setMeterValue(final String template) {
+            this.meterValue = FieldTemplate.parse(template);
+            return this;
+        }
+
+        /**
+         * Optional - defaults to the time the line was read.
+         * @param format 'epochMillis', 'epochSeconds', 'iso' (an ISO-8601 time with an offset) or a
+         * {@link DateTimeFormatter} pattern ('dd/MMM/yyyy:HH:mm:ss Z'). Times without an offset are in UTC.
+         */
+        public Builder setTime(final String template, final String format) {
+            this.time = FieldTemplate.parse(template);
+            this.timeFormat = format;
+            if (ISO.equals(format)) {
+                this.timeFormatter = DateTimeFormatter.ISO_DATE_TIME.withZone(ZoneOffset.UTC);
+            } else if (!EPOCH_MILLIS.equals(format) && !EPOCH_SECONDS.equals(format)) {
+                this.timeFormatter = DateTimeFormatter.ofPattern(format, Locale.ENGLISH).withZone(ZoneOffset.UTC);
+            }
+            return this;
+        }
+
+        public Builder setDimension(final String key, final String template) {
+            dimensions.put(key, FieldTemplate.parse(template));
+            return this;
+        }
+
+        /**
+         * Meters only lines whose given field contains the given regex.
+         */
+        public Builder when(final String field, final String regex) {
+            conditions.put(field, Pattern.compile(regex));
+            return this;
+        }
+
+        public LogRule build() {
+            if (meterName == null || customerId == null) {
+                throw new IllegalArgumentException("A log rule requires a meterName and a customerId");
+            }
+            if (pattern != null) {
+                validateGroups();
+            }
+            return new LogRule(this);
+        }
+
+        /**
+         * Makes sure all of the fields the rule refers to are named groups of its pattern.
+         */
+        private void validateGroups() {
+            final Matcher groups = GROUP_NAME.matcher(pattern.pattern());
+            final Set<String> names = new HashSet<>();
+            while (groups.find()) {
+                names.add(groups.group(1));
+            }
+
+            final List<String> fields = new ArrayList<>(conditions.keySet());
+            for (final FieldTemplate template : new FieldTemplate[] {meterName, customerId, meterValue, time}) {
+                if (template != null) {
+                    fields.addAll(template.getFields());
+                }
+            }
+            for (final FieldTemplate template : dimensions.values()) {
+                fields.addAll(template.getFields());
+            }
+
+            for (final String field : fields) {
+                if (!names.contains(field)) {
+                    throw new IllegalArgumentException("The pattern '" + pattern + "' has no named group '" +
+                            field + "'");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.amberflo.metering.logs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Reads the lines which are appended to a log file, and follows the file when it is rotated:
+ * 1. Renamed (and replaced by a new file) - the rest of the old file is read, and then the new file from its start.
+ * 2. Truncated in place ('copytruncate') - the file is read again from its start.
+ *
+ * The tailer returns complete lines only (a line without a newline is returned once it's completed, or once the file
+ * was rotated). The position of the tailer is a {@link Checkpoint} - the identity of the file (its inode, where
+ * available), its generation (changed when it's truncated, so the offsets of its new lines don't repeat old ones) and
+ * the offset of the next line, so a restarted tailer continues from where it stopped.
+ *
+ * Not thread safe.
+ */
+final class LogTailer implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LogTailer.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+    private final Path path;
+    private Checkpoint initialCheckpoint;
+    private boolean startAtEnd;
+
+    private FileChannel channel;
+    private String fileKey;
+    private long generation;
+    private String fileId;
+    // Bytes which were read but not returned yet. The buffer starts at 'bufferOffset' in the file.
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int start;
+    private int end;
+    private long bufferOffset;
+    // The last returned line.
+    private String lineFileId;
+    private long lineOffset;
+    // The file was rotated, and the rest of it is being read.
+    private boolean draining;
+    private boolean skippingLongLine;
+
+    /**
+     * @param checkpoint the position to start from (null if there is none).
+     * @param startAtEnd whether to start at the end of the file if there is no checkpoint (or from its start).
+     */
+    LogTailer(final Path path, final Checkpoint checkpoint, final boolean startAtEnd) {
+        this.path = path;
+        this.initialCheckpoint = checkpoint;
+        this.startAtEnd = startAtEnd;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return the next complete line, or null if there is none yet.
+     */
+    String nextLine() throws IOException {
+        if (channel == null && !open()) {
+            return null;
+        }
+
+        while (true) {
+            final int newline = indexOfNewline();
+            if (newline >= 0) {
+                lineFileId = fileId;
+                lineOffset = bufferOffset + start;
+                final int lineEnd = newline > start && buffer[newline - 1] == '\r' ? newline - 1 : newline;
+                final String line = new String(buffer, start, lineEnd - start, StandardCharsets.UTF_8);
+                start = newline + 1;
+                if (skippingLongLine) {
+                    skippingLongLine = false;
+                    continue;
+                }
+                return line;
+            }
+
+            if (fill()) {
+                continue;
+            }
+
+            // The end of the file.
+            if (draining) {
+                return switchToNewFile();
+            }
+            final String currentKey = fileKey(path);
+            if (currentKey != null && !currentKey.equals(fileKey)) {
+                LOGGER.info("{} was rotated", path);
+                // Read what was appended to the old file since the last read, before switching.
+                draining = true;
+                continue;
+            }
+            if (channel.size() < bufferOffset + end) {
+                LOGGER.info("{} was truncated", path);
+                setGeneration(System.currentTimeMillis());
+                bufferOffset = 0;
+                start = 0;
+                end = 0;
+                skippingLongLine = false;
+                continue;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return an id of the last line returned by {@link #nextLine()}, which stays the same when the line is read
+     * again (after a restart) - the identity of the file and the offset of the line.
+     */
+    String lineId() {
+        return lineFileId + "-" + lineOffset;
+    }
+
+    /**
+     * @return the position of the next line, or null if no file was opened yet.
+     */
+    Checkpoint checkpoint() {
+        if (fileKey == null) {
+            return initialCheckpoint;
+        }
+        return new Checkpoint(fileKey, generation, bufferOffset + start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private boolean open() throws IOException {
+        final String key = fileKey(path);
+        if (key == null) {
+            return false;
+        }
+
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (final NoSuchFileException e) {
+            return false;
+        }
+        fileKey = key;
+        setGeneration(0);
+
+        long offset = 0;
+        if (initialCheckpoint != null) {
+            if (!initialCheckpoint.getFileKey().equals(key)) {
+                LOGGER.warn("{} was rotated while it wasn't tailed, reading it from its start", path);
+            } else if (initialCheckpoint.getOffset() > channel.size()) {
+                LOGGER.warn("{} was truncated while it wasn't tailed, reading it from its start", path);
+                setGeneration(System.currentTimeMillis());
+            } else {
+                setGeneration(initialCheckpoint.getGeneration());
+                offset = initialCheckpoint.getOffset();
+            }
+        } else if (startAtEnd) {
+            offset = channel.size();
+        }
+        initialCheckpoint = null;
+        startAtEnd = false;
+
+        bufferOffset = offset;
+        start = 0;
+        end = 0;
+        return true;
+    }
+
+    private void setGeneration(final long generation) {
+        this.generation = generation;
+        fileId = FileIds.of(path, fileKey, generation);
+    }
+
+    /**
+     * Completes the old file (a last line without a newline is returned), and opens the new one.
+     */
+    private String switchToNewFile() throws IOException {
+        String lastLine = null;
+        if (end > start && !skippingLongLine) {
+            lineFileId = fileId;
+            lineOffset = bufferOffset + start;
+            lastLine = new String(buffer, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        close();
+        draining = false;
+        skippingLongLine = false;
+        buffer = new byte[BUFFER_SIZE];
+        if (!open()) {
+            // The new file is gone as well - wait for the next one.
+            fileKey = null;
+        }
+        return lastLine;
+    }
+
+    /**
+     * Reads more bytes into the buffer.
+     * @return false if there were no more bytes to read.
+     */
+    private boolean fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            bufferOffset += start;
+            end -= start;
+            start = 0;
+        }
+        if (end == buffer.length) {
+            if (buffer.length < MAX_LINE_LENGTH) {
+                final byte[] larger = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, larger, 0, end);
+                buffer = larger;
+            } else {
+                LOGGER.warn("Skipping a line longer than {} bytes at offset {} of {}", MAX_LINE_LENGTH, bufferOffset,
+                        path);
+                skippingLongLine = true;
+                bufferOffset += end;
+                end = 0;
+            }
+        }
+
+        final int read = channel.read(ByteBuffer.wrap(buffer, end, buffer.length - end), bufferOffset + end);
+        if (read <= 0) {
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    private int indexOfNewline() {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the identity of the file at the given path (its inode where available), or null if there is no file.
+     */
+    private static String fileKey(final Path path) throws IOException {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            final Object key = attributes.fileKey();
+            return key != null ? key.toString() : attributes.creationTime().toString();
+        } catch (final NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The position of a tailer - the identity and generation of the file, and the offset of the next line.
+     */
+    static final class Checkpoint {
+        private final String fileKey;
+        private final long generation;
+        private final long offset;
+
+        Checkpoint(final String fileKey, final long generation, final long offset) {
+            this.fileKey = fileKey;
+            this.generation = generation;
+            this.offset = offset;
+        }
+
+        String getFileKey() {
+            return fileKey;
+        }
+
+        long getGeneration() {
+            return generation;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Checkpoint)) {
+                return false;
+            }
+            final Checkpoint checkpoint = (Checkpoint) other;
+            return offset == checkpoint.offset && generation == checkpoint.generation &&
+                    fileKey.equals(checkpoint.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * fileKey.hashCode() + Long.hashCode(generation)) + Long.hashCode(offset);
+        }
+    }
+}
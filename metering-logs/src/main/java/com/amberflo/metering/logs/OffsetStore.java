@@ -0,0 +1,74 @@
+package com.amberflo.metering.logs;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persists the {@link LogTailer.Checkpoint}s of the tailed files (by their path) in a json file:
+ * <pre>
+ *     { "/var/log/nginx/access.log": { "fileKey": "(dev=803,ino=1234)", "generation": 0, "offset": 1048576 } }
+ * </pre>
+ * The file is replaced atomically, so a crash while saving leaves the previous checkpoints.
+ */
+final class OffsetStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(OffsetStore.class);
+
+    private final Path file;
+
+    OffsetStore(final Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the saved checkpoints, or an empty map if there are none (or the file isn't valid).
+     */
+    Map<String, LogTailer.Checkpoint> load() {
+        final Map<String, LogTailer.Checkpoint> checkpoints = new HashMap<>();
+        try (final Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            for (final Map.Entry<String, JsonElement> entry :
+                    JsonParser.parseReader(reader).getAsJsonObject().entrySet()) {
+                final JsonObject checkpoint = entry.getValue().getAsJsonObject();
+                checkpoints.put(entry.getKey(), new LogTailer.Checkpoint(checkpoint.get("fileKey").getAsString(),
+                        checkpoint.get("generation").getAsLong(), checkpoint.get("offset").getAsLong()));
+            }
+        } catch (final NoSuchFileException e) {
+            LOGGER.info("There are no saved offsets in {}", file);
+        } catch (final Exception e) {
+            LOGGER.warn("Failed to read the saved offsets from {}", file, e);
+        }
+        return checkpoints;
+    }
+
+    void save(final Map<String, LogTailer.Checkpoint> checkpoints) throws IOException {
+        final JsonObject json = new JsonObject();
+        for (final Map.Entry<String, LogTailer.Checkpoint> entry : checkpoints.entrySet()) {
+            final JsonObject checkpoint = new JsonObject();
+            checkpoint.addProperty("fileKey", entry.getValue().getFileKey());
+            checkpoint.addProperty("generation", entry.getValue().getGeneration());
+            checkpoint.addProperty("offset", entry.getValue().getOffset());
+            json.add(entry.getKey(), checkpoint);
+        }
+
+        final Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        final Path temp = parent.resolve(file.getFileName() + ".tmp");
+        try (final Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write(json.toString());
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
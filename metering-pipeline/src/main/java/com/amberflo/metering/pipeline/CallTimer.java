@@ -0,0 +1,44 @@
+package com.amberflo.metering.pipeline;
+
+/**
+ * Times a single service call (see {@link ServiceCallMetering#start(String, String)}). Closing the timer queues the
+ * call meters, so it can be used in a try-with-resources block.
+ *
+ * A timer isn't thread safe, and should be closed once.
+ */
+public class CallTimer implements AutoCloseable {
+    private final ServiceCallMetering metering;
+    private final String customerId;
+    private final String serviceCall;
+    private final long startTimeInNanos;
+    private Class<?> errorType;
+    private boolean closed;
+
+    CallTimer(final ServiceCallMetering metering, final String customerId, final String serviceCall,
+              final long startTimeInNanos) {
+        this.metering = metering;
+        this.customerId = customerId;
+        this.serviceCall = serviceCall;
+        this.startTimeInNanos = startTimeInNanos;
+    }
+
+    /**
+     * Marks the call as failed.
+     */
+    public void markError(final Throwable error) {
+        markError(error.getClass());
+    }
+
+    public void markError(final Class<?> errorType) {
+        this.errorType = errorType;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        metering.record(customerId, serviceCall, startTimeInNanos, errorType);
+    }
+}
@@ -0,0 +1,496 @@
+package com.amberflo.metering.pipeline;
+
+import com.amberflo.metering.pipeline.metrics.HyperLogLog;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks the cardinality (amount of distinct values) of each dimension of each meter name, and guards against
+ * dimensions with an unbounded amount of values (such as request ids) before the meters are sent.
+ *
+ * A dimension with a high cardinality makes the 'groupBy' queries of the usage api huge and slow. The guard estimates
+ * the cardinality of each dimension with a {@link HyperLogLog} sketch. Unless the policy is
+ * {@link CardinalityPolicy#TRACK_ONLY}, the guard also keeps the hashes of the first values of each dimension (the
+ * admitted values) - these values are always kept as is, and once the admitted values of a dimension reach their
+ * limit, only its new values are replaced according to the {@link CardinalityPolicy}. So a customer tier or a region
+ * which was reported before the limit was hit keeps its history. With {@link CardinalityPolicy#OVERFLOW} the first
+ * 'maxCardinality' values are admitted. With {@link CardinalityPolicy#BUCKET} the first half of them are, and the
+ * other values share the rest of the 'maxCardinality' values as buckets - so the dimension never has more than
+ * 'maxCardinality' values.
+ *
+ * The memory of the guard is fixed - the sketches and the admitted values use the memory budget, and once it is used
+ * up new dimensions (and new meter names) are no longer tracked. A value which can't be admitted for lack of memory is
+ * put in a bucket right away (with {@link CardinalityPolicy#BUCKET}), or only replaced if the estimated cardinality
+ * of its dimension exceeds the limit (with {@link CardinalityPolicy#OVERFLOW}).
+ *
+ * The pipeline applies the guard to all of the meters it queues (see
+ * {@link MeterPipeline.Builder#setCardinalityGuard(CardinalityGuard)}). You can also guard the dimensions you set on
+ * the {@link com.amberflo.metering.ingest.meter_message.ThreadContext}:
+ * <pre>
+ *     context.properties().setDimensionsMap(guard.contextDimensions(sessionInfo));
+ * </pre>
+ *
+ * The guard can also be configured by a "cardinality" section in the metering config (see {@link #fromConfig()}):
+ * <pre>
+ *     "cardinality": {
+ *       "maxCardinality": 1000,
+ *       "policy": "BUCKET",
+ *       "limits": { "ApiCalls": { "endpoint": 100 } }
+ *     }
+ * </pre>
+ */
+public class CardinalityGuard {
+    public static final String CONFIG_SECTION = "cardinality";
+    public static final String OVERFLOW_VALUE = "__overflow__";
+    public static final String BUCKET_VALUE_PREFIX = "bucket-";
+    /**
+     * The meter name the dimensions of {@link #contextDimensions(Map)} are tracked under.
+     */
+    public static final String CONTEXT_METER_NAME = "ThreadContext";
+
+    public static final int DEFAULT_MAX_CARDINALITY = 10_000;
+    public static final long DEFAULT_MEMORY_BUDGET_IN_BYTES = 8 * 1024 * 1024;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CardinalityGuard.class);
+    // The results of admitting a value.
+    private static final int ADMITTED = 0;
+    private static final int FULL = 1;
+    private static final int NO_MEMORY = 2;
+
+    private final int defaultMaxCardinality;
+    private final Map<String, Map<String, Integer>> maxCardinalities;
+    private final CardinalityPolicy policy;
+    private final int precision;
+    private final long memoryBudgetInBytes;
+    // Meter name -> dimension key -> state. A meter name is added along with its first tracked dimension.
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Dimension>> dimensions =
+            new ConcurrentHashMap<>();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final LongAdder untrackedValues = new LongAdder();
+
+    private CardinalityGuard(final Builder builder) {
+        this.defaultMaxCardinality = builder.defaultMaxCardinality;
+        this.policy = builder.policy;
+        this.precision = builder.precision;
+        this.memoryBudgetInBytes = builder.memoryBudgetInBytes;
+
+        final Map<String, Map<String, Integer>> limits = new HashMap<>();
+        builder.maxCardinalities.forEach((meterName, keys) -> limits.put(meterName, Map.copyOf(keys)));
+        this.maxCardinalities = Map.copyOf(limits);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return a guard according to the "cardinality" section of the current metering config, or a track only guard
+     * with the default settings if there is no such section.
+     */
+    public static CardinalityGuard fromConfig() {
+        return fromConfig(MeteringConfig.read());
+    }
+
+    static CardinalityGuard fromConfig(final JsonObject config) {
+        final Builder builder = builder();
+        final JsonElement section = config.get(CONFIG_SECTION);
+        if (section == null || section.isJsonNull()) {
+            return builder.build();
+        }
+
+        final JsonObject cardinality = section.getAsJsonObject();
+        if (cardinality.has("maxCardinality")) {
+            builder.setMaxCardinality(cardinality.get("maxCardinality").getAsInt());
+        }
+        if (cardinality.has("policy")) {
+            builder.setPolicy(CardinalityPolicy.valueOf(cardinality.get("policy").getAsString()));
+        }
+        if (cardinality.has("memoryBudgetInBytes")) {
+            builder.setMemoryBudgetInBytes(cardinality.get("memoryBudgetInBytes").getAsLong());
+        }
+        if (cardinality.has("limits")) {
+            for (final Map.Entry<String, JsonElement> meter : cardinality.getAsJsonObject("limits").entrySet()) {
+                for (final Map.Entry<String, JsonElement> key : meter.getValue().getAsJsonObject().entrySet()) {
+                    builder.setMaxCardinality(meter.getKey(), key.getKey(), key.getValue().getAsInt());
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Tracks the dimensions of the given meter.
+     * @return the given dimensions, or a copy of them where the values of dimensions which exceeded their max
+     * cardinality were replaced (according to the policy).
+     */
+    public Map<String, String> dimensions(final String meterName, final Map<String, String> meterDimensions) {
+        if (meterDimensions == null || meterDimensions.isEmpty()) {
+            return meterDimensions;
+        }
+
+        Map<String, String> guarded = null;
+        for (final Map.Entry<String, String> entry : meterDimensions.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                continue;
+            }
+
+            final String replacement = track(meterName, entry.getKey(), entry.getValue());
+            if (replacement != null) {
+                if (guarded == null) {
+                    guarded = new LinkedHashMap<>(meterDimensions);
+                }
+                guarded.put(entry.getKey(), replacement);
+            }
+        }
+        return guarded == null ? meterDimensions : guarded;
+    }
+
+    /**
+     * Tracks (and guards) dimensions which are shared by many meters, such as the ones of the ThreadContext. The
+     * dimensions are tracked under the {@link #CONTEXT_METER_NAME}.
+     */
+    public Map<String, String> contextDimensions(final Map<String, String> contextDimensions) {
+        return dimensions(CONTEXT_METER_NAME, contextDimensions);
+    }
+
+    /**
+     * @return the given meter, or a copy of it with guarded dimensions (see {@link #dimensions(String, Map)}).
+     */
+    QueuedMeter apply(final QueuedMeter meter, final MeterInterner interner) {
+        final Map<String, String> guarded = dimensions(meter.getMeterName(), meter.getDimensions());
+        if (guarded == meter.getDimensions()) {
+            return meter;
+        }
+
+        return QueuedMeterBuilder.create(interner, meter.getMeterName(), meter.getCustomerId(),
+                meter.getMeterValue(), meter.getMeterTimeInMillis(), meter.getServiceName(), meter.getServiceCall(),
+                meter.isError(), meter.getErrorType(), guarded, meter.getPriority(), meter.getExplicitUniqueId(),
+                meter.getSequence());
+    }
+
+    /**
+     * @return the estimated cardinality of the given dimension of the given meter (0 if it isn't tracked).
+     */
+    public long estimate(final String meterName, final String dimensionKey) {
+        final Map<String, Dimension> meterDimensions = dimensions.get(meterName);
+        final Dimension dimension = meterDimensions == null ? null : meterDimensions.get(dimensionKey);
+        return dimension == null ? 0 : dimension.sketch.estimate();
+    }
+
+    /**
+     * @return the estimated cardinality of all of the tracked dimensions, by meter name and dimension key.
+     */
+    public Map<String, Map<String, Long>> getEstimates() {
+        final Map<String, Map<String, Long>> estimates = new LinkedHashMap<>();
+        dimensions.forEach((meterName, meterDimensions) -> {
+            final Map<String, Long> meterEstimates = new LinkedHashMap<>();
+            meterDimensions.forEach((key, dimension) -> meterEstimates.put(key, dimension.sketch.estimate()));
+            estimates.put(meterName, meterEstimates);
+        });
+        return estimates;
+    }
+
+    /**
+     * @return the amount of dimension values which weren't tracked (or admitted) as the memory budget was used up.
+     */
+    public long getUntrackedValueCount() {
+        return untrackedValues.sum();
+    }
+
+    public CardinalityPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the replacement of the given value, or null if the value should be kept.
+     */
+    private String track(final String meterName, final String key, final String value) {
+        final Dimension dimension = dimensionOf(meterName, key);
+        if (dimension == null) {
+            return null;
+        }
+
+        final long hash = HyperLogLog.hash(value);
+        final boolean sketchChanged = dimension.sketch.addHash(hash);
+        if (policy == CardinalityPolicy.TRACK_ONLY) {
+            if (sketchChanged && !dimension.exceeded && dimension.sketch.estimate() > dimension.maxCardinality) {
+                exceeded(meterName, key, dimension);
+            }
+            return null;
+        }
+
+        if (dimension.isAdmitted(hash)) {
+            return null;
+        }
+        final int admission = admit(dimension, hash);
+        if (admission == ADMITTED) {
+            return null;
+        }
+        if (admission == NO_MEMORY) {
+            untrackedValues.increment();
+            if (policy == CardinalityPolicy.OVERFLOW && dimension.sketch.estimate() <= dimension.maxCardinality) {
+                return null;
+            }
+        }
+
+        if (!dimension.exceeded && admission == FULL) {
+            exceeded(meterName, key, dimension);
+        }
+        switch (policy) {
+            case BUCKET:
+                return BUCKET_VALUE_PREFIX + Math.floorMod(hash, (long) dimension.bucketCount());
+            case OVERFLOW:
+                return OVERFLOW_VALUE;
+            default:
+                return null;
+        }
+    }
+
+    private void exceeded(final String meterName, final String key, final Dimension dimension) {
+        dimension.exceeded = true;
+        LOGGER.warn("The cardinality of dimension '{}' of meter '{}' exceeded {} (policy: {})", key, meterName,
+                dimension.maxCardinality, policy);
+    }
+
+    /**
+     * Adds a value to the admitted values of its dimension, unless the dimension already has as many admitted values
+     * as its policy allows (or the memory budget is used up).
+     * @return {@link #ADMITTED}, {@link #FULL} or {@link #NO_MEMORY}.
+     */
+    private int admit(final Dimension dimension, final long hash) {
+        synchronized (dimension) {
+            long[] table = dimension.admitted;
+            if (table != null && AdmittedValues.contains(table, hash)) {
+                return ADMITTED;
+            }
+            if (dimension.admittedCount >= dimension.admissionLimit) {
+                return FULL;
+            }
+
+            if (table == null || AdmittedValues.isFull(table, dimension.admittedCount + 1)) {
+                final int capacity = table == null ? AdmittedValues.INITIAL_CAPACITY : table.length * 2;
+                if (!reserve((long) (capacity - (table == null ? 0 : table.length)) * Long.BYTES)) {
+                    return NO_MEMORY;
+                }
+                table = AdmittedValues.copy(table, capacity);
+            }
+            AdmittedValues.add(table, hash);
+            dimension.admittedCount++;
+            // Publishes the new value (and a new table) to the lookups, which don't lock.
+            dimension.admitted = table;
+            return ADMITTED;
+        }
+    }
+
+    /**
+     * @return true if the given amount of bytes fit in the memory budget (and were taken from it).
+     */
+    private boolean reserve(final long bytes) {
+        while (true) {
+            final long used = usedBytes.get();
+            if (used + bytes > memoryBudgetInBytes) {
+                return false;
+            }
+            if (usedBytes.compareAndSet(used, used + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    private Dimension dimensionOf(final String meterName, final String key) {
+        ConcurrentHashMap<String, Dimension> meterDimensions = dimensions.get(meterName);
+        final Dimension dimension = meterDimensions == null ? null : meterDimensions.get(key);
+        if (dimension != null) {
+            return dimension;
+        }
+
+        final long sketchBytes = HyperLogLog.sizeInBytes(precision);
+        if (usedBytes.get() + sketchBytes > memoryBudgetInBytes) {
+            // Don't add meter names (or dimensions) which can't be tracked.
+            untrackedValues.increment();
+            return null;
+        }
+
+        if (meterDimensions == null) {
+            meterDimensions = dimensions.computeIfAbsent(meterName, name -> new ConcurrentHashMap<>());
+        }
+        final Dimension tracked = meterDimensions.computeIfAbsent(key, newKey -> !reserve(sketchBytes) ? null :
+                new Dimension(new HyperLogLog(precision), maxCardinality(meterName, newKey), policy));
+        if (tracked == null) {
+            untrackedValues.increment();
+        }
+        return tracked;
+    }
+
+    private int maxCardinality(final String meterName, final String key) {
+        final Map<String, Integer> meterLimits = maxCardinalities.get(meterName);
+        final Integer limit = meterLimits == null ? null : meterLimits.get(key);
+        return limit == null ? defaultMaxCardinality : limit;
+    }
+
+    private static final class Dimension {
+        private final HyperLogLog sketch;
+        private final int maxCardinality;
+        // The max amount of admitted values. With the BUCKET policy, the rest of the max cardinality is left for the
+        // buckets.
+        private final int admissionLimit;
+        // The hashes of the values which were admitted before the dimension had its max cardinality (see
+        // AdmittedValues). Written while holding the dimension, and read without it.
+        private volatile long[] admitted;
+        private volatile int admittedCount;
+        private volatile boolean exceeded;
+
+        private Dimension(final HyperLogLog sketch, final int maxCardinality, final CardinalityPolicy policy) {
+            this.sketch = sketch;
+            this.maxCardinality = maxCardinality;
+            this.admissionLimit = policy == CardinalityPolicy.BUCKET ? maxCardinality / 2 : maxCardinality;
+        }
+
+        /**
+         * @return the amount of buckets of the values which weren't admitted. Once a value isn't admitted, the admitted
+         * values no longer change (they are at their limit, or the memory budget is used up), so neither do the buckets.
+         */
+        private int bucketCount() {
+            return maxCardinality - admittedCount;
+        }
+
+        private boolean isAdmitted(final long hash) {
+            final long[] table = admitted;
+            return table != null && AdmittedValues.contains(table, hash);
+        }
+    }
+
+    /**
+     * An open addressing set of value hashes (0 marks an empty slot), kept at a load factor of up to 3/4.
+     */
+    private static final class AdmittedValues {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private AdmittedValues() {
+        }
+
+        private static boolean contains(final long[] table, final long hash) {
+            final long key = key(hash);
+            final int mask = table.length - 1;
+            for (int index = index(key, mask); ; index = (index + 1) & mask) {
+                final long slot = table[index];
+                if (slot == key) {
+                    return true;
+                }
+                if (slot == 0) {
+                    return false;
+                }
+            }
+        }
+
+        private static boolean isFull(final long[] table, final int size) {
+            return size * 4L > table.length * 3L;
+        }
+
+        private static void add(final long[] table, final long hash) {
+            final long key = key(hash);
+            final int mask = table.length - 1;
+            int index = index(key, mask);
+            while (table[index] != 0 && table[index] != key) {
+                index = (index + 1) & mask;
+            }
+            table[index] = key;
+        }
+
+        private static long[] copy(final long[] table, final int capacity) {
+            final long[] copy = new long[capacity];
+            if (table != null) {
+                for (final long key : table) {
+                    if (key != 0) {
+                        add(copy, key);
+                    }
+                }
+            }
+            return copy;
+        }
+
+        private static long key(final long hash) {
+            return hash == 0 ? 1 : hash;
+        }
+
+        private static int index(final long key, final int mask) {
+            return (int) (key ^ (key >>> 32)) & mask;
+        }
+    }
+
+    public static class Builder {
+        private int defaultMaxCardinality = DEFAULT_MAX_CARDINALITY;
+        private final Map<String, Map<String, Integer>> maxCardinalities = new HashMap<>();
+        private CardinalityPolicy policy = CardinalityPolicy.TRACK_ONLY;
+        private int precision = HyperLogLog.DEFAULT_PRECISION;
+        private long memoryBudgetInBytes = DEFAULT_MEMORY_BUDGET_IN_BYTES;
+
+        private Builder() {
+        }
+
+        /**
+         * Optional - defaults to {@link #DEFAULT_MAX_CARDINALITY}. The max cardinality of dimensions which have no
+         * limit of their own.
+         */
+        public Builder setMaxCardinality(final int maxCardinality) {
+            this.defaultMaxCardinality = validMaxCardinality(maxCardinality);
+            return this;
+        }
+
+        public Builder setMaxCardinality(final String meterName, final String dimensionKey,
+                                         final int maxCardinality) {
+            maxCardinalities.computeIfAbsent(meterName, name -> new HashMap<>())
+                    .put(dimensionKey, validMaxCardinality(maxCardinality));
+            return this;
+        }
+
+        /**
+         * Optional - defaults to {@link CardinalityPolicy#TRACK_ONLY}.
+         */
+        public Builder setPolicy(final CardinalityPolicy policy) {
+            this.policy = policy;
+            return this;
+        }
+
+        /**
+         * Optional - defaults to {@link HyperLogLog#DEFAULT_PRECISION}. Each sketch uses 2^precision bytes.
+         */
+        public Builder setPrecision(final int precision) {
+            this.precision = precision;
+            return this;
+        }
+
+        /**
+         * Optional - defaults to {@link #DEFAULT_MEMORY_BUDGET_IN_BYTES}. The memory of all of the sketches and admitted
+         * values.
+         */
+        public Builder setMemoryBudgetInBytes(final long memoryBudgetInBytes) {
+            this.memoryBudgetInBytes = memoryBudgetInBytes;
+            return this;
+        }
+
+        public CardinalityGuard build() {
+            if (precision < 4 || precision > 16 || memoryBudgetInBytes <= 0) {
+                throw new IllegalArgumentException("Invalid cardinality guard settings: precision=" + precision +
+                        ", memoryBudgetInBytes=" + memoryBudgetInBytes);
+            }
+            return new CardinalityGuard(this);
+        }
+
+        private static int validMaxCardinality(final int maxCardinality) {
+            if (maxCardinality <= 0) {
+                throw new IllegalArgumentException("maxCardinality must be positive: " + maxCardinality);
+            }
+            return maxCardinality;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.amberflo.metering.pipeline;
+
+/**
+ * What the {@link CardinalityGuard} does with the values of a dimension whose cardinality exceeded its limit.
+ */
+public enum CardinalityPolicy {
+    /**
+     * Keep the values as is (the guard only tracks the cardinality and logs a warning).
+     */
+    TRACK_ONLY,
+    /**
+     * Keep the first half of the 'maxCardinality' values, and replace each new value with one of the rest as stable
+     * hash buckets ('bucket-0', 'bucket-1', etc), so the values can still be grouped, but the dimension never has more
+     * than 'maxCardinality' values.
+     */
+    BUCKET,
+    /**
+     * Replace the new values with {@link CardinalityGuard#OVERFLOW_VALUE} (the values which were seen before the
+     * limit was reached are kept).
+     */
+    OVERFLOW
+}
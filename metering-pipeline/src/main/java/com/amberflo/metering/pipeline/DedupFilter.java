@@ -0,0 +1,130 @@
+package com.amberflo.metering.pipeline;
+
+import com.amberflo.metering.pipeline.metrics.HyperLogLog;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A time windowed filter of the idempotency keys of the meters a {@link MeterPipeline} already sent (see
+ * {@link MeterPipeline.Builder#setDedupFilter(DedupFilter)}), so meters which are queued again (replayed after a
+ * restart, re-metered by a retrying caller, etc) aren't sent twice.
+ *
+ * The filter is made of 2 bloom filters with a fixed memory - the current one, and the one of the previous window.
+ * When the current one is older than the window, it becomes the previous one, and the old previous one is cleared. So a
+ * key is remembered for at least one window (and up to two).
+ *
+ * A bloom filter has false positives - a new key might be considered as a duplicate, and its meter dropped. The filter
+ * is sized by the expected amount of keys per window and the false positive probability (the default is 1 in a
+ * million), so keep the expected amount of keys realistic. It's not thread safe - the pipeline synchronizes on it, as
+ * it might send batches in parallel while it is closed.
+ */
+public class DedupFilter {
+    public static final long DEFAULT_WINDOW_IN_SEC = TimeUnit.HOURS.toSeconds(1);
+    public static final int DEFAULT_EXPECTED_KEYS_PER_WINDOW = 1_000_000;
+    public static final double DEFAULT_FALSE_POSITIVE_PROBABILITY = 1e-6;
+
+    private final long windowInNanos;
+    private final int hashFunctions;
+    private final int bitsPerFilter;
+    private long[] current;
+    private long[] previous;
+    private long currentStartNanos;
+
+    /**
+     * A filter with a window of 1 hour, for 1M keys per window with a false positive probability of 1e-6 (about 7MB).
+     */
+    public DedupFilter() {
+        this(DEFAULT_WINDOW_IN_SEC, DEFAULT_EXPECTED_KEYS_PER_WINDOW, DEFAULT_FALSE_POSITIVE_PROBABILITY);
+    }
+
+    public DedupFilter(final long windowInSec, final int expectedKeysPerWindow,
+                       final double falsePositiveProbability) {
+        if (windowInSec <= 0 || expectedKeysPerWindow <= 0 ||
+                !(falsePositiveProbability > 0 && falsePositiveProbability < 1)) {
+            throw new IllegalArgumentException("Invalid dedup filter settings: windowInSec=" + windowInSec +
+                    ", expectedKeysPerWindow=" + expectedKeysPerWindow + ", falsePositiveProbability=" +
+                    falsePositiveProbability);
+        }
+
+        // The optimal bloom filter size and amount of hash functions.
+        final double bits = -expectedKeysPerWindow * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2));
+        this.bitsPerFilter = (int) Math.min(Integer.MAX_VALUE - Long.SIZE, Math.ceil(bits));
+        this.hashFunctions = Math.max(1, (int) Math.round(bits / expectedKeysPerWindow * Math.log(2)));
+        this.windowInNanos = TimeUnit.SECONDS.toNanos(windowInSec);
+
+        this.current = new long[(bitsPerFilter + Long.SIZE - 1) / Long.SIZE];
+        this.previous = new long[current.length];
+        this.currentStartNanos = System.nanoTime();
+    }
+
+    /**
+     * @return true if the key of the given meter was (probably) already added in the last window.
+     */
+    public boolean mightContain(final QueuedMeter meter) {
+        return mightContain(hash(meter));
+    }
+
+    /**
+     * Adds the key of the given meter.
+     */
+    public void add(final QueuedMeter meter) {
+        add(hash(meter));
+    }
+
+    /**
+     * @return the memory used by the filter.
+     */
+    public long getSizeInBytes() {
+        return (long) (current.length + previous.length) * Long.BYTES;
+    }
+
+    static long hash(final QueuedMeter meter) {
+        return HyperLogLog.hash(meter.getUniqueId());
+    }
+
+    boolean mightContain(final long hash) {
+        rotate();
+        return contains(current, hash) || contains(previous, hash);
+    }
+
+    void add(final long hash) {
+        rotate();
+        // Double hashing - the i-th bit index is h1 + i * h2.
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashFunctions; i++) {
+            final int bit = Math.floorMod(h1 + i * h2, bitsPerFilter);
+            current[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private boolean contains(final long[] filter, final long hash) {
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashFunctions; i++) {
+            final int bit = Math.floorMod(h1 + i * h2, bitsPerFilter);
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rotate() {
+        final long now = System.nanoTime();
+        if (now - currentStartNanos < windowInNanos) {
+            return;
+        }
+
+        final long[] cleared = previous;
+        Arrays.fill(cleared, 0);
+        if (now - currentStartNanos >= 2 * windowInNanos) {
+            // Both windows are over.
+            Arrays.fill(current, 0);
+        }
+        previous = current;
+        current = cleared;
+        currentStartNanos = now;
+    }
+}
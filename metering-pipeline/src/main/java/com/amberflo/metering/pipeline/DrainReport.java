@@ -0,0 +1,54 @@
+package com.amberflo.metering.pipeline;
+
+/**
+ * The outcome of closing a {@link MeterPipeline} (see {@link MeterPipeline#close(java.time.Duration)}) - how many of
+ * the meters which were pending on close were sent, persisted to the spill file for the next start, or dropped.
+ */
+public final class DrainReport {
+    public static final DrainReport EMPTY = new DrainReport(0, 0, 0, 0);
+
+    private final long flushed;
+    private final long persisted;
+    private final long dropped;
+    private final long durationInMillis;
+
+    public DrainReport(final long flushed, final long persisted, final long dropped, final long durationInMillis) {
+        this.flushed = flushed;
+        this.persisted = persisted;
+        this.dropped = dropped;
+        this.durationInMillis = durationInMillis;
+    }
+
+    /**
+     * @return the amount of meters which were sent (or dropped as duplicates of meters which were already sent).
+     */
+    public long getFlushed() {
+        return flushed;
+    }
+
+    /**
+     * @return the amount of meters which weren't sent before the deadline (or failed), and were written to the spill
+     * file.
+     */
+    public long getPersisted() {
+        return persisted;
+    }
+
+    /**
+     * @return the amount of meters which weren't sent and weren't persisted (there is no spill file, or writing it
+     * failed).
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getDurationInMillis() {
+        return durationInMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "flushed=" + flushed + ", persisted=" + persisted + ", dropped=" + dropped + ", durationInMillis=" +
+                durationInMillis;
+    }
+}
@@ -0,0 +1,378 @@
+package com.amberflo.metering.pipeline;
+
+import com.amberflo.metering.pipeline.jfr.BatchSerializedEvent;
+import com.amberflo.metering.pipeline.jfr.MeteringEvents;
+import com.amberflo.metering.pipeline.metrics.PipelineMetrics;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A {@link MeterSender} which appends the meters to local NDJSON files - a meter record per line (see
+ * {@link MeterRecords}), optionally gzipped. Use it for capturing real traffic in dev, or for writing the meters
+ * locally (at the edge) and shipping them later with the `meter upload` command of the metering-cli.
+ *
+ * The sender writes to a '.part' file, which is rotated once it reaches 'maxFileSizeInBytes' or is older than
+ * 'maxFileAgeInSec' (also while the sender is idle), and when the sender is closed. Rotating a file renames it to
+ * its final name ('meters-[UTC time]-[pid]-[sequence].ndjson' or '.ndjson.gz'), so a file without the '.part' suffix
+ * is complete and can be uploaded.
+ *
+ * Each batch is serialized in memory, and then written to the file at once (a gzipped file gets a gzip member per
+ * batch), so the files can be tailed. When a write fails (for example the disk is full), the file is truncated back
+ * to the end of the previous batch and rotated, so only the failed batch goes back to the pipeline. Only if the
+ * truncation fails too does the file get a '.broken' suffix instead (and isn't uploaded). The writes aren't
+ * interruptible, so a pipeline which interrupts its senders on close doesn't break the file.
+ */
+public class FileSinkSender implements MeterSender {
+    public static final String CLIENT_TYPE = "FileSinkClient";
+    public static final String DEFAULT_DIRECTORY = "meters";
+    public static final long DEFAULT_MAX_FILE_SIZE_IN_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_MAX_FILE_AGE_IN_SEC = TimeUnit.MINUTES.toSeconds(15);
+    public static final String FILE_PREFIX = "meters-";
+    public static final String NDJSON_SUFFIX = ".ndjson";
+    public static final String GZIP_SUFFIX = ".gz";
+    public static final String PART_SUFFIX = ".part";
+    public static final String BROKEN_SUFFIX = ".broken";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileSinkSender.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final DateTimeFormatter FILE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    // Shared by all of the senders of the process, so they can write to the same directory.
+    private static final AtomicLong FILE_SEQUENCE = new AtomicLong();
+
+    private final Path directory;
+    private final long maxFileSizeInBytes;
+    private final long maxFileAgeInNanos;
+    private final boolean gzip;
+    private final long pid = ProcessHandle.current().pid();
+    private volatile PipelineMetrics metrics;
+
+    // The current file (null until the first batch). Guarded by the sender, as a pipeline which is closed might send
+    // its pending batches in parallel. A RandomAccessFile rather than a FileChannel, as an interrupt closes a channel.
+    private Path partFile;
+    private RandomAccessFile file;
+    private long fileOpenedAtNanos;
+    private BatchBuffer buffer = new BatchBuffer();
+    private ScheduledFuture<?> ageRotation;
+
+    private FileSinkSender(final Builder builder) {
+        this.directory = builder.directory;
+        this.maxFileSizeInBytes = builder.maxFileSizeInBytes;
+        this.maxFileAgeInNanos = TimeUnit.SECONDS.toNanos(builder.maxFileAgeInSec);
+        this.gzip = builder.gzip;
+    }
+
+    public static Builder builder(final Path directory) {
+        return new Builder(directory);
+    }
+
+    /**
+     * @return a sender according to the "directory", "maxFileSizeInBytes", "maxFileAgeInSec" and "gzip" params of
+     * the current metering config.
+     */
+    public static FileSinkSender fromConfig() {
+        final JsonElement paramsElement = MeteringConfig.read().get("params");
+        return fromConfig(paramsElement == null ? new JsonObject() : paramsElement.getAsJsonObject());
+    }
+
+    static FileSinkSender fromConfig(final JsonObject params) {
+        final Builder builder = builder(Paths.get(params.has("directory") ?
+                params.get("directory").getAsString() : DEFAULT_DIRECTORY));
+        if (params.has("maxFileSizeInBytes")) {
+            builder.setMaxFileSizeInBytes(params.get("maxFileSizeInBytes").getAsLong());
+        }
+        if (params.has("maxFileAgeInSec")) {
+            builder.setMaxFileAgeInSec(params.get("maxFileAgeInSec").getAsLong());
+        }
+        if (params.has("gzip")) {
+            builder.setGzip(params.get("gzip").getAsBoolean());
+        }
+        return builder.build();
+    }
+
+    @Override
+    public synchronized void send(final List<QueuedMeter> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (file != null && System.nanoTime() - fileOpenedAtNanos >= maxFileAgeInNanos) {
+            rotate();
+        }
+
+        final BatchSerializedEvent event = MeteringEvents.beginBatchSerialization();
+        serialize(batch);
+        final long bytes = buffer.size();
+        if (file == null) {
+            open();
+        }
+        final long startPosition = file.getFilePointer();
+        try {
+            buffer.writeTo(file);
+        } catch (final IOException e) {
+            // The previous batches were already sent, so keep them, and complete the file without this batch.
+            truncateAndRotate(startPosition);
+            throw e;
+        } finally {
+            if (buffer.size() > MAX_RETAINED_BUFFER_SIZE) {
+                buffer = new BatchBuffer();
+            }
+        }
+        MeteringEvents.endBatchSerialization(event, CLIENT_TYPE, batch.size(), bytes);
+        final PipelineMetrics currentMetrics = metrics;
+        if (currentMetrics != null) {
+            currentMetrics.recordBytesSent(bytes);
+        }
+
+        if (file.getFilePointer() >= maxFileSizeInBytes) {
+            rotate();
+        }
+    }
+
+    /**
+     * Serializes the batch into the buffer - as a gzip member of its own if the file is gzipped, so the file can be
+     * truncated back to the end of any batch.
+     */
+    private void serialize(final List<QueuedMeter> batch) throws IOException {
+        buffer.reset();
+        final OutputStream stream = gzip ? new GZIPOutputStream(buffer, BUFFER_SIZE) : buffer;
+        final Writer textWriter = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+        final JsonWriter jsonWriter = new JsonWriter(textWriter);
+        // A json value per line.
+        jsonWriter.setLenient(true);
+        for (final QueuedMeter meter : batch) {
+            MeterRecords.write(jsonWriter, meter);
+            textWriter.write('\n');
+        }
+        jsonWriter.flush();
+        // Also completes the gzip member.
+        textWriter.close();
+    }
+
+    @Override
+    public String getClientType() {
+        return CLIENT_TYPE;
+    }
+
+    @Override
+    public boolean sendsIdempotencyKeys() {
+        return true;
+    }
+
+    @Override
+    public void setMetrics(final PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Completes the current file.
+     */
+    @Override
+    public synchronized void close() {
+        if (file == null) {
+            return;
+        }
+        final Path file = partFile;
+        try {
+            rotate();
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to complete the meters file {}", file, e);
+        }
+    }
+
+    /**
+     * Rotates the current file if it reached its max age while the sender was idle.
+     */
+    private synchronized void rotateIfExpired() {
+        if (file == null || System.nanoTime() - fileOpenedAtNanos < maxFileAgeInNanos) {
+            return;
+        }
+        final Path file = partFile;
+        try {
+            rotate();
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to complete the meters file {}", file, e);
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(directory);
+        final String name = FILE_PREFIX + FILE_TIME_FORMAT.format(ZonedDateTime.now(ZoneOffset.UTC)) + "-" + pid +
+                "-" + String.format("%06d", FILE_SEQUENCE.getAndIncrement()) + NDJSON_SUFFIX + (gzip ? GZIP_SUFFIX : "");
+        partFile = directory.resolve(name + PART_SUFFIX);
+        Files.createFile(partFile);
+        file = new RandomAccessFile(partFile.toFile(), "rw");
+        fileOpenedAtNanos = System.nanoTime();
+        ageRotation = AgeRotation.EXECUTOR.schedule(this::rotateIfExpired, maxFileAgeInNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void rotate() throws IOException {
+        final Path completed = partFile;
+        final boolean empty = file.length() == 0;
+        closeFile();
+        if (empty) {
+            Files.delete(completed);
+        } else {
+            Files.move(completed, completed.resolveSibling(finalName(completed)), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Removes a batch whose write failed from the end of the current file, and completes the file. If the file can't
+     * be truncated, it might end with a partial batch, so it is marked as broken instead.
+     */
+    private void truncateAndRotate(final long batchPosition) {
+        final Path current = partFile;
+        try {
+            file.setLength(batchPosition);
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to truncate the failed batch of the meters file {}", current, e);
+            markBroken();
+            return;
+        }
+
+        try {
+            rotate();
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to complete the meters file {}", current, e);
+        }
+    }
+
+    private void markBroken() {
+        final Path broken = partFile;
+        try {
+            closeFile();
+        } catch (final IOException e) {
+            LOGGER.debug("Failed to close the broken meters file {}", broken, e);
+        }
+
+        try {
+            Files.move(broken, broken.resolveSibling(finalName(broken) + BROKEN_SUFFIX),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            LOGGER.warn("Failed to mark the meters file {} as broken", broken, e);
+        }
+    }
+
+    private void closeFile() throws IOException {
+        if (ageRotation != null) {
+            ageRotation.cancel(false);
+        }
+        try {
+            file.close();
+        } finally {
+            file = null;
+            partFile = null;
+            ageRotation = null;
+        }
+    }
+
+    private static String finalName(final Path partFile) {
+        final String name = partFile.getFileName().toString();
+        return name.substring(0, name.length() - PART_SUFFIX.length());
+    }
+
+    /**
+     * A reusable buffer for serializing a batch, which is written to the file with a single call.
+     */
+    private static final class BatchBuffer extends ByteArrayOutputStream {
+        private BatchBuffer() {
+            super(BUFFER_SIZE);
+        }
+
+        private void writeTo(final RandomAccessFile file) throws IOException {
+            file.write(buf, 0, count);
+        }
+    }
+
+    /**
+     * Rotates the files which reached their max age while their senders were idle. Shared by all of the senders.
+     */
+    private static final class AgeRotation {
+        private static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, task -> {
+            final Thread thread = new Thread(task, "meter-file-sink-rotation");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        static {
+            EXECUTOR.setRemoveOnCancelPolicy(true);
+        }
+
+        private AgeRotation() {
+        }
+    }
+
+    public static class Builder {
+        private final Path directory;
+        private long maxFileSizeInBytes = DEFAULT_MAX_FILE_SIZE_IN_BYTES;
+        private long maxFileAgeInSec = DEFAULT_MAX_FILE_AGE_IN_SEC;
+        private boolean gzip;
+
+        private Builder(final Path directory) {
+            if (directory == null) {
+                throw new IllegalArgumentException("directory is required");
+            }
+            this.directory = directory;
+        }
+
+        /**
+         * Optional - the size (on disk) after which a file is rotated. Defaults to 64MB.
+         */
+        public Builder setMaxFileSizeInBytes(final long maxFileSizeInBytes) {
+            this.maxFileSizeInBytes = maxFileSizeInBytes;
+            return this;
+        }
+
+        /**
+         * Optional - the age after which a file is rotated. Defaults to 15 minutes.
+         */
+        public Builder setMaxFileAgeInSec(final long maxFileAgeInSec) {
+            this.maxFileAgeInSec = maxFileAgeInSec;
+            return this;
+        }
+
+        /**
+         * Optional - gzip the files. Defaults to false.
+         */
+        public Builder setGzip(final boolean gzip) {
+            this.gzip = gzip;
+            return this;
+        }
+
+        public FileSinkSender build() {
+            if (maxFileSizeInBytes <= 0 || maxFileAgeInSec <= 0) {
+                throw new IllegalArgumentException("Invalid file sink settings: maxFileSizeInBytes=" +
+                        maxFileSizeInBytes + ", maxFileAgeInSec=" + maxFileAgeInSec);
+            }
+            return new FileSinkSender(this);
+        }
+    }
+}
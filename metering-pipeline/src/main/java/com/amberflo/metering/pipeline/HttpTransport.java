@@ -0,0 +1,171 @@
+package com.amberflo.metering.pipeline;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An HTTP transport which can be shared by all of the senders (and other http calls) of a process, so they share its
+ * connections instead of each paying for its own TCP and TLS handshakes.
+ *
+ * 1. Connections are pooled and kept alive between requests (for 'jdk.httpclient.keepalive.timeout' seconds - a
+ *    system property of the JDK http client).
+ * 2. HTTP/2 is negotiated when the server supports it, so concurrent requests to the same host are multiplexed over a
+ *    single connection.
+ * 3. Gzip responses are requested and decompressed.
+ * 4. The amount of concurrent requests per host is limited, so a burst of senders can't open an unbounded amount of
+ *    HTTP/1.1 connections (or exceed the stream limit of an HTTP/2 connection).
+ *
+ * The {@link IngestApiSender}s use the {@link #shared()} transport unless they are given one of their own. The usage
+ * and invoice clients of the metering client don't use it (they create their own connections).
+ */
+public class HttpTransport {
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 16;
+    public static final int DEFAULT_CONNECT_TIMEOUT_IN_SEC = 10;
+
+    private static final String GZIP = "gzip";
+
+    private final HttpClient httpClient;
+    private final boolean decompress;
+    private final int maxRequestsPerHost;
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+    private HttpTransport(final Builder builder) {
+        this.httpClient = HttpClient.newBuilder()
+                .version(builder.http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(builder.connectTimeoutInSec))
+                .build();
+        this.decompress = builder.decompress;
+        this.maxRequestsPerHost = builder.maxRequestsPerHost;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return a process wide transport with the default settings (created on the first call).
+     */
+    public static HttpTransport shared() {
+        return SharedHolder.SHARED;
+    }
+
+    /**
+     * Sends a request, and waits for a permit of its host first (if the host already has 'maxRequestsPerHost'
+     * requests in flight).
+     * @param request the request builder isn't modified, so it can be sent again (for example when retrying).
+     * @return the response, with a decompressed body.
+     */
+    public HttpResponse<String> send(final HttpRequest.Builder request) throws IOException, InterruptedException {
+        final HttpRequest.Builder copy = request.copy();
+        if (decompress) {
+            copy.setHeader("Accept-Encoding", GZIP);
+        }
+        final HttpRequest httpRequest = copy.build();
+
+        final Semaphore permits = hostPermits.computeIfAbsent(hostOf(httpRequest.uri()),
+                host -> new Semaphore(maxRequestsPerHost, true));
+        permits.acquire();
+        try {
+            // A malformed gzip body fails the call with an IOException.
+            return httpClient.send(httpRequest, HttpTransport::bodyHandler);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * @return the amount of requests which are currently sent to the given host (by its "host:port").
+     */
+    public int getRequestsInFlight(final String host) {
+        final Semaphore permits = hostPermits.get(host);
+        return permits == null ? 0 : maxRequestsPerHost - permits.availablePermits();
+    }
+
+    public int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    static String hostOf(final URI uri) {
+        final int port = uri.getPort() != -1 ? uri.getPort() : "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        return uri.getHost() + ":" + port;
+    }
+
+    private static HttpResponse.BodySubscriber<String> bodyHandler(final HttpResponse.ResponseInfo response) {
+        final boolean gzipped = response.headers().firstValue("Content-Encoding")
+                .map(GZIP::equalsIgnoreCase)
+                .orElse(false);
+        if (!gzipped) {
+            return HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8);
+        }
+
+        return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofByteArray(), bytes -> {
+            try (final GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+                return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static final class SharedHolder {
+        private static final HttpTransport SHARED = builder().build();
+    }
+
+    public static class Builder {
+        private int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+        private int connectTimeoutInSec = DEFAULT_CONNECT_TIMEOUT_IN_SEC;
+        private boolean http2 = true;
+        private boolean decompress = true;
+
+        private Builder() {
+        }
+
+        /**
+         * Optional - defaults to {@link #DEFAULT_MAX_REQUESTS_PER_HOST}. Requests beyond the limit wait for a permit.
+         */
+        public Builder setMaxRequestsPerHost(final int maxRequestsPerHost) {
+            this.maxRequestsPerHost = maxRequestsPerHost;
+            return this;
+        }
+
+        public Builder setConnectTimeoutInSec(final int connectTimeoutInSec) {
+            this.connectTimeoutInSec = connectTimeoutInSec;
+            return this;
+        }
+
+        /**
+         * Optional - defaults to true. Set to false in order to always use HTTP/1.1.
+         */
+        public Builder setHttp2(final boolean http2) {
+            this.http2 = http2;
+            return this;
+        }
+
+        /**
+         * Optional - defaults to true. Requests gzip responses, and decompresses them.
+         */
+        public Builder setDecompress(final boolean decompress) {
+            this.decompress = decompress;
+            return this;
+        }
+
+        public HttpTransport build() {
+            if (maxRequestsPerHost <= 0 || connectTimeoutInSec <= 0) {
+                throw new IllegalArgumentException("Invalid transport settings: maxRequestsPerHost=" +
+                        maxRequestsPerHost + ", connectTimeoutInSec=" + connectTimeoutInSec);
+            }
+            return new HttpTransport(this);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.amberflo.metering.pipeline;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates the idempotency keys (the 'uniqueId' of the ingest api) of the queued meters.
+ *
+ * A key is a random per process prefix and a sequence number, so generating one costs a single atomic increment
+ * (unlike a random UUID, which needs a secure random per key). A meter holds only its sequence number, and the key
+ * string is created when the meter is sent.
+ */
+final class IdempotencyKeys {
+    private static final String PREFIX = randomPrefix();
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private IdempotencyKeys() {
+    }
+
+    static long next() {
+        return SEQUENCE.incrementAndGet();
+    }
+
+    static String format(final long sequence) {
+        return PREFIX + Long.toHexString(sequence);
+    }
+
+    private static String randomPrefix() {
+        final long random = new SecureRandom().nextLong();
+        return String.format("%016x-", random);
+    }
+}
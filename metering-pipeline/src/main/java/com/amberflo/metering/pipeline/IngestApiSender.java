@@ -0,0 +1,179 @@
+package com.amberflo.metering.pipeline;
+
+import com.amberflo.metering.pipeline.jfr.BatchSerializedEvent;
+import com.amberflo.metering.pipeline.jfr.MeteringEvents;
+import com.amberflo.metering.pipeline.metrics.PipelineMetrics;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * A {@link MeterSender} which posts the meters to the ingest api, along with their idempotency keys (the "uniqueId"
+ * of each meter record - see {@link MeterRecords}).
+ *
+ * A batch which failed with a timeout, an IO error or a 5xx/429 response is retried up to 'httpRetriesCount' times
+ * (with an exponential backoff). As the meters of a retried batch keep their keys, the ingest api can drop the meters
+ * it already committed, so retrying doesn't double count. The metering client senders generate a new id for each
+ * meter message, so use this sender if you want retries to be safe.
+ */
+public class IngestApiSender implements MeterSender {
+    public static final String DEFAULT_INGEST_URL = "https://app.amberflo.io/ingest";
+    public static final String CLIENT_TYPE = "IngestApiClient";
+    public static final int DEFAULT_HTTP_RETRIES_COUNT = 3;
+    public static final int DEFAULT_HTTP_TIMEOUT_IN_SEC = 30;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IngestApiSender.class);
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5_000;
+
+    private final URI ingestUrl;
+    private final String apiKey;
+    private final int httpRetriesCount;
+    private final Duration httpTimeout;
+    private final HttpTransport transport;
+    private volatile PipelineMetrics metrics;
+
+    public IngestApiSender(final String apiKey) {
+        this(DEFAULT_INGEST_URL, apiKey, DEFAULT_HTTP_RETRIES_COUNT, DEFAULT_HTTP_TIMEOUT_IN_SEC);
+    }
+
+    /**
+     * A sender which uses the {@link HttpTransport#shared()} transport.
+     * @param ingestUrl the ingest api end-point (or a local stand-in for tests).
+     */
+    public IngestApiSender(final String ingestUrl, final String apiKey, final int httpRetriesCount,
+                           final int httpTimeOutSeconds) {
+        this(ingestUrl, apiKey, httpRetriesCount, httpTimeOutSeconds, HttpTransport.shared());
+    }
+
+    /**
+     * @param transport a transport which can be shared by several senders (for example of different api keys), so
+     * they share its connections.
+     */
+    public IngestApiSender(final String ingestUrl, final String apiKey, final int httpRetriesCount,
+                           final int httpTimeOutSeconds, final HttpTransport transport) {
+        if (httpRetriesCount < 0 || httpTimeOutSeconds <= 0) {
+            throw new IllegalArgumentException("Invalid sender settings: httpRetriesCount=" + httpRetriesCount +
+                    ", httpTimeOutSeconds=" + httpTimeOutSeconds);
+        }
+        this.ingestUrl = URI.create(ingestUrl);
+        this.apiKey = apiKey;
+        this.httpRetriesCount = httpRetriesCount;
+        this.httpTimeout = Duration.ofSeconds(httpTimeOutSeconds);
+        this.transport = transport;
+    }
+
+    /**
+     * @return a sender with the "apiKey", "httpRetriesCount" and "httpTimeOutSeconds" params of the current metering
+     * config.
+     */
+    public static IngestApiSender fromConfig() {
+        final JsonElement paramsElement = MeteringConfig.read().get("params");
+        final JsonObject params = paramsElement == null ? new JsonObject() : paramsElement.getAsJsonObject();
+        return new IngestApiSender(DEFAULT_INGEST_URL,
+                params.has("apiKey") ? params.get("apiKey").getAsString() : null,
+                params.has("httpRetriesCount") ? params.get("httpRetriesCount").getAsInt() :
+                        DEFAULT_HTTP_RETRIES_COUNT,
+                params.has("httpTimeOutSeconds") ? params.get("httpTimeOutSeconds").getAsInt() :
+                        DEFAULT_HTTP_TIMEOUT_IN_SEC);
+    }
+
+    @Override
+    public void send(final List<QueuedMeter> batch) throws Exception {
+        final BatchSerializedEvent event = MeteringEvents.beginBatchSerialization();
+        final byte[] payload = serialize(batch);
+        MeteringEvents.endBatchSerialization(event, CLIENT_TYPE, batch.size(), payload.length);
+
+        final HttpRequest.Builder request = HttpRequest.newBuilder(ingestUrl)
+                .timeout(httpTimeout)
+                .header("Content-Type", "application/json")
+                .header("X-API-Key", apiKey == null ? "" : apiKey)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(payload));
+
+        for (int attempt = 0; ; attempt++) {
+            final PipelineMetrics currentMetrics = metrics;
+            if (currentMetrics != null) {
+                currentMetrics.recordBytesSent(payload.length);
+            }
+
+            final String failure = post(request);
+            if (failure == null) {
+                return;
+            }
+            if (attempt >= httpRetriesCount) {
+                throw new IOException("Failed to send a batch of " + batch.size() + " meters after " +
+                        (attempt + 1) + " attempts: " + failure);
+            }
+
+            LOGGER.debug("Retrying a batch of {} meters ({})", batch.size(), failure);
+            if (currentMetrics != null) {
+                currentMetrics.recordRetry();
+            }
+            Thread.sleep(Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << attempt));
+        }
+    }
+
+    @Override
+    public String getClientType() {
+        return CLIENT_TYPE;
+    }
+
+    @Override
+    public boolean sendsIdempotencyKeys() {
+        return true;
+    }
+
+    @Override
+    public void setMetrics(final PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return null if the batch was accepted, or the reason of a retryable failure.
+     * @throws IOException for a failure which isn't worth retrying (a 4xx response).
+     */
+    private String post(final HttpRequest.Builder request) throws IOException, InterruptedException {
+        final HttpResponse<String> response;
+        try {
+            response = transport.send(request);
+        } catch (final IOException e) {
+            // Including timeouts - the batch might have been committed, which is fine as the keys stay the same.
+            MeteringEvents.batchSendStatus(0);
+            return e.toString();
+        }
+
+        final int status = response.statusCode();
+        MeteringEvents.batchSendStatus(status);
+        if (status / 100 == 2) {
+            return null;
+        }
+        if (status / 100 == 5 || status == 429) {
+            return "status " + status;
+        }
+        throw new IOException("The ingest api rejected a batch with status " + status + ": " + response.body());
+    }
+
+    private static byte[] serialize(final List<QueuedMeter> batch) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(batch.size() * 256);
+        try (final JsonWriter writer = new JsonWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8))) {
+            writer.beginArray();
+            for (final QueuedMeter meter : batch) {
+                MeterRecords.write(writer, meter);
+            }
+            writer.endArray();
+        }
+        return bytes.toByteArray();
+    }
+}
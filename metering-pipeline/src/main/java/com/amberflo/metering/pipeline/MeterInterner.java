@@ -0,0 +1,130 @@
+package com.amberflo.metering.pipeline;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bounded table of canonical (shared and immutable) meter attributes.
+ *
+ * Bursts of meters usually differ only by their value and time, while the meter name, customer id, service
+ * name/call and dimensions repeat over and over. Interning these attributes lets all of the queued meters point to the
+ * same instances instead of each one holding its own copy of the strings and its own {@link HashMap}.
+ *
+ * The table is safe to use from many threads. Once it holds {@link #getMaxEntries()} entries (strings and maps are
+ * bounded separately) new values are no longer added, and are returned as is (maps are still copied into an
+ * immutable map). This keeps the memory of the table itself bounded even if a dimension has an unbounded amount of
+ * values (such as a request id).
+ *
+ * You can also use the canonical maps with the {@link com.amberflo.metering.ingest.meter_message.ThreadContext}:
+ * <pre>
+ *     context.properties().setDimensionsMap(interner.dimensions(sessionInfo));
+ * </pre>
+ */
+public class MeterInterner {
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private static final MeterInterner SHARED = new MeterInterner(DEFAULT_MAX_ENTRIES);
+
+    private final int maxEntries;
+    private final ConcurrentHashMap<String, String> strings = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Map<String, String>, Map<String, String>> dimensions = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxEntries the max amount of strings (and separately of dimension maps) the table will hold.
+     */
+    public MeterInterner(final int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return a process wide interner with {@link #DEFAULT_MAX_ENTRIES} entries.
+     */
+    public static MeterInterner shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return the canonical instance of the given string, or the string itself if the table is full.
+     */
+    public String intern(final String value) {
+        if (value == null) {
+            return null;
+        }
+
+        final String canonical = strings.get(value);
+        if (canonical != null) {
+            return canonical;
+        }
+
+        if (strings.size() >= maxEntries) {
+            return value;
+        }
+
+        final String previous = strings.putIfAbsent(value, value);
+        return previous == null ? value : previous;
+    }
+
+    /**
+     * @return the canonical immutable instance of the given dimensions map. An empty map is returned for a null
+     * or empty map.
+     */
+    public Map<String, String> dimensions(final Map<String, String> map) {
+        if (map == null || map.isEmpty()) {
+            return Map.of();
+        }
+
+        final Map<String, String> canonical = dimensions.get(map);
+        if (canonical != null) {
+            return canonical;
+        }
+
+        final Map<String, String> copy = copyOf(map);
+        if (dimensions.size() >= maxEntries) {
+            return copy;
+        }
+
+        final Map<String, String> previous = dimensions.putIfAbsent(copy, copy);
+        return previous == null ? copy : previous;
+    }
+
+    /**
+     * @return true if the given string is the canonical instance held by this table.
+     */
+    public boolean isCanonical(final String value) {
+        return value != null && strings.get(value) == value;
+    }
+
+    /**
+     * @return true if the given map is the canonical instance held by this table.
+     */
+    public boolean isCanonical(final Map<String, String> map) {
+        return map != null && (map.isEmpty() || dimensions.get(map) == map);
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @return the amount of canonical strings and dimension maps in the table.
+     */
+    public int size() {
+        return strings.size() + dimensions.size();
+    }
+
+    private Map<String, String> copyOf(final Map<String, String> map) {
+        final Map<String, String> interned = new HashMap<>(map.size() * 2);
+        for (final Map.Entry<String, String> entry : map.entrySet()) {
+            // null entries are dropped by the json serializer anyway.
+            if (entry.getKey() == null || entry.getValue() == null) {
+                continue;
+            }
+            interned.put(intern(entry.getKey()), intern(entry.getValue()));
+        }
+        return Map.copyOf(interned);
+    }
+}
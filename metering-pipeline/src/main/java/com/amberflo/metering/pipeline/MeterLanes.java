@@ -0,0 +1,167 @@
+package com.amberflo.metering.pipeline;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * The queue of the {@link MeterPipeline} - a bounded queue per {@link MeterPriority}, which share a total capacity.
+ *
+ * 1. Entries are taken by their priority (billing first), and in FIFO order within a lane.
+ * 2. A full lane rejects new entries.
+ * 3. Once the total capacity is reached, a new entry takes the place of the oldest entry of the lowest priority lane
+ *    which is below its own priority. If there is no such entry, the new entry is rejected.
+ *
+ * Like the {@link java.util.concurrent.ArrayBlockingQueue} it replaces, all of the lanes are guarded by a single lock.
+ */
+final class MeterLanes {
+    private static final MeterPriority[] PRIORITIES = MeterPriority.values();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<QueuedMeter>[] lanes;
+    private final int[] laneCapacities;
+    private final int capacity;
+    private final Consumer<QueuedMeter> onEvicted;
+    // Written under the lock, so the sizes can be read without it.
+    private final AtomicIntegerArray laneSizes = new AtomicIntegerArray(PRIORITIES.length);
+    private volatile int size;
+
+    /**
+     * @param laneCapacities the capacity of each lane (by the priority ordinal).
+     * @param onEvicted called (outside of the lock) with entries which were evicted for higher priority ones.
+     */
+    @SuppressWarnings("unchecked")
+    MeterLanes(final int capacity, final int[] laneCapacities, final Consumer<QueuedMeter> onEvicted) {
+        this.capacity = capacity;
+        this.laneCapacities = laneCapacities.clone();
+        this.onEvicted = onEvicted;
+        this.lanes = new ArrayDeque[PRIORITIES.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Adds an entry to the lane of its {@link QueuedMeter#getLane()}.
+     * @return false if the entry was rejected.
+     */
+    boolean offer(final QueuedMeter entry) {
+        final int lane = entry.getLane().ordinal();
+        QueuedMeter evicted = null;
+
+        lock.lock();
+        try {
+            if (laneSizes.get(lane) >= laneCapacities[lane]) {
+                return false;
+            }
+            if (size >= capacity) {
+                evicted = evictBelow(lane);
+                if (evicted == null) {
+                    return false;
+                }
+            }
+
+            lanes[lane].addLast(entry);
+            laneSizes.incrementAndGet(lane);
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        if (evicted != null) {
+            onEvicted.accept(evicted);
+        }
+        return true;
+    }
+
+    /**
+     * Waits up to the given timeout for an entry.
+     * @return the first entry of the highest priority lane, or null if the timeout elapsed.
+     */
+    QueuedMeter poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long remainingNanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (remainingNanos <= 0) {
+                    return null;
+                }
+                remainingNanos = notEmpty.awaitNanos(remainingNanos);
+            }
+            return take();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves up to 'maxEntries' entries to the given list, by their priority.
+     * @return the amount of entries moved.
+     */
+    int drainTo(final List<QueuedMeter> entries, final int maxEntries) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxEntries && size > 0) {
+                entries.add(take());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the total amount of entries.
+     */
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size(final MeterPriority lane) {
+        return laneSizes.get(lane.ordinal());
+    }
+
+    int capacity(final MeterPriority lane) {
+        return laneCapacities[lane.ordinal()];
+    }
+
+    private QueuedMeter take() {
+        for (int lane = 0; lane < lanes.length; lane++) {
+            final QueuedMeter entry = lanes[lane].pollFirst();
+            if (entry != null) {
+                laneSizes.decrementAndGet(lane);
+                size--;
+                return entry;
+            }
+        }
+        throw new IllegalStateException("No entries to take, size: " + size);
+    }
+
+    private QueuedMeter evictBelow(final int lane) {
+        for (int lowerLane = lanes.length - 1; lowerLane > lane; lowerLane--) {
+            final QueuedMeter entry = lanes[lowerLane].pollFirst();
+            if (entry != null) {
+                laneSizes.decrementAndGet(lowerLane);
+                size--;
+                return entry;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,1167 @@
+package com.amberflo.metering.pipeline;
+
+import com.amberflo.metering.pipeline.jfr.BatchAssembledEvent;
+import com.amberflo.metering.pipeline.jfr.BatchSentEvent;
+import com.amberflo.metering.pipeline.jfr.MeteringEvents;
+import com.amberflo.metering.pipeline.jfr.PipelineDrainedEvent;
+import com.amberflo.metering.pipeline.metrics.LaneMetrics;
+import com.amberflo.metering.pipeline.metrics.MetricsRegistry;
+import com.amberflo.metering.pipeline.metrics.PipelineMetrics;
+import com.amberflo.metering.pipeline.usage.UsageMirror;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An async and bounded meters queue with a designated sender thread (or a thread of a shared {@link SenderPool}).
+ *
+ * The pipeline behaves like the async mode of the metering client ('maxAsyncQueueSize', 'maxBatchSize' and
+ * 'maxDelayInSec' have the same meaning), only that the queue holds compact {@link QueuedMeter}s whose attributes
+ * are shared through a {@link MeterInterner}, and that the batches are handed to a pluggable {@link MeterSender}.
+ *
+ * High volume meters can be sampled before they are queued (see {@link MeterSampler}), and dimensions with a too high
+ * cardinality can be capped (see {@link CardinalityGuard}).
+ *
+ * The queue has a lane per {@link MeterPriority}. The billing lane is always drained first, and once the queue is full,
+ * billing meters take the place of lower priority ones. So under overload only the lower priority lanes shed load.
+ * The priority of a meter is either set on the meter itself (see {@link QueuedMeterBuilder#setPriority}), or by its
+ * name (see {@link Builder#setPriority(String, MeterPriority)}).
+ *
+ * The pipeline is thread safe. Call {@link #close()} before exiting your app in order to send the pending meters, or
+ * {@link #close(Duration)} to send them within a deadline (for example the termination grace period of a pod) - the
+ * pending batches are sent in parallel, and the meters which weren't sent by the deadline are persisted to a spill file
+ * (see {@link Builder#setSpillFile(Path)}), and queued again by the next pipeline which is built with the same file.
+ * The pipeline can also close itself from a JVM shutdown hook (see {@link Builder#setShutdownHook(Duration)}).
+ *
+ * Each meter has an idempotency key (see {@link QueuedMeter#getUniqueId()}), which stays the same when it is re-sent,
+ * and the pipeline can drop meters whose keys were already sent (see {@link DedupFilter}).
+ *
+ * The pipeline can also mirror the queued meters to an in-memory {@link UsageMirror}, for local usage queries.
+ *
+ * Each pipeline has {@link PipelineMetrics} (queue depth, batch sizes, latencies, dropped meters, etc) which are
+ * published as a JMX MBean, and can also be reported to your own {@link MetricsRegistry}. The pipeline also emits
+ * Java Flight Recorder events (see {@link MeteringEvents}).
+ *
+ * Several pipelines (for example one per account or tenant) can share a {@link SenderPool}, and be managed by a
+ * {@link MeterPipelines} registry.
+ */
+public class MeterPipeline implements AutoCloseable {
+    public static final int DEFAULT_MAX_ASYNC_QUEUE_SIZE = 100_000;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    public static final double DEFAULT_MAX_DELAY_IN_SEC = 0.5;
+    public static final String DEFAULT_NAME = "default";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MeterPipeline.class);
+    private static final long IDLE_POLL_MILLIS = 100;
+    private static final long CLOSE_POLL_MILLIS = 10;
+    // How long a close which passed its deadline waits for the interrupted senders to let go of their batches.
+    private static final long DEADLINE_GRACE_MILLIS = 50;
+    // The states of the drain task of a pipeline which uses a sender pool.
+    private static final int IDLE = 0;
+    private static final int SCHEDULED = 1;
+    private static final int DRAINING = 2;
+
+    private final String name;
+    private final MeterSender sender;
+    private final MeterInterner interner;
+    private final MeterSampler sampler;
+    private final CardinalityGuard cardinalityGuard;
+    private final Map<String, MeterPriority> priorities;
+    private final UsageMirror usageMirror;
+    private final DedupFilter dedupFilter;
+    private final int maxBatchSize;
+    private final long maxDelayInNanos;
+    private final MeterLanes queue;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final PipelineMetrics metrics;
+    private final LaneMetrics[] laneMetrics = new LaneMetrics[MeterPriority.values().length];
+    private final Thread senderThread;
+    private final SenderPool senderPool;
+    private final AtomicInteger drainState = new AtomicInteger(IDLE);
+    private final int drainParallelism;
+    private final Path spillFile;
+    private final Thread shutdownHook;
+    // The batches which are being sent, so a close which passed its deadline can persist them (a batch is owned by
+    // whoever removes it from the set).
+    private final Set<QueuedMeter[]> inFlight = ConcurrentHashMap.newKeySet();
+    // The meters of batches which failed after the pipeline was closed.
+    private final Queue<QueuedMeter> unsent = new ConcurrentLinkedQueue<>();
+    // The meters which were sent after the pipeline was closed.
+    private final LongAdder flushedOnClose = new LongAdder();
+    private volatile boolean closed;
+
+    private MeterPipeline(final Builder builder) {
+        this.name = builder.name;
+        this.sender = builder.sender;
+        this.interner = builder.interner;
+        this.sampler = builder.sampler;
+        this.cardinalityGuard = builder.cardinalityGuard;
+        this.priorities = Map.copyOf(builder.priorities);
+        this.usageMirror = builder.usageMirror;
+        this.dedupFilter = builder.dedupFilter;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.maxDelayInNanos = (long) (builder.maxDelayInSec * TimeUnit.SECONDS.toNanos(1));
+        final int[] laneCapacities = new int[MeterPriority.values().length];
+        for (final MeterPriority lane : MeterPriority.values()) {
+            laneCapacities[lane.ordinal()] = builder.laneCapacities.getOrDefault(lane, builder.maxAsyncQueueSize);
+        }
+        this.queue = new MeterLanes(builder.maxAsyncQueueSize, laneCapacities, this::evicted);
+
+        this.metrics = new PipelineMetrics(builder.name, sender.getClientType(), queue::size, builder.metricsRegistry);
+        for (final MeterPriority lane : MeterPriority.values()) {
+            laneMetrics[lane.ordinal()] = metrics.addLane(lane.name(), () -> queue.size(lane), queue.capacity(lane));
+        }
+        this.sender.setMetrics(metrics);
+        if (builder.jmxEnabled) {
+            metrics.registerMBean();
+        }
+
+        this.drainParallelism = builder.drainParallelism;
+        this.spillFile = builder.spillFile;
+        this.senderPool = builder.senderPool;
+        if (senderPool == null) {
+            this.senderThread = new Thread(this::sendLoop, "meter-pipeline-sender-" + builder.name);
+            this.senderThread.setDaemon(true);
+            this.senderThread.start();
+        } else {
+            this.senderThread = null;
+        }
+
+        final Duration shutdownDeadline = builder.shutdownDeadline;
+        if (shutdownDeadline != null) {
+            this.shutdownHook = new Thread(() -> close(shutdownDeadline), "meter-pipeline-shutdown-" + builder.name);
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        } else {
+            this.shutdownHook = null;
+        }
+    }
+
+    public static Builder builder(final MeterSender sender) {
+        return new Builder(sender);
+    }
+
+    /**
+     * Queues a meter (or a copy of it with a scaled value or capped dimensions - see {@link MeterSampler} and
+     * {@link CardinalityGuard}).
+     * @return false if the meter was dropped as the queue is full (or the pipeline is closed). A meter which was
+     * sampled out isn't considered as dropped.
+     */
+    public boolean meter(final QueuedMeter original) {
+        final QueuedMeter meter = guard(original);
+        final QueuedMeter sampled = sampler.sample(meter);
+        if (sampled == null) {
+            metrics.recordSampledOut(1);
+            mirror(meter);
+            return true;
+        }
+
+        final boolean queued = offer(owned(original, sampled), 1, sampled.getRetainedBytes());
+        if (queued) {
+            mirror(meter);
+        }
+        return queued;
+    }
+
+    /**
+     * Queues a group of related meters (for example a service call and its processing time) as a single queue entry.
+     * The meters of the group are sent in the same batch, and are dropped together if the queue is full.
+     *
+     * Each meter of the group is sampled on its own, so an unsampled 'Call' meter is kept even if its sampled
+     * 'Call.processingTime' meter isn't.
+     * @return false if the meters were dropped as the queue is full (or the pipeline is closed).
+     */
+    public boolean meterGroup(final QueuedMeter... meters) {
+        QueuedMeter head = null;
+        QueuedMeter tail = null;
+        int count = 0;
+        long bytes = 0;
+        // Don't modify the array of the caller.
+        final QueuedMeter[] guarded = cardinalityGuard == null ? meters : new QueuedMeter[meters.length];
+        for (int i = 0; i < meters.length; i++) {
+            guarded[i] = guard(meters[i]);
+            final QueuedMeter sampled = owned(meters[i], sampler.sample(guarded[i]));
+            if (sampled == null) {
+                continue;
+            }
+
+            if (tail == null) {
+                head = sampled;
+            } else {
+                tail.setNext(sampled);
+            }
+            tail = sampled;
+            count++;
+            bytes += sampled.getRetainedBytes();
+        }
+
+        if (count < meters.length) {
+            metrics.recordSampledOut(meters.length - count);
+        }
+
+        final boolean queued = head == null || offer(head, count, bytes);
+        if (queued) {
+            for (final QueuedMeter meter : guarded) {
+                mirror(meter);
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * @return the meter to queue - a copy of it if it is the instance of the caller (who might queue it again), as
+     * the queue state is kept on the queued meter.
+     */
+    private static QueuedMeter owned(final QueuedMeter original, final QueuedMeter sampled) {
+        return sampled == original ? original.copy() : sampled;
+    }
+
+    /**
+     * @return the given meter, or a copy of it with capped dimensions (see {@link CardinalityGuard}).
+     */
+    private QueuedMeter guard(final QueuedMeter meter) {
+        if (cardinalityGuard == null) {
+            return meter;
+        }
+
+        final QueuedMeter guarded = cardinalityGuard.apply(meter, interner);
+        if (guarded != meter) {
+            metrics.recordCapped(1);
+        }
+        return guarded;
+    }
+
+    /**
+     * Adds a meter to the usage mirror (if any). The mirror gets the original meters (and not the scaled sampled
+     * ones), so its values are exact.
+     */
+    private void mirror(final QueuedMeter meter) {
+        if (usageMirror != null) {
+            usageMirror.record(meter);
+        }
+    }
+
+    private boolean offer(final QueuedMeter head, final int meters, final long bytes) {
+        final MeterPriority lane = laneOf(head);
+        head.setLane(lane);
+
+        if (closed) {
+            LOGGER.warn("The meter pipeline is closed, dropping meter: {}", head);
+            dropped(lane, meters);
+            MeteringEvents.meterEnqueued(name, head.getMeterName(), queue.size(), false);
+            return false;
+        }
+
+        final long now = System.nanoTime();
+        for (QueuedMeter meter = head; meter != null; meter = meter.getNext()) {
+            meter.setEnqueuedAtNanos(now);
+        }
+
+        // Add the bytes first, as the entry might be evicted (and its bytes subtracted) right after it was queued.
+        queuedBytes.addAndGet(bytes);
+        if (!queue.offer(head)) {
+            queuedBytes.addAndGet(-bytes);
+            LOGGER.warn("The {} lane of the meter pipeline is full, dropping meter: {}", lane, head);
+            dropped(lane, meters);
+            MeteringEvents.meterEnqueued(name, head.getMeterName(), queue.size(), false);
+            return false;
+        }
+
+        final int depth = queue.size();
+        metrics.recordEnqueued(meters, depth);
+        laneMetrics[lane.ordinal()].recordEnqueued(meters);
+        MeteringEvents.meterEnqueued(name, head.getMeterName(), depth, true);
+        if (senderPool != null) {
+            scheduleDrain(depth);
+        }
+        return true;
+    }
+
+    /**
+     * Makes sure a drain task is scheduled on the sender pool - right away once there is a full batch, and otherwise
+     * after 'maxDelayInSec' (so the batch has the time to fill up, like in {@link #fillBatch(List)}).
+     */
+    private void scheduleDrain(final int depth) {
+        try {
+            if (depth >= maxBatchSize) {
+                // A scheduled task which finds the state changed does nothing.
+                if (drainState.compareAndSet(SCHEDULED, DRAINING) || drainState.compareAndSet(IDLE, DRAINING)) {
+                    senderPool.execute(this::drain);
+                }
+            } else if (drainState.compareAndSet(IDLE, SCHEDULED)) {
+                senderPool.schedule(() -> {
+                    if (drainState.compareAndSet(SCHEDULED, DRAINING)) {
+                        drain();
+                    }
+                }, maxDelayInNanos);
+            }
+        } catch (final RejectedExecutionException e) {
+            // The pool was closed before this pipeline - the meters are sent when the pipeline is closed.
+            LOGGER.warn("The sender pool of pipeline '{}' is closed", name);
+            drainState.set(IDLE);
+        }
+    }
+
+    /**
+     * Runs on the sender pool. Sends the entries which are currently queued (but not the ones which are queued while
+     * draining, so a busy pipeline doesn't hold a pool thread for ever).
+     */
+    private void drain() {
+        try {
+            final List<QueuedMeter> batch = new ArrayList<>(maxBatchSize);
+            int remaining = queue.size();
+            while (remaining > 0 && !closed) {
+                final BatchAssembledEvent assemblyEvent = MeteringEvents.beginBatchAssembly();
+                final int drained = queue.drainTo(batch, Math.min(remaining, maxBatchSize));
+                if (drained == 0) {
+                    break;
+                }
+                remaining -= drained;
+                MeteringEvents.endBatchAssembly(assemblyEvent, name, batch.size(),
+                        System.nanoTime() - oldestEnqueuedAtNanos(batch));
+                send(batch);
+                batch.clear();
+            }
+        } catch (final RuntimeException e) {
+            LOGGER.error("Failed to drain the queue of pipeline '{}'", name, e);
+        } finally {
+            drainState.compareAndSet(DRAINING, IDLE);
+        }
+
+        // Entries which were queued while draining.
+        if (!closed && !queue.isEmpty()) {
+            scheduleDrain(queue.size());
+        }
+    }
+
+    /**
+     * @return the lane of a queue entry - the highest priority of its meters.
+     */
+    private MeterPriority laneOf(final QueuedMeter head) {
+        MeterPriority lane = MeterPriority.DIAGNOSTIC;
+        for (QueuedMeter meter = head; meter != null; meter = meter.getNext()) {
+            final MeterPriority priority = meter.getPriority() != null ? meter.getPriority() :
+                    priorities.getOrDefault(meter.getMeterName(), MeterPriority.STANDARD);
+            if (priority.compareTo(lane) < 0) {
+                lane = priority;
+            }
+        }
+        return lane;
+    }
+
+    /**
+     * Called by the queue with an entry which was evicted for a higher priority one.
+     */
+    private void evicted(final QueuedMeter head) {
+        int meters = 0;
+        long bytes = 0;
+        for (QueuedMeter meter = head; meter != null; meter = meter.getNext()) {
+            meters++;
+            bytes += meter.getRetainedBytes();
+        }
+        queuedBytes.addAndGet(-bytes);
+
+        LOGGER.warn("The meter pipeline queue is full, dropping a {} meter for a higher priority one: {}",
+                head.getLane(), head);
+        dropped(head.getLane(), meters);
+    }
+
+    private void dropped(final MeterPriority lane, final int meters) {
+        metrics.recordDropped(meters);
+        laneMetrics[lane.ordinal()].recordDropped(meters);
+    }
+
+    /**
+     * A factory method similar to {@link com.amberflo.metering.ingest.Metering}'s one.
+     */
+    public boolean meter(final String customerId, final String meterName, final double meterValue,
+                         final long meterTimeInMillis, final Map<String, String> dimensions) {
+        return meter(QueuedMeterBuilder.createInstance(meterName, meterTimeInMillis, customerId)
+                .setMeterValue(meterValue)
+                .setDimensionsMap(dimensions)
+                .build(interner));
+    }
+
+    /**
+     * @return the usage mirror of this pipeline, or null if it has none.
+     */
+    public UsageMirror getUsageMirror() {
+        return usageMirror;
+    }
+
+    /**
+     * @return the cardinality guard of this pipeline, or null if it has none.
+     */
+    public CardinalityGuard getCardinalityGuard() {
+        return cardinalityGuard;
+    }
+
+    public MeterSampler getSampler() {
+        return sampler;
+    }
+
+    /**
+     * @return the interner used by this pipeline. Use it for the meters you build yourself.
+     */
+    public MeterInterner getInterner() {
+        return interner;
+    }
+
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the current amount of queue entries (a group of meters is a single entry).
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return the current amount of entries in the given lane.
+     */
+    public int getQueueDepth(final MeterPriority lane) {
+        return queue.size(lane);
+    }
+
+    /**
+     * @return an estimation of the amount of bytes retained by the queued meters.
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return an estimation of the average amount of bytes retained by each queued meter (0 if the queue is empty).
+     */
+    public long getRetainedBytesPerMeter() {
+        final int depth = queue.size();
+        return depth == 0 ? 0 : queuedBytes.get() / depth;
+    }
+
+    /**
+     * Sends all of the pending meters, and stops the sender thread (the pipeline stops using its sender pool, but the
+     * pool itself isn't closed).
+     */
+    @Override
+    public void close() {
+        closeWithin(Long.MAX_VALUE);
+    }
+
+    /**
+     * Sends the pending meters within the given deadline, and stops the sender thread (like {@link #close()}).
+     *
+     * Once the sender thread (or the sender pool) is done with its current batch, the rest of the queue is sent by
+     * 'drainParallelism' threads. The batches which are still being sent when the deadline passes are interrupted, and
+     * their meters, the meters of failed batches and the meters which are still queued are written to the spill file
+     * (if any). An interrupted batch may have reached the end-point anyway, so its meters are persisted only if the
+     * sender sends their idempotency keys (see {@link MeterSender#sendsIdempotencyKeys()}) - then a meter which was
+     * both sent and persisted is committed once. Otherwise (like with {@link MeteringClientSender}, whose client
+     * generates new ids) they are dropped rather than risk being counted twice.
+     * @return how many of the pending meters were sent, persisted or dropped. An empty report if the pipeline was
+     * already closed.
+     */
+    public DrainReport close(final Duration deadline) {
+        if (deadline.isNegative()) {
+            throw new IllegalArgumentException("deadline must not be negative: " + deadline);
+        }
+        long timeoutInNanos;
+        try {
+            timeoutInNanos = deadline.toNanos();
+        } catch (final ArithmeticException e) {
+            timeoutInNanos = Long.MAX_VALUE;
+        }
+        return closeWithin(timeoutInNanos);
+    }
+
+    private synchronized DrainReport closeWithin(final long timeoutInNanos) {
+        if (closed) {
+            return DrainReport.EMPTY;
+        }
+        final long startTime = System.nanoTime();
+        final PipelineDrainedEvent drainEvent = MeteringEvents.beginDrain();
+        final int pendingMeters = queue.size();
+        closed = true;
+        removeShutdownHook();
+
+        try {
+            // The sender thread (or the drain task of the sender pool) stops after its current batch.
+            if (senderThread != null) {
+                final long remaining = remainingNanos(startTime, timeoutInNanos);
+                if (remaining > 0) {
+                    senderThread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                }
+                if (senderThread.isAlive()) {
+                    senderThread.interrupt();
+                    senderThread.join(DEADLINE_GRACE_MILLIS);
+                }
+            } else {
+                awaitDrain(startTime, timeoutInNanos);
+            }
+            drainInParallel(startTime, timeoutInNanos);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        final List<QueuedMeter> interrupted = new ArrayList<>();
+        final List<QueuedMeter> leftovers = takeLeftovers(sender.sendsIdempotencyKeys() ? null : interrupted);
+        long persisted = 0;
+        long dropped = interrupted.size();
+        if (!interrupted.isEmpty()) {
+            LOGGER.warn("Dropping {} meters of pipeline '{}' whose batches were interrupted, as its sender doesn't " +
+                    "send idempotency keys", interrupted.size(), name);
+        }
+        if (!leftovers.isEmpty()) {
+            if (spillFile == null) {
+                dropped += leftovers.size();
+                LOGGER.warn("Dropping {} meters of pipeline '{}' which weren't sent before the deadline",
+                        leftovers.size(), name);
+            } else {
+                try {
+                    appendRecords(spillFile, leftovers);
+                    persisted = leftovers.size();
+                } catch (final IOException e) {
+                    dropped += leftovers.size();
+                    LOGGER.error("Failed to persist {} meters of pipeline '{}' to {}", leftovers.size(), name,
+                            spillFile, e);
+                }
+            }
+        }
+        // The same counts as the report.
+        if (persisted > 0) {
+            metrics.recordPersisted(persisted);
+        }
+        if (dropped > 0) {
+            metrics.recordDropped(dropped);
+        }
+
+        sender.close();
+        metrics.unregisterMBean();
+        MeteringEvents.endDrain(drainEvent, name, pendingMeters);
+
+        final DrainReport report = new DrainReport(flushedOnClose.sum(), persisted, dropped,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        LOGGER.info("Closed pipeline '{}': {}", name, report);
+        return report;
+    }
+
+    private void removeShutdownHook() {
+        if (shutdownHook == null || Thread.currentThread() == shutdownHook) {
+            return;
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (final IllegalStateException e) {
+            // The JVM is already shutting down (and the hook will find the pipeline closed).
+        }
+    }
+
+    /**
+     * Waits (up to the deadline) for the current batch of the sender pool (if any), and keeps the drain state, so no
+     * more drain tasks are scheduled.
+     */
+    private void awaitDrain(final long startTime, final long timeoutInNanos) throws InterruptedException {
+        while (!drainState.compareAndSet(IDLE, DRAINING) && !drainState.compareAndSet(SCHEDULED, DRAINING)) {
+            if (remainingNanos(startTime, timeoutInNanos) <= 0) {
+                // The batch of the pool is persisted with the rest of the meters which weren't sent.
+                return;
+            }
+            Thread.sleep(CLOSE_POLL_MILLIS);
+        }
+    }
+
+    /**
+     * Sends the queued meters on up to 'drainParallelism' threads, until the queue is empty or the deadline passed.
+     */
+    private void drainInParallel(final long startTime, final long timeoutInNanos) throws InterruptedException {
+        final int batches = (queue.size() + maxBatchSize - 1) / maxBatchSize;
+        final int threads = Math.min(drainParallelism, batches);
+        if (threads == 0 || remainingNanos(startTime, timeoutInNanos) <= 0) {
+            return;
+        }
+
+        final AtomicInteger threadSequence = new AtomicInteger();
+        final ExecutorService drainers = Executors.newFixedThreadPool(threads, task -> {
+            final Thread thread =
+                    new Thread(task, "meter-pipeline-drain-" + name + "-" + threadSequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < threads; i++) {
+            drainers.execute(() -> {
+                final List<QueuedMeter> batch = new ArrayList<>(maxBatchSize);
+                while (!Thread.currentThread().isInterrupted() && remainingNanos(startTime, timeoutInNanos) > 0 &&
+                        queue.drainTo(batch, maxBatchSize) > 0) {
+                    send(batch);
+                    batch.clear();
+                }
+            });
+        }
+        drainers.shutdown();
+
+        try {
+            if (!drainers.awaitTermination(remainingNanos(startTime, timeoutInNanos), TimeUnit.NANOSECONDS)) {
+                drainers.shutdownNow();
+                drainers.awaitTermination(DEADLINE_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } catch (final InterruptedException e) {
+            drainers.shutdownNow();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the meters which weren't sent - the ones of batches which are still being sent (which are taken over
+     * from their senders), of failed batches, and the ones which are still queued.
+     * @param interrupted takes the meters of the batches which are still being sent instead, unless it is null.
+     */
+    private List<QueuedMeter> takeLeftovers(final List<QueuedMeter> interrupted) {
+        final List<QueuedMeter> leftovers = new ArrayList<>();
+        for (final QueuedMeter[] batch : inFlight) {
+            if (inFlight.remove(batch)) {
+                Collections.addAll(interrupted != null ? interrupted : leftovers, batch);
+            }
+        }
+
+        QueuedMeter meter;
+        while ((meter = unsent.poll()) != null) {
+            leftovers.add(meter);
+        }
+
+        final List<QueuedMeter> entries = new ArrayList<>();
+        queue.drainTo(entries, Integer.MAX_VALUE);
+        for (final QueuedMeter entry : flatten(entries)) {
+            queuedBytes.addAndGet(-entry.getRetainedBytes());
+            leftovers.add(entry);
+        }
+        return leftovers;
+    }
+
+    private static long remainingNanos(final long startTime, final long timeoutInNanos) {
+        return timeoutInNanos - (System.nanoTime() - startTime);
+    }
+
+    /**
+     * Queues the meters of the spill file (which weren't sent by the previous pipeline), and deletes the file. The
+     * meters which don't fit in the queue are written back to the file.
+     */
+    private void restoreSpilled() {
+        if (spillFile == null || !Files.exists(spillFile)) {
+            return;
+        }
+
+        final List<QueuedMeter> rejected = new ArrayList<>();
+        int restored = 0;
+        int malformed = 0;
+        try (final BufferedReader reader = Files.newBufferedReader(spillFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+
+                final QueuedMeter meter;
+                try {
+                    meter = MeterRecords.read(new JsonReader(new StringReader(line)), interner);
+                } catch (final IOException | RuntimeException e) {
+                    // For example a line which was cut off.
+                    malformed++;
+                    continue;
+                }
+                if (requeue(meter)) {
+                    restored++;
+                } else {
+                    rejected.add(meter);
+                }
+            }
+        } catch (final IOException e) {
+            // The meters which were already queued keep their keys, so restoring them again is safe.
+            LOGGER.error("Failed to read the spill file {} of pipeline '{}'", spillFile, name, e);
+            return;
+        }
+
+        try {
+            if (rejected.isEmpty()) {
+                Files.delete(spillFile);
+            } else {
+                final Path rewritten = spillFile.resolveSibling(spillFile.getFileName() + ".tmp");
+                Files.deleteIfExists(rewritten);
+                appendRecords(rewritten, rejected);
+                Files.move(rewritten, spillFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (final IOException e) {
+            LOGGER.error("Failed to update the spill file {} of pipeline '{}'", spillFile, name, e);
+        }
+        LOGGER.info("Restored {} meters of pipeline '{}' from {} ({} didn't fit in the queue, {} malformed lines)",
+                restored, name, spillFile, rejected.size(), malformed);
+    }
+
+    /**
+     * Queues a restored meter as is (it was already sampled and guarded).
+     * @return false if the queue is full.
+     */
+    private boolean requeue(final QueuedMeter meter) {
+        final MeterPriority lane = laneOf(meter);
+        meter.setLane(lane);
+        meter.setEnqueuedAtNanos(System.nanoTime());
+        // Don't evict queued meters for restored ones.
+        if (queue.size() >= queue.capacity()) {
+            return false;
+        }
+
+        queuedBytes.addAndGet(meter.getRetainedBytes());
+        if (!queue.offer(meter)) {
+            queuedBytes.addAndGet(-meter.getRetainedBytes());
+            return false;
+        }
+
+        final int depth = queue.size();
+        metrics.recordEnqueued(1, depth);
+        laneMetrics[lane.ordinal()].recordEnqueued(1);
+        if (senderPool != null) {
+            scheduleDrain(depth);
+        }
+        return true;
+    }
+
+    /**
+     * Appends the meters to the given NDJSON file (see {@link MeterRecords}), so the file can also be uploaded with
+     * the `meter upload` command of the metering-cli.
+     */
+    private static void appendRecords(final Path file, final List<QueuedMeter> meters) throws IOException {
+        final Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        // Don't append to a line which was cut off (for example by a kill in the middle of a write).
+        final boolean newLine = !endsWithNewLine(file);
+        try (final Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND)) {
+            if (newLine) {
+                writer.write('\n');
+            }
+            final JsonWriter jsonWriter = new JsonWriter(writer);
+            // Allows multiple top level values.
+            jsonWriter.setLenient(true);
+            for (final QueuedMeter meter : meters) {
+                MeterRecords.write(jsonWriter, meter);
+                jsonWriter.flush();
+                writer.write('\n');
+            }
+        }
+    }
+
+    private static boolean endsWithNewLine(final Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return true;
+        }
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() == 0) {
+                return true;
+            }
+            final ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            return last.get(0) == '\n';
+        }
+    }
+
+    private void sendLoop() {
+        final List<QueuedMeter> batch = new ArrayList<>(maxBatchSize);
+        // Once closed, the rest of the queue is sent by the close call (see #drainInParallel).
+        while (!closed) {
+            final BatchAssembledEvent assemblyEvent;
+            try {
+                assemblyEvent = fillBatch(batch);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (!batch.isEmpty()) {
+                MeteringEvents.endBatchAssembly(assemblyEvent, name, batch.size(),
+                        System.nanoTime() - oldestEnqueuedAtNanos(batch));
+                send(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Waits for the first meter, and then up to 'maxDelayInSec' for the batch to fill up. The meters are taken by
+     * their priority.
+     * @return the assembly event, which starts once the first meter was taken (so the idle wait isn't part of its
+     * duration), or null if there was no meter.
+     */
+    private BatchAssembledEvent fillBatch(final List<QueuedMeter> batch) throws InterruptedException {
+        final QueuedMeter first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return null;
+        }
+        final BatchAssembledEvent assemblyEvent = MeteringEvents.beginBatchAssembly();
+        batch.add(first);
+
+        final long deadline = System.nanoTime() + maxDelayInNanos;
+        while (batch.size() < maxBatchSize) {
+            queue.drainTo(batch, maxBatchSize - batch.size());
+
+            final long remaining = deadline - System.nanoTime();
+            if (batch.size() >= maxBatchSize || remaining <= 0 || closed) {
+                break;
+            }
+
+            final QueuedMeter next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+        return assemblyEvent;
+    }
+
+    private void send(final List<QueuedMeter> entries) {
+        final long oldestEnqueuedAtNanos = oldestEnqueuedAtNanos(entries);
+        final List<QueuedMeter> meters = flatten(entries);
+        long bytes = 0;
+        for (final QueuedMeter meter : meters) {
+            bytes += meter.getRetainedBytes();
+        }
+        queuedBytes.addAndGet(-bytes);
+
+        final long sendTime = System.nanoTime();
+        for (final QueuedMeter entry : entries) {
+            laneMetrics[entry.getLane().ordinal()].recordLag(sendTime - entry.getEnqueuedAtNanos());
+        }
+
+        final long[] keyHashes = dedupFilter == null ? null : new long[meters.size()];
+        final List<QueuedMeter> batch = dedupFilter == null ? meters : withoutDuplicates(meters, keyHashes);
+        if (closed) {
+            // The duplicates were already sent.
+            flushedOnClose.add(meters.size() - batch.size());
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        final QueuedMeter[] inFlightMeters = batch.toArray(new QueuedMeter[0]);
+        inFlight.add(inFlightMeters);
+        final BatchSentEvent sendEvent = MeteringEvents.beginBatchSend();
+        final long startTime = System.nanoTime();
+        Exception error = null;
+        try {
+            sender.send(batch);
+        } catch (final Exception e) {
+            error = e;
+            LOGGER.warn("Failed to send a batch of {} meters", batch.size(), e);
+        }
+
+        // Unless a close which passed its deadline already took the batch over (and counted it as persisted or
+        // dropped). Each meter is counted once - as flushed, persisted or dropped.
+        if (inFlight.remove(inFlightMeters)) {
+            if (error == null) {
+                if (closed) {
+                    flushedOnClose.add(batch.size());
+                }
+            } else if (closed) {
+                // Persisted (or dropped) by the close.
+                Collections.addAll(unsent, inFlightMeters);
+            } else {
+                metrics.recordDropped(batch.size());
+            }
+        }
+
+        if (error == null && keyHashes != null) {
+            synchronized (dedupFilter) {
+                for (int i = 0; i < batch.size(); i++) {
+                    dedupFilter.add(keyHashes[i]);
+                }
+            }
+        }
+
+        final long endTime = System.nanoTime();
+        metrics.recordBatch(batch.size(), endTime - oldestEnqueuedAtNanos, endTime - startTime, error == null);
+        MeteringEvents.endBatchSend(sendEvent, name, sender.getClientType(), batch.size(), error);
+    }
+
+    /**
+     * @return the meters whose idempotency keys weren't sent yet (according to the dedup filter), and fills the key
+     * hashes of the returned meters.
+     */
+    private List<QueuedMeter> withoutDuplicates(final List<QueuedMeter> meters, final long[] keyHashes) {
+        final List<QueuedMeter> unique = new ArrayList<>(meters.size());
+        final Set<Long> batchHashes = new HashSet<>();
+        synchronized (dedupFilter) {
+            for (final QueuedMeter meter : meters) {
+                final long hash = DedupFilter.hash(meter);
+                if (dedupFilter.mightContain(hash) || !batchHashes.add(hash)) {
+                    LOGGER.debug("Dropping a meter which was already sent: {}", meter);
+                    continue;
+                }
+                keyHashes[unique.size()] = hash;
+                unique.add(meter);
+            }
+        }
+
+        if (unique.size() < meters.size()) {
+            metrics.recordDuplicates(meters.size() - unique.size());
+        }
+        return unique;
+    }
+
+    /**
+     * @return the enqueue time of the oldest entry (the entries are ordered by their priority, not by their age).
+     */
+    private static long oldestEnqueuedAtNanos(final List<QueuedMeter> entries) {
+        long oldest = entries.get(0).getEnqueuedAtNanos();
+        for (final QueuedMeter entry : entries) {
+            if (entry.getEnqueuedAtNanos() - oldest < 0) {
+                oldest = entry.getEnqueuedAtNanos();
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * @return the given queue entries with the meters of each group (the entries list itself if there are no groups).
+     */
+    private static List<QueuedMeter> flatten(final List<QueuedMeter> entries) {
+        boolean hasGroups = false;
+        for (final QueuedMeter entry : entries) {
+            hasGroups |= entry.getNext() != null;
+        }
+        if (!hasGroups) {
+            return entries;
+        }
+
+        final List<QueuedMeter> meters = new ArrayList<>(entries.size() * 2);
+        for (final QueuedMeter entry : entries) {
+            for (QueuedMeter meter = entry; meter != null; meter = meter.getNext()) {
+                meters.add(meter);
+            }
+        }
+        return meters;
+    }
+
+    public static class Builder {
+        private final MeterSender sender;
+        private String name = DEFAULT_NAME;
+        private MetricsRegistry metricsRegistry = MetricsRegistry.NOOP;
+        private boolean jmxEnabled = true;
+        private MeterInterner interner = MeterInterner.shared();
+        private MeterSampler sampler = MeterSampler.NONE;
+        private final Map<String, MeterPriority> priorities = new HashMap<>();
+        private final Map<MeterPriority, Integer> laneCapacities = new EnumMap<>(MeterPriority.class);
+        private UsageMirror usageMirror;
+        private CardinalityGuard cardinalityGuard;
+        private DedupFilter dedupFilter;
+        private int maxAsyncQueueSize = DEFAULT_MAX_ASYNC_QUEUE_SIZE;
+        private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        private double maxDelayInSec = DEFAULT_MAX_DELAY_IN_SEC;
+        private SenderPool senderPool;
+        private int drainParallelism = 1;
+        private Path spillFile;
+        private Duration shutdownDeadline;
+
+        private Builder(final MeterSender sender) {
+            if (sender == null) {
+                throw new IllegalArgumentException("sender is required");
+            }
+            this.sender = sender;
+        }
+
+        /**
+         * The name of the pipeline, used for tagging its metrics (defaults to {@link #DEFAULT_NAME}).
+         */
+        public Builder setName(final String name) {
+            this.name = name;
+            return this;
+        }
+
+        public Builder setMetricsRegistry(final MetricsRegistry metricsRegistry) {
+            this.metricsRegistry = metricsRegistry;
+            return this;
+        }
+
+        /**
+         * Optional - defaults to true. Publishes the pipeline metrics as a JMX MBean.
+         */
+        public Builder setJmxEnabled(final boolean jmxEnabled) {
+            this.jmxEnabled = jmxEnabled;
+            return this;
+        }
+
+        public Builder setInterner(final MeterInterner interner) {
+            this.interner = interner;
+            return this;
+        }
+
+        /**
+         * Optional - defaults to {@link MeterSampler#NONE}. Use {@link MeterSampler#fromConfig()} for the sampling
+         * settings of your metering config.
+         */
+        public Builder setSampler(final MeterSampler sampler) {
+            this.sampler = sampler;
+            return this;
+        }
+
+        /**
+         * Optional - tracks the cardinality of the dimensions of the queued meters, and caps the ones which exceed
+         * their max cardinality. Use {@link CardinalityGuard#fromConfig()} for the settings of your metering config.
+         */
+        public Builder setCardinalityGuard(final CardinalityGuard cardinalityGuard) {
+            this.cardinalityGuard = cardinalityGuard;
+            return this;
+        }
+
+        /**
+         * Optional - drops meters whose idempotency keys were already sent (in the window of the filter). Only meters
+         * of batches which were sent successfully are added to the filter.
+         */
+        public Builder setDedupFilter(final DedupFilter dedupFilter) {
+            this.dedupFilter = dedupFilter;
+            return this;
+        }
+
+        /**
+         * Optional - mirrors all of the meters which were queued (or sampled out) to the given usage mirror, so
+         * usage queries can be answered locally.
+         */
+        public Builder setUsageMirror(final UsageMirror usageMirror) {
+            this.usageMirror = usageMirror;
+            return this;
+        }
+
+        /**
+         * Sets the priority of meters with the given name (meters which have no priority of their own and no
+         * priority by their name are {@link MeterPriority#STANDARD}).
+         */
+        public Builder setPriority(final String meterName, final MeterPriority priority) {
+            priorities.put(meterName, priority);
+            return this;
+        }
+
+        /**
+         * Sets the priority of meters by their names. Use {@link MeterPriority#fromConfig()} for the priorities of
+         * your metering config.
+         */
+        public Builder setPriorities(final Map<String, MeterPriority> priorities) {
+            this.priorities.putAll(priorities);
+            return this;
+        }
+
+        /**
+         * Optional - limits the amount of entries of the given lane (by default each lane can use the whole
+         * 'maxAsyncQueueSize'). For example, limit the diagnostic lane so it can't delay the standard one.
+         */
+        public Builder setLaneCapacity(final MeterPriority lane, final int capacity) {
+            laneCapacities.put(lane, capacity);
+            return this;
+        }
+
+        /**
+         * The total capacity of all of the lanes.
+         */
+        public Builder setMaxAsyncQueueSize(final int maxAsyncQueueSize) {
+            this.maxAsyncQueueSize = maxAsyncQueueSize;
+            return this;
+        }
+
+        public Builder setMaxBatchSize(final int maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        public Builder setMaxDelayInSec(final double maxDelayInSec) {
+            this.maxDelayInSec = maxDelayInSec;
+            return this;
+        }
+
+        /**
+         * Optional - sends the batches on the threads of the given pool (which can be shared by other pipelines),
+         * instead of on a designated sender thread.
+         */
+        public Builder setSenderPool(final SenderPool senderPool) {
+            this.senderPool = senderPool;
+            return this;
+        }
+
+        /**
+         * Optional - defaults to 1. The amount of batches which are sent at the same time while the pipeline drains
+         * its queue on close (the senders of this module are thread safe).
+         */
+        public Builder setDrainParallelism(final int drainParallelism) {
+            this.drainParallelism = drainParallelism;
+            return this;
+        }
+
+        /**
+         * Optional - the meters which weren't sent when the pipeline was closed (the deadline passed, or their batch
+         * failed) are appended to this NDJSON file, and a pipeline which is built with the same file queues them
+         * again. Without a spill file such meters are dropped. Use a spill file per pipeline - a pipeline sends the
+         * restored meters with its own sender (see {@link MeterPipelines}, which refuses a shared spill file).
+         */
+        public Builder setSpillFile(final Path spillFile) {
+            this.spillFile = spillFile;
+            return this;
+        }
+
+        Path getSpillFile() {
+            return spillFile;
+        }
+
+        /**
+         * Optional - closes the pipeline with the given deadline (see {@link MeterPipeline#close(Duration)}) from a
+         * JVM shutdown hook, for example on a SIGTERM. Keep the deadline below the time your platform waits before
+         * killing the process (the 'terminationGracePeriodSeconds' of a Kubernetes pod is 30 seconds by default).
+         */
+        public Builder setShutdownHook(final Duration drainDeadline) {
+            this.shutdownDeadline = drainDeadline;
+            return this;
+        }
+
+        public MeterPipeline build() {
+            if (maxAsyncQueueSize <= 0 || maxBatchSize <= 0 || maxDelayInSec < 0 || drainParallelism <= 0 ||
+                    laneCapacities.values().stream().anyMatch(capacity -> capacity <= 0) ||
+                    (shutdownDeadline != null && shutdownDeadline.isNegative())) {
+                throw new IllegalArgumentException("Invalid pipeline settings: maxAsyncQueueSize=" +
+                        maxAsyncQueueSize + ", maxBatchSize=" + maxBatchSize + ", maxDelayInSec=" + maxDelayInSec +
+                        ", laneCapacities=" + laneCapacities + ", drainParallelism=" + drainParallelism +
+                        ", shutdownDeadline=" + shutdownDeadline);
+            }
+            final MeterPipeline pipeline = new MeterPipeline(this);
+            pipeline.restoreSpilled();
+            return pipeline;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.amberflo.metering.pipeline;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A registry of named {@link MeterPipeline}s - for example a pipeline per Amberflo account, tenant or region, which
+ * are used concurrently in the same JVM.
+ *
+ * The metering client has a single global {@link com.amberflo.metering.ingest.MeteringContext}, so switching between
+ * accounts means replacing it (or running a JVM per account). The pipelines of a registry are independent instead:
+ * each has its own queue, settings and {@link com.amberflo.metering.pipeline.metrics.PipelineMetrics} (published
+ * under its name), while all of them share the threads of a single {@link SenderPool}, and the pipelines of
+ * {@link #registerAppKey(String, String)} also share a single {@link HttpTransport} (and its connections).
+ *
+ * The registry is thread safe. Close it before exiting your app in order to send the pending meters of all of the
+ * pipelines (or close it with a deadline - see {@link #close(Duration)}).
+ */
+public class MeterPipelines implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MeterPipelines.class);
+
+    private final Map<String, MeterPipeline> pipelines = new ConcurrentHashMap<>();
+    // The pipeline name by the (absolute) spill file of each pipeline which has one.
+    private final Map<Path, String> spillFiles = new ConcurrentHashMap<>();
+    private final SenderPool senderPool;
+    private final HttpTransport transport;
+    private final String ingestUrl;
+    private final int httpRetriesCount;
+    private final int httpTimeOutSeconds;
+    private final Consumer<MeterPipeline.Builder> defaults;
+    private volatile boolean closed;
+
+    private MeterPipelines(final Builder builder) {
+        this.senderPool = new SenderPool(builder.senderThreads);
+        this.transport = builder.transport != null ? builder.transport : HttpTransport.shared();
+        this.ingestUrl = builder.ingestUrl;
+        this.httpRetriesCount = builder.httpRetriesCount;
+        this.httpTimeOutSeconds = builder.httpTimeOutSeconds;
+        this.defaults = builder.defaults;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Registers a pipeline which posts its meters to the ingest api with the given api key (see
+     * {@link IngestApiSender}).
+     */
+    public MeterPipeline registerAppKey(final String name, final String apiKey) {
+        return register(name,
+                new IngestApiSender(ingestUrl, apiKey, httpRetriesCount, httpTimeOutSeconds, transport));
+    }
+
+    /**
+     * Registers a pipeline with the default settings of the registry.
+     */
+    public MeterPipeline register(final String name, final MeterSender sender) {
+        return register(name, sender, settings -> { });
+    }
+
+    /**
+     * Registers a pipeline with the default settings of the registry, and the given settings on top of them.
+     *
+     * A spill file (see {@link MeterPipeline.Builder#setSpillFile(Path)}) can't be shared by the pipelines - the
+     * first one would send the spilled meters of the others with its own sender (and api key). So set it in the
+     * settings of each pipeline (for example 'spillDirectory.resolve(name + ".ndjson")') rather than in the
+     * defaults of the registry.
+     * @throws IllegalStateException if there is already a pipeline with this name, or with the same spill file, or
+     * the registry is closed.
+     */
+    public synchronized MeterPipeline register(final String name, final MeterSender sender,
+                                               final Consumer<MeterPipeline.Builder> settings) {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("name is required");
+        }
+        if (closed) {
+            throw new IllegalStateException("The registry is closed");
+        }
+        if (pipelines.containsKey(name)) {
+            throw new IllegalStateException("A pipeline named '" + name + "' is already registered");
+        }
+
+        final MeterPipeline.Builder builder = MeterPipeline.builder(sender);
+        defaults.accept(builder);
+        settings.accept(builder);
+        // The name and the pool aren't up to the settings.
+        builder.setName(name).setSenderPool(senderPool);
+
+        // Checked before the pipeline is built, as building it restores the spill file.
+        final Path spillFile = builder.getSpillFile() == null ? null :
+                builder.getSpillFile().toAbsolutePath().normalize();
+        if (spillFile != null && spillFiles.containsKey(spillFile)) {
+            throw new IllegalStateException("The spill file " + spillFile + " of pipeline '" + name +
+                    "' is already used by pipeline '" + spillFiles.get(spillFile) + "'");
+        }
+
+        final MeterPipeline pipeline = builder.build();
+        pipelines.put(name, pipeline);
+        if (spillFile != null) {
+            spillFiles.put(spillFile, name);
+        }
+        return pipeline;
+    }
+
+    /**
+     * @return the pipeline with the given name, or null if there is none.
+     */
+    public MeterPipeline get(final String name) {
+        return pipelines.get(name);
+    }
+
+    public Set<String> names() {
+        return Set.copyOf(pipelines.keySet());
+    }
+
+    /**
+     * Removes the pipeline with the given name and closes it (sending its pending meters). Its spill file (if any) can
+     * be used by a new pipeline once it is closed.
+     * @return false if there is no such pipeline.
+     */
+    public boolean remove(final String name) {
+        final MeterPipeline pipeline = pipelines.remove(name);
+        if (pipeline == null) {
+            return false;
+        }
+        pipeline.close();
+        spillFiles.values().remove(name);
+        return true;
+    }
+
+    public SenderPool getSenderPool() {
+        return senderPool;
+    }
+
+    /**
+     * Closes all of the pipelines (sending their pending meters), and then the sender pool.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        final List<String> names = new ArrayList<>(pipelines.keySet());
+        for (final String name : names) {
+            try {
+                remove(name);
+            } catch (final RuntimeException e) {
+                LOGGER.warn("Failed to close pipeline '{}'", name, e);
+            }
+        }
+        senderPool.close();
+    }
+
+    /**
+     * Closes all of the pipelines at the same time, within the given deadline (see
+     * {@link MeterPipeline#close(Duration)}), and then the sender pool.
+     * @return the totals of the reports of the pipelines.
+     */
+    public DrainReport close(final Duration deadline) {
+        synchronized (this) {
+            closed = true;
+        }
+        final long startTime = System.nanoTime();
+        final AtomicInteger threadSequence = new AtomicInteger();
+        final ExecutorService closers = Executors.newCachedThreadPool(task -> {
+            final Thread thread = new Thread(task, "meter-pipelines-close-" + threadSequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Map<String, Future<DrainReport>> reports = new LinkedHashMap<>();
+        for (final String name : new ArrayList<>(pipelines.keySet())) {
+            final MeterPipeline pipeline = pipelines.remove(name);
+            if (pipeline != null) {
+                reports.put(name, closers.submit(() -> {
+                    final Duration remaining = deadline.minusNanos(System.nanoTime() - startTime);
+                    return pipeline.close(remaining.isNegative() ? Duration.ZERO : remaining);
+                }));
+            }
+        }
+        closers.shutdown();
+
+        long flushed = 0;
+        long persisted = 0;
+        long dropped = 0;
+        try {
+            for (final Map.Entry<String, Future<DrainReport>> entry : reports.entrySet()) {
+                try {
+                    final DrainReport report = entry.getValue().get();
+                    flushed += report.getFlushed();
+                    persisted += report.getPersisted();
+                    dropped += report.getDropped();
+                } catch (final ExecutionException e) {
+                    LOGGER.warn("Failed to close pipeline '{}'", entry.getKey(), e.getCause());
+                }
+            }
+        } catch (final InterruptedException e) {
+            // The interrupted pipelines persist their pending meters right away.
+            closers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        // The batches which are still being sent were already persisted.
+        senderPool.closeNow();
+        return new DrainReport(flushed, persisted, dropped,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+    }
+
+    public static class Builder {
+        private int senderThreads = SenderPool.DEFAULT_THREADS;
+        private String ingestUrl = IngestApiSender.DEFAULT_INGEST_URL;
+        private int httpRetriesCount = IngestApiSender.DEFAULT_HTTP_RETRIES_COUNT;
+        private int httpTimeOutSeconds = IngestApiSender.DEFAULT_HTTP_TIMEOUT_IN_SEC;
+        private Consumer<MeterPipeline.Builder> defaults = settings -> { };
+        private HttpTransport transport;
+
+        private Builder() {
+        }
+
+        /**
+         * Optional - defaults to {@link SenderPool#DEFAULT_THREADS}. The amount of batches which can be sent at the
+         * same time by all of the pipelines of the registry.
+         */
+        public Builder setSenderThreads(final int senderThreads) {
+            this.senderThreads = senderThreads;
+            return this;
+        }
+
+        /**
+         * Optional - the ingest api end-point of the {@link #registerAppKey(String, String)} pipelines.
+         */
+        public Builder setIngestUrl(final String ingestUrl) {
+            this.ingestUrl = ingestUrl;
+            return this;
+        }
+
+        /**
+         * Optional - defaults to {@link HttpTransport#shared()}. The transport of the
+         * {@link #registerAppKey(String, String)} pipelines.
+         */
+        public Builder setTransport(final HttpTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        public Builder setHttpRetriesCount(final int httpRetriesCount) {
+            this.httpRetriesCount = httpRetriesCount;
+            return this;
+        }
+
+        public Builder setHttpTimeOutSeconds(final int httpTimeOutSeconds) {
+            this.httpTimeOutSeconds = httpTimeOutSeconds;
+            return this;
+        }
+
+        /**
+         * Optional - the settings of all of the pipelines of the registry (for example their queue size or sampler).
+         * Each pipeline gets a builder of its own, so don't share stateful objects (like a {@link CardinalityGuard})
+         * unless you want the pipelines to share them. A spill file can't be shared (see
+         * {@link MeterPipelines#register(String, MeterSender, Consumer)}).
+         */
+        public Builder setPipelineDefaults(final Consumer<MeterPipeline.Builder> defaults) {
+            this.defaults = defaults;
+            return this;
+        }
+
+        public MeterPipelines build() {
+            if (senderThreads <= 0 || httpRetriesCount < 0 || httpTimeOutSeconds <= 0) {
+                throw new IllegalArgumentException("Invalid registry settings: senderThreads=" + senderThreads +
+                        ", httpRetriesCount=" + httpRetriesCount + ", httpTimeOutSeconds=" + httpTimeOutSeconds);
+            }
+            return new MeterPipelines(this);
+        }
+    }
+}
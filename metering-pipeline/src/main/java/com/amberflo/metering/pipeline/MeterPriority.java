@@ -0,0 +1,56 @@
+package com.amberflo.metering.pipeline;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The priority lane a meter is queued in by the {@link MeterPipeline}. Lanes are drained by their priority (billing
+ * first), and when the pipeline is full a meter can take the place of a meter from a lower priority lane. So under
+ * overload, diagnostic meters are lost before billing ones.
+ */
+public enum MeterPriority {
+    /**
+     * Meters you invoice on.
+     */
+    BILLING,
+    /**
+     * The priority of meters which have no priority settings.
+     */
+    STANDARD,
+    /**
+     * Meters which are nice to have (for example 'CallStarted'). These are the first to be dropped.
+     */
+    DIAGNOSTIC;
+
+    public static final String CONFIG_SECTION = "priorities";
+
+    /**
+     * @return the meter priorities of the "priorities" section of the current metering config, for example:
+     * <pre>
+     *     "priorities": {
+     *       "Call": "BILLING",
+     *       "CallStarted": "DIAGNOSTIC"
+     *     }
+     * </pre>
+     * An empty map is returned if there is no such section.
+     */
+    public static Map<String, MeterPriority> fromConfig() {
+        return fromConfig(MeteringConfig.read());
+    }
+
+    static Map<String, MeterPriority> fromConfig(final JsonObject config) {
+        final JsonElement section = config.get(CONFIG_SECTION);
+        if (section == null || section.isJsonNull()) {
+            return Map.of();
+        }
+
+        final Map<String, MeterPriority> priorities = new HashMap<>();
+        for (final Map.Entry<String, JsonElement> entry : section.getAsJsonObject().entrySet()) {
+            priorities.put(entry.getKey(), valueOf(entry.getValue().getAsString()));
+        }
+        return priorities;
+    }
+}
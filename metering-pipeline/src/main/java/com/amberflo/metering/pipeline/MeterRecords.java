@@ -0,0 +1,167 @@
+package com.amberflo.metering.pipeline;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The json form of a meter record of the ingest api:
+ * <pre>
+ *     {
+ *       "uniqueId": "...",
+ *       "meterApiName": "ApiCalls",
+ *       "meterValue": 1,
+ *       "meterTimeInMillis": 1614708117297,
+ *       "customerId": "customer-123",
+ *       "dimensions": { "region": "us-west-2" }
+ *     }
+ * </pre>
+ * The service name, service call and error of the meter (if any) are written as the "serviceName", "serviceCall" and
+ * "error"/"errorType" dimensions (in place of dimensions of the meter with the same names, so each key is written once).
+ *
+ * Reading a record back maps the "serviceName", "serviceCall" and "error" dimensions back to the attributes of the
+ * meter, and keeps its "uniqueId" (the error type isn't a class anymore, so it stays an "errorType" dimension).
+ */
+public final class MeterRecords {
+    public static final String UNIQUE_ID = "uniqueId";
+    public static final String METER_API_NAME = "meterApiName";
+    public static final String METER_VALUE = "meterValue";
+    public static final String METER_TIME_IN_MILLIS = "meterTimeInMillis";
+    public static final String CUSTOMER_ID = "customerId";
+    public static final String DIMENSIONS = "dimensions";
+
+    public static final String SERVICE_NAME_DIMENSION = "serviceName";
+    public static final String SERVICE_CALL_DIMENSION = "serviceCall";
+    public static final String ERROR_DIMENSION = "error";
+    public static final String ERROR_TYPE_DIMENSION = "errorType";
+
+    private MeterRecords() {
+    }
+
+    /**
+     * Writes a meter as a json object (without allocating an intermediate tree).
+     */
+    public static void write(final JsonWriter writer, final QueuedMeter meter) throws IOException {
+        writer.beginObject();
+        writer.name(UNIQUE_ID).value(meter.getUniqueId());
+        writer.name(METER_API_NAME).value(meter.getMeterName());
+        writer.name(METER_VALUE).value(meter.getMeterValue());
+        writer.name(METER_TIME_IN_MILLIS).value(meter.getMeterTimeInMillis());
+        writer.name(CUSTOMER_ID).value(meter.getCustomerId());
+
+        writer.name(DIMENSIONS).beginObject();
+        for (final Map.Entry<String, String> dimension : meter.getDimensions().entrySet()) {
+            if (!isAttributeDimension(meter, dimension.getKey())) {
+                writer.name(dimension.getKey()).value(dimension.getValue());
+            }
+        }
+        if (meter.getServiceName() != null) {
+            writer.name(SERVICE_NAME_DIMENSION).value(meter.getServiceName());
+        }
+        if (meter.getServiceCall() != null) {
+            writer.name(SERVICE_CALL_DIMENSION).value(meter.getServiceCall());
+        }
+        if (meter.isError()) {
+            writer.name(ERROR_DIMENSION).value("true");
+            if (meter.getErrorType() != null) {
+                writer.name(ERROR_TYPE_DIMENSION).value(meter.getErrorType().getSimpleName());
+            }
+        }
+        writer.endObject();
+
+        writer.endObject();
+    }
+
+    /**
+     * @return true if the given dimension key is written from an attribute of the meter (which overrides a dimension
+     * of the meter with the same key).
+     */
+    private static boolean isAttributeDimension(final QueuedMeter meter, final String key) {
+        switch (key) {
+            case SERVICE_NAME_DIMENSION:
+                return meter.getServiceName() != null;
+            case SERVICE_CALL_DIMENSION:
+                return meter.getServiceCall() != null;
+            case ERROR_DIMENSION:
+                return meter.isError();
+            case ERROR_TYPE_DIMENSION:
+                return meter.isError() && meter.getErrorType() != null;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Reads a meter which was written by {@link #write(JsonWriter, QueuedMeter)}.
+     * @throws IOException if the json is malformed, or isn't a meter record.
+     */
+    public static QueuedMeter read(final JsonReader reader, final MeterInterner interner) throws IOException {
+        String uniqueId = null;
+        String meterName = null;
+        String customerId = null;
+        double meterValue = 1;
+        long meterTimeInMillis = Long.MIN_VALUE;
+        String serviceName = null;
+        String serviceCall = null;
+        boolean error = false;
+        Map<String, String> dimensions = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case UNIQUE_ID:
+                    uniqueId = reader.nextString();
+                    break;
+                case METER_API_NAME:
+                    meterName = reader.nextString();
+                    break;
+                case METER_VALUE:
+                    meterValue = reader.nextDouble();
+                    break;
+                case METER_TIME_IN_MILLIS:
+                    meterTimeInMillis = reader.nextLong();
+                    break;
+                case CUSTOMER_ID:
+                    customerId = reader.nextString();
+                    break;
+                case DIMENSIONS:
+                    dimensions = new HashMap<>();
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        final String dimension = reader.nextName();
+                        final String value = reader.nextString();
+                        if (SERVICE_NAME_DIMENSION.equals(dimension)) {
+                            serviceName = value;
+                        } else if (SERVICE_CALL_DIMENSION.equals(dimension)) {
+                            serviceCall = value;
+                        } else if (ERROR_DIMENSION.equals(dimension)) {
+                            error = Boolean.parseBoolean(value);
+                        } else {
+                            dimensions.put(dimension, value);
+                        }
+                    }
+                    reader.endObject();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (meterName == null || customerId == null || meterTimeInMillis == Long.MIN_VALUE) {
+            throw new IOException("Not a meter record (meterApiName, customerId and meterTimeInMillis are " +
+                    "required)");
+        }
+        return QueuedMeterBuilder.create(interner, meterName, customerId, meterValue, meterTimeInMillis,
+                serviceName, serviceCall, error, null, dimensions, null, uniqueId, IdempotencyKeys.next());
+    }
+}
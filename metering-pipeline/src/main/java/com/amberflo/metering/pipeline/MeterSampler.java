@@ -0,0 +1,242 @@
+package com.amberflo.metering.pipeline;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Samples high volume meters (such as 'Call.processingTime') before they are queued by a {@link MeterPipeline}.
+ *
+ * Each meter is kept with a probability p (its sample rate), and the value of a kept meter is scaled by 1/p. So the
+ * expected value of the SUM of a sampled meter (and of a count which is a sum of 1 values) stays the same as if all of
+ * the meters were sent. MIN/MAX aggregations and the exact number of meter records aren't preserved, so don't sample
+ * meters which are aggregated that way.
+ *
+ * The sample rate of a meter name can be:
+ * 1. Fixed - see {@link Builder#setSampleRate(String, double)}.
+ * 2. Adaptive - the rate is updated every second so about {@link Builder#setTargetRatePerSecond(String, double)}
+ *    meters per second are kept.
+ * 3. The default one - see {@link Builder#setDefaultSampleRate(double)} (defaults to 1 - no sampling).
+ *
+ * Meters on the unsampled list (see {@link Builder#addUnsampledMeters(String...)}) are always kept as is. Use it for
+ * the billing meters you invoice on.
+ *
+ * The sampler can also be configured by a "sampling" section in the metering config (see {@link #fromConfig()}):
+ * <pre>
+ *     "sampling": {
+ *       "defaultSampleRate": 1,
+ *       "sampleRates": { "Call.processingTime": 0.1 },
+ *       "targetRatesPerSecond": { "Call.dataUsage": 1000 },
+ *       "unsampledMeters": [ "Call", "ApiCalls" ]
+ *     }
+ * </pre>
+ */
+public class MeterSampler {
+    public static final String CONFIG_SECTION = "sampling";
+
+    /**
+     * A sampler which keeps all of the meters.
+     */
+    public static final MeterSampler NONE = builder().build();
+
+    private static final long ADAPTIVE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double defaultSampleRate;
+    private final Map<String, Double> sampleRates;
+    private final Map<String, AdaptiveRate> adaptiveRates;
+    private final Set<String> unsampledMeters;
+    private final boolean keepsAll;
+
+    private MeterSampler(final Builder builder) {
+        this.defaultSampleRate = builder.defaultSampleRate;
+        this.sampleRates = Map.copyOf(builder.sampleRates);
+        this.unsampledMeters = Set.copyOf(builder.unsampledMeters);
+
+        final Map<String, AdaptiveRate> rates = new HashMap<>();
+        builder.targetRatesPerSecond.forEach((meterName, target) -> rates.put(meterName, new AdaptiveRate(target)));
+        this.adaptiveRates = Map.copyOf(rates);
+
+        this.keepsAll = defaultSampleRate == 1 && sampleRates.isEmpty() && adaptiveRates.isEmpty();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return a sampler according to the "sampling" section of the current metering config ('dev-metering.json' or
+     * 'prod-metering.json', according to the metering domain), or {@link #NONE} if there is no such section.
+     */
+    public static MeterSampler fromConfig() {
+        return fromConfig(MeteringConfig.read());
+    }
+
+    static MeterSampler fromConfig(final JsonObject config) {
+        final JsonElement section = config.get(CONFIG_SECTION);
+        if (section == null || section.isJsonNull()) {
+            return NONE;
+        }
+
+        final JsonObject sampling = section.getAsJsonObject();
+        final Builder builder = builder();
+        if (sampling.has("defaultSampleRate")) {
+            builder.setDefaultSampleRate(sampling.get("defaultSampleRate").getAsDouble());
+        }
+        if (sampling.has("sampleRates")) {
+            for (final Map.Entry<String, JsonElement> entry : sampling.getAsJsonObject("sampleRates").entrySet()) {
+                builder.setSampleRate(entry.getKey(), entry.getValue().getAsDouble());
+            }
+        }
+        if (sampling.has("targetRatesPerSecond")) {
+            for (final Map.Entry<String, JsonElement> entry :
+                    sampling.getAsJsonObject("targetRatesPerSecond").entrySet()) {
+                builder.setTargetRatePerSecond(entry.getKey(), entry.getValue().getAsDouble());
+            }
+        }
+        if (sampling.has("unsampledMeters")) {
+            for (final JsonElement meterName : sampling.getAsJsonArray("unsampledMeters")) {
+                builder.addUnsampledMeters(meterName.getAsString());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the given meter, a copy of it with a scaled value, or null if the meter was sampled out.
+     */
+    QueuedMeter sample(final QueuedMeter meter) {
+        if (keepsAll) {
+            return meter;
+        }
+
+        final double sampleRate = nextSampleRate(meter.getMeterName());
+        if (sampleRate >= 1) {
+            return meter;
+        }
+        if (ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return null;
+        }
+        return meter.withMeterValue(meter.getMeterValue() / sampleRate);
+    }
+
+    /**
+     * @return the current sample rate of the given meter name (1 if it isn't sampled).
+     */
+    public double getSampleRate(final String meterName) {
+        if (unsampledMeters.contains(meterName)) {
+            return 1;
+        }
+
+        final AdaptiveRate adaptiveRate = adaptiveRates.get(meterName);
+        if (adaptiveRate != null) {
+            return adaptiveRate.probability;
+        }
+
+        return sampleRates.getOrDefault(meterName, defaultSampleRate);
+    }
+
+    private double nextSampleRate(final String meterName) {
+        if (unsampledMeters.contains(meterName)) {
+            return 1;
+        }
+
+        final AdaptiveRate adaptiveRate = adaptiveRates.get(meterName);
+        if (adaptiveRate != null) {
+            return adaptiveRate.next(System.nanoTime());
+        }
+
+        return sampleRates.getOrDefault(meterName, defaultSampleRate);
+    }
+
+    /**
+     * A sample rate which is updated every second according to the amount of meters seen in the previous second.
+     */
+    private static final class AdaptiveRate {
+        private final double targetPerSecond;
+        private final AtomicLong windowStartNanos = new AtomicLong(System.nanoTime());
+        private final AtomicLong seen = new AtomicLong();
+        private volatile double probability = 1;
+
+        private AdaptiveRate(final double targetPerSecond) {
+            this.targetPerSecond = targetPerSecond;
+        }
+
+        private double next(final long nowInNanos) {
+            final long windowStart = windowStartNanos.get();
+            final long elapsed = nowInNanos - windowStart;
+            if (elapsed >= ADAPTIVE_WINDOW_NANOS && windowStartNanos.compareAndSet(windowStart, nowInNanos)) {
+                final double seenPerSecond = seen.getAndSet(0) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+                probability = seenPerSecond <= targetPerSecond ? 1 : targetPerSecond / seenPerSecond;
+            }
+
+            seen.incrementAndGet();
+            return probability;
+        }
+    }
+
+    public static class Builder {
+        private double defaultSampleRate = 1;
+        private final Map<String, Double> sampleRates = new HashMap<>();
+        private final Map<String, Double> targetRatesPerSecond = new HashMap<>();
+        private final Set<String> unsampledMeters = new HashSet<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Optional - defaults to 1. The sample rate of meters which have no other sampling settings.
+         */
+        public Builder setDefaultSampleRate(final double sampleRate) {
+            this.defaultSampleRate = validSampleRate(sampleRate);
+            return this;
+        }
+
+        /**
+         * @param sampleRate the probability (0 < rate <= 1) of keeping a meter with the given name.
+         */
+        public Builder setSampleRate(final String meterName, final double sampleRate) {
+            sampleRates.put(meterName, validSampleRate(sampleRate));
+            return this;
+        }
+
+        /**
+         * Samples the given meter name at an adaptive rate, so about 'targetRatePerSecond' meters are kept each
+         * second. Below that rate, all of the meters are kept.
+         */
+        public Builder setTargetRatePerSecond(final String meterName, final double targetRatePerSecond) {
+            if (!(targetRatePerSecond > 0)) {
+                throw new IllegalArgumentException("targetRatePerSecond of '" + meterName + "' must be positive: " +
+                        targetRatePerSecond);
+            }
+            targetRatesPerSecond.put(meterName, targetRatePerSecond);
+            return this;
+        }
+
+        /**
+         * Meters which are never sampled, regardless of the other settings (for example the billing meters).
+         */
+        public Builder addUnsampledMeters(final String... meterNames) {
+            unsampledMeters.addAll(Arrays.asList(meterNames));
+            return this;
+        }
+
+        public MeterSampler build() {
+            return new MeterSampler(this);
+        }
+
+        private static double validSampleRate(final double sampleRate) {
+            if (!(sampleRate > 0 && sampleRate <= 1)) {
+                throw new IllegalArgumentException("A sample rate must be in (0, 1]: " + sampleRate);
+            }
+            return sampleRate;
+        }
+    }
+}
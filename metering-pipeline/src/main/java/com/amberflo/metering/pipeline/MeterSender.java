@@ -0,0 +1,47 @@
+package com.amberflo.metering.pipeline;
+
+import com.amberflo.metering.pipeline.metrics.PipelineMetrics;
+
+import java.util.List;
+
+/**
+ * The end-point of a {@link MeterPipeline}. The pipeline calls {@link #send(List)} from its sender thread with
+ * batches of up to 'maxBatchSize' meters, and from several threads at the same time while it drains its queue on close
+ * (see {@link MeterPipeline.Builder#setDrainParallelism(int)}) - so a sender should be thread safe.
+ */
+public interface MeterSender extends AutoCloseable {
+    /**
+     * Sends a batch of meters. Throwing an exception marks the entire batch as failed.
+     */
+    void send(List<QueuedMeter> batch) throws Exception;
+
+    /**
+     * @return the type of the end-point this sender sends the meters to. Used for tagging the pipeline metrics.
+     */
+    default String getClientType() {
+        final Class<?> type = getClass();
+        return type.isSynthetic() || type.isAnonymousClass() ? "Custom" : type.getSimpleName();
+    }
+
+    /**
+     * @return true if the sender sends the idempotency key of each meter (see {@link QueuedMeter#getUniqueId()}), so
+     * the end-point commits a meter which is sent twice once. Only then does a pipeline which closes with a deadline
+     * persist the meters of the batches it interrupted (see {@link MeterPipeline#close(java.time.Duration)}).
+     */
+    default boolean sendsIdempotencyKeys() {
+        return false;
+    }
+
+    /**
+     * Called by the pipeline when it is created, so the sender can report retries and the amount of bytes it sent.
+     */
+    default void setMetrics(final PipelineMetrics metrics) {
+    }
+
+    /**
+     * Called once the pipeline was closed and all of the pending batches were sent.
+     */
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,26 @@
+package com.amberflo.metering.pipeline;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Creates the {@link MeterSender} of the "clientType" of the metering config:
+ * 1. 'FileSinkClient' - a {@link FileSinkSender}.
+ * 2. 'IngestApiClient' - an {@link IngestApiSender}.
+ * 3. Any other client type ('DirectClient', 'S3MeteringClient', 'StandardOutputClient') - a
+ * {@link MeteringClientSender} of the metering client.
+ */
+public final class MeterSenders {
+    private MeterSenders() {
+    }
+
+    public static MeterSender fromConfig() {
+        final JsonElement clientType = MeteringConfig.read().get("clientType");
+        if (clientType != null && FileSinkSender.CLIENT_TYPE.equals(clientType.getAsString())) {
+            return FileSinkSender.fromConfig();
+        }
+        if (clientType != null && IngestApiSender.CLIENT_TYPE.equals(clientType.getAsString())) {
+            return IngestApiSender.fromConfig();
+        }
+        return MeteringClientSender.fromContext();
+    }
+}
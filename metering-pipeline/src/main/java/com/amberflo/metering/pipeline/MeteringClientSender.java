@@ -0,0 +1,85 @@
+package com.amberflo.metering.pipeline;
+
+import com.amberflo.metering.common.JsonSerializerFactory;
+import com.amberflo.metering.ingest.Metering;
+import com.amberflo.metering.ingest.MeteringContext;
+import com.amberflo.metering.ingest.meter_message.MeterMessage;
+import com.amberflo.metering.pipeline.jfr.BatchSerializedEvent;
+import com.amberflo.metering.pipeline.jfr.MeteringEvents;
+import com.amberflo.metering.pipeline.metrics.PipelineMetrics;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link MeterSender} which hands the meters over to a {@link Metering} instance of the metering client (a
+ * 'DirectClient', 'S3MeteringClient' or 'StandardOutputClient' according to your metering config).
+ *
+ * As the {@link MeterPipeline} already queues and batches the meters, the metering config works best with
+ * "isAsync": false and a 'maxBatchSize' which is equal to the one of the pipeline.
+ */
+public class MeteringClientSender implements MeterSender {
+    public static final String UNKNOWN_CLIENT_TYPE = "Unknown";
+
+    private final Metering metering;
+    private final String clientType;
+    private final Gson gson = JsonSerializerFactory.getGson();
+    private volatile PipelineMetrics metrics;
+
+    /**
+     * @param clientType the "clientType" of the metering config (used for tagging the pipeline metrics).
+     */
+    public MeteringClientSender(final Metering metering, final String clientType) {
+        this.metering = metering;
+        this.clientType = clientType;
+    }
+
+    /**
+     * @return a sender for the {@link MeteringContext#metering()} of the current metering context. The client type
+     * is taken from the metering config of the current {@link MeteringContext#METERING_DOMAIN}.
+     */
+    public static MeteringClientSender fromContext() {
+        return new MeteringClientSender(MeteringContext.metering(), configuredClientType());
+    }
+
+    @Override
+    public void send(final List<QueuedMeter> batch) {
+        final List<MeterMessage> messages = new ArrayList<>(batch.size());
+        for (final QueuedMeter meter : batch) {
+            messages.add(meter.toMeterMessage());
+        }
+
+        final PipelineMetrics currentMetrics = metrics;
+        if (currentMetrics != null) {
+            // An approximation of the payload (the metering client serializes the meters in a similar way).
+            final BatchSerializedEvent event = MeteringEvents.beginBatchSerialization();
+            final long bytes = gson.toJson(messages).length();
+            MeteringEvents.endBatchSerialization(event, clientType, batch.size(), bytes);
+            currentMetrics.recordBytesSent(bytes);
+        }
+
+        for (final MeterMessage message : messages) {
+            metering.meter(message);
+        }
+    }
+
+    @Override
+    public String getClientType() {
+        return clientType;
+    }
+
+    @Override
+    public void setMetrics(final PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the "clientType" of the current metering config (see {@link MeteringConfig#read()}).
+     */
+    static String configuredClientType() {
+        final JsonElement clientType = MeteringConfig.read().get("clientType");
+        return clientType == null ? UNKNOWN_CLIENT_TYPE : clientType.getAsString();
+    }
+}
@@ -0,0 +1,51 @@
+package com.amberflo.metering.pipeline;
+
+import com.amberflo.metering.ingest.MeteringContext;
+import com.amberflo.metering.ingest.meter_message.Domain;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the pipeline related settings from the metering config of the metering client.
+ */
+final class MeteringConfig {
+    private MeteringConfig() {
+    }
+
+    /**
+     * Reads the 'dev-metering.json' or 'prod-metering.json' resource, according to the
+     * {@link MeteringContext#METERING_DOMAIN} system property (defaults to dev).
+     * @return the config, or an empty object if there is no such resource.
+     * @throws IllegalStateException if the resource exists, but can't be read or isn't a json object - rather than
+     * silently running without its sampling, priorities and cardinality limits, or with the fallback sender.
+     */
+    static JsonObject read() {
+        final String domain = System.getProperty(MeteringContext.METERING_DOMAIN, Domain.Dev.name());
+        final String resource = domain.toLowerCase() + "-metering.json";
+
+        try (final InputStream stream = MeteringConfig.class.getClassLoader().getResourceAsStream(resource)) {
+            if (stream == null) {
+                return new JsonObject();
+            }
+
+            try (final Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+                final JsonElement config = JsonParser.parseReader(reader);
+                if (!config.isJsonObject()) {
+                    throw new IllegalStateException("The metering config " + resource + " isn't a json object");
+                }
+                return config.getAsJsonObject();
+            }
+        } catch (final IOException | JsonParseException e) {
+            throw new IllegalStateException("Failed to read the metering config " + resource + ": " + e.getMessage(),
+                    e);
+        }
+    }
+}
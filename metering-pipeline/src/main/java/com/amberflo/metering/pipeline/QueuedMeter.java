@@ -0,0 +1,221 @@
+package com.amberflo.metering.pipeline;
+
+import com.amberflo.metering.ingest.meter_message.MeterMessage;
+import com.amberflo.metering.ingest.meter_message.MeterMessageBuilder;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Map;
+
+/**
+ * A compact meter held by the {@link MeterPipeline} queue until it is sent. Its attributes are immutable. The queue
+ * state (the lane, the enqueue time and the link to the next meter of a group) is only set on the pipeline's own
+ * instances - a pipeline queues a copy of a meter it was given as is, so the same meter can be queued again, or by
+ * several pipelines.
+ *
+ * All of the string attributes and the dimensions map are (when possible) canonical instances taken from a
+ * {@link MeterInterner}, so near identical meters share them. Use the {@link QueuedMeterBuilder} to create instances.
+ */
+public class QueuedMeter {
+    private final String meterName;
+    private final String customerId;
+    private final double meterValue;
+    private final long meterTimeInMillis;
+    private final String serviceName;
+    private final String serviceCall;
+    private final Class<?> errorType;
+    private final boolean error;
+    private final Map<String, String> dimensions;
+    private final MeterPriority priority;
+    // An explicit idempotency key, or null for a generated one (by the sequence).
+    private final String uniqueId;
+    private final long sequence;
+    private final int retainedBytes;
+    // Set by the pipeline when the meter is queued (on an instance the caller doesn't hold - see #copy()).
+    private long enqueuedAtNanos;
+    private MeterPriority lane;
+    // Meters which were queued together with this one (see MeterPipeline#meterGroup).
+    private QueuedMeter next;
+
+    QueuedMeter(final String meterName, final String customerId, final double meterValue,
+                final long meterTimeInMillis, final String serviceName, final String serviceCall,
+                final boolean error, final Class<?> errorType, final Map<String, String> dimensions,
+                final MeterPriority priority, final String uniqueId, final long sequence,
+                final int retainedBytes) {
+        this.meterName = meterName;
+        this.customerId = customerId;
+        this.meterValue = meterValue;
+        this.meterTimeInMillis = meterTimeInMillis;
+        this.serviceName = serviceName;
+        this.serviceCall = serviceCall;
+        this.error = error;
+        this.errorType = errorType;
+        this.dimensions = dimensions;
+        this.priority = priority;
+        this.uniqueId = uniqueId;
+        this.sequence = sequence;
+        this.retainedBytes = retainedBytes;
+    }
+
+    /**
+     * Converts this meter to a {@link MeterMessage} of the metering client.
+     *
+     * The conversion uses the explicit customer id of this meter (and not the one of the current
+     * {@link com.amberflo.metering.ingest.meter_message.ThreadContext}), so it is safe to call it from a sender thread.
+     */
+    public MeterMessage toMeterMessage() {
+        final LocalDateTime time =
+                LocalDateTime.ofInstant(Instant.ofEpochMilli(meterTimeInMillis), ZoneId.systemDefault());
+        final MeterMessageBuilder builder = MeterMessageBuilder
+                .createInstance(meterName, time, customerId)
+                .setMeterValue(meterValue);
+
+        if (serviceName != null) {
+            builder.setServiceName(serviceName);
+        }
+        if (serviceCall != null) {
+            builder.setServiceCall(serviceCall);
+        }
+        if (errorType != null) {
+            builder.asError(errorType);
+        } else if (error) {
+            builder.asError();
+        }
+        if (!dimensions.isEmpty()) {
+            builder.setDimensionsMap(dimensions);
+        }
+
+        return builder.build();
+    }
+
+    public String getMeterName() {
+        return meterName;
+    }
+
+    public String getCustomerId() {
+        return customerId;
+    }
+
+    public double getMeterValue() {
+        return meterValue;
+    }
+
+    public long getMeterTimeInMillis() {
+        return meterTimeInMillis;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public String getServiceCall() {
+        return serviceCall;
+    }
+
+    public boolean isError() {
+        return error;
+    }
+
+    /**
+     * @return the type of the error (if any).
+     */
+    public Class<?> getErrorType() {
+        return errorType;
+    }
+
+    /**
+     * @return an immutable (and usually canonical) dimensions map. Never null.
+     */
+    public Map<String, String> getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * @return the priority which was set for this meter, or null if the pipeline should decide according to the meter
+     * name (see {@link MeterPipeline.Builder#setPriority(String, MeterPriority)}).
+     */
+    public MeterPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the idempotency key of this meter (the 'uniqueId' of the ingest api). The key is either set explicitly
+     * (see {@link QueuedMeterBuilder#setUniqueId(String)}) or generated when the meter is created, and it stays the
+     * same when the meter is re-sent.
+     */
+    public String getUniqueId() {
+        return uniqueId != null ? uniqueId : IdempotencyKeys.format(sequence);
+    }
+
+    /**
+     * @return an estimation of the amount of bytes this meter holds on its own. Canonical attributes which are
+     * shared with other meters aren't counted.
+     */
+    public int getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * @return a copy of this meter with the given value (used for scaling sampled meters).
+     */
+    QueuedMeter withMeterValue(final double meterValue) {
+        return new QueuedMeter(meterName, customerId, meterValue, meterTimeInMillis, serviceName, serviceCall, error,
+                errorType, dimensions, priority, uniqueId, sequence, retainedBytes);
+    }
+
+    /**
+     * @return a copy of this meter without its queue state.
+     */
+    QueuedMeter copy() {
+        return withMeterValue(meterValue);
+    }
+
+    long getEnqueuedAtNanos() {
+        return enqueuedAtNanos;
+    }
+
+    void setEnqueuedAtNanos(final long enqueuedAtNanos) {
+        this.enqueuedAtNanos = enqueuedAtNanos;
+    }
+
+    String getExplicitUniqueId() {
+        return uniqueId;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    MeterPriority getLane() {
+        return lane;
+    }
+
+    void setLane(final MeterPriority lane) {
+        this.lane = lane;
+    }
+
+    QueuedMeter getNext() {
+        return next;
+    }
+
+    void setNext(final QueuedMeter next) {
+        this.next = next;
+    }
+
+    @Override
+    public String toString() {
+        return "QueuedMeter{" +
+                "uniqueId='" + getUniqueId() + '\'' +
+                ", meterName='" + meterName + '\'' +
+                ", customerId='" + customerId + '\'' +
+                ", meterValue=" + meterValue +
+                ", meterTimeInMillis=" + meterTimeInMillis +
+                ", serviceName='" + serviceName + '\'' +
+                ", serviceCall='" + serviceCall + '\'' +
+                ", error=" + error +
+                ", dimensions=" + dimensions +
+                ", priority=" + priority +
+                '}';
+    }
+}
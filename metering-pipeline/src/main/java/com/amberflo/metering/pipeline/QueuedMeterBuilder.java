@@ -0,0 +1,192 @@
+package com.amberflo.metering.pipeline;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates a {@link QueuedMeter}. The builder looks and behaves similar to the
+ * {@link com.amberflo.metering.ingest.meter_message.MeterMessageBuilder}, only that the attributes of the meter are
+ * interned with a {@link MeterInterner} when calling {@link #build(MeterInterner)}.
+ */
+public class QueuedMeterBuilder {
+    // Object header + 10 compressed references + double + 3 longs + boolean + int, aligned to 8 bytes.
+    private static final int SHALLOW_METER_BYTES = 96;
+
+    private final String meterName;
+    private final long meterTimeInMillis;
+    private final String customerId;
+    private double meterValue = 1;
+    private String serviceName;
+    private String serviceCall;
+    private boolean error;
+    private Class<?> errorType;
+    private Map<String, String> dimensions;
+    private MeterPriority priority;
+    private String uniqueId;
+
+    private QueuedMeterBuilder(final String meterName, final long meterTimeInMillis, final String customerId) {
+        if (meterName == null || meterName.isEmpty()) {
+            throw new IllegalArgumentException("meterName is required");
+        }
+        if (customerId == null || customerId.isEmpty()) {
+            throw new IllegalArgumentException("customerId is required");
+        }
+        this.meterName = meterName;
+        this.meterTimeInMillis = meterTimeInMillis;
+        this.customerId = customerId;
+    }
+
+    public static QueuedMeterBuilder createInstance(final String meterName, final long meterTimeInMillis,
+                                                    final String customerId) {
+        return new QueuedMeterBuilder(meterName, meterTimeInMillis, customerId);
+    }
+
+    /**
+     * Optional - defaults to 1.
+     */
+    public QueuedMeterBuilder setMeterValue(final double meterValue) {
+        this.meterValue = meterValue;
+        return this;
+    }
+
+    public QueuedMeterBuilder setServiceName(final String serviceName) {
+        this.serviceName = serviceName;
+        return this;
+    }
+
+    public QueuedMeterBuilder setServiceCall(final String serviceCall) {
+        this.serviceCall = serviceCall;
+        return this;
+    }
+
+    public QueuedMeterBuilder asError() {
+        this.error = true;
+        return this;
+    }
+
+    public QueuedMeterBuilder asError(final Class<?> errorType) {
+        this.error = true;
+        this.errorType = errorType;
+        return this;
+    }
+
+    /**
+     * Optional - the priority lane of the meter. By default the pipeline decides according to the meter name (see
+     * {@link MeterPipeline.Builder#setPriority(String, MeterPriority)}).
+     */
+    public QueuedMeterBuilder setPriority(final MeterPriority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Optional - an explicit idempotency key (for example when replaying meters which already have one). By default
+     * a key is generated for each meter.
+     */
+    public QueuedMeterBuilder setUniqueId(final String uniqueId) {
+        this.uniqueId = uniqueId;
+        return this;
+    }
+
+    /**
+     * Adds the given dimensions to the meter. Like the MeterMessageBuilder, it's ok to call this method multiple
+     * times as long as there is no intersection between the keys of the maps.
+     */
+    public QueuedMeterBuilder setDimensionsMap(final Map<String, String> dimensionsMap) {
+        if (dimensionsMap == null || dimensionsMap.isEmpty()) {
+            return this;
+        }
+
+        if (dimensions == null) {
+            // Keep the given map as is - in most cases there is a single call to this method, and the map
+            // might already be a canonical one.
+            dimensions = dimensionsMap;
+        } else {
+            final Map<String, String> merged = new HashMap<>(dimensions);
+            for (final Map.Entry<String, String> entry : dimensionsMap.entrySet()) {
+                if (merged.putIfAbsent(entry.getKey(), entry.getValue()) != null) {
+                    throw new IllegalArgumentException("Dimension '" + entry.getKey() + "' was set more than once");
+                }
+            }
+            dimensions = merged;
+        }
+        return this;
+    }
+
+    /**
+     * Builds the meter using the {@link MeterInterner#shared()} interner.
+     */
+    public QueuedMeter build() {
+        return build(MeterInterner.shared());
+    }
+
+    public QueuedMeter build(final MeterInterner interner) {
+        return create(interner, meterName, customerId, meterValue, meterTimeInMillis, serviceName, serviceCall,
+                error, errorType, dimensions, priority, uniqueId, IdempotencyKeys.next());
+    }
+
+    /**
+     * Creates a meter without the builder (for templates which create many meters).
+     */
+    static QueuedMeter create(final MeterInterner interner, final String meterName, final String customerId,
+                              final double meterValue, final long meterTimeInMillis, final String serviceName,
+                              final String serviceCall, final boolean error, final Class<?> errorType,
+                              final Map<String, String> dimensions) {
+        return create(interner, meterName, customerId, meterValue, meterTimeInMillis, serviceName, serviceCall, error,
+                errorType, dimensions, null, null, IdempotencyKeys.next());
+    }
+
+    /**
+     * @param uniqueId an explicit idempotency key, or null for the generated key of the given sequence.
+     */
+    static QueuedMeter create(final MeterInterner interner, final String meterName, final String customerId,
+                              final double meterValue, final long meterTimeInMillis, final String serviceName,
+                              final String serviceCall, final boolean error, final Class<?> errorType,
+                              final Map<String, String> dimensions, final MeterPriority priority,
+                              final String uniqueId, final long sequence) {
+        final String canonicalMeterName = interner.intern(meterName);
+        final String canonicalCustomerId = interner.intern(customerId);
+        final String canonicalServiceName = interner.intern(serviceName);
+        final String canonicalServiceCall = interner.intern(serviceCall);
+        final Map<String, String> canonicalDimensions = interner.dimensions(dimensions);
+
+        final int retainedBytes = SHALLOW_METER_BYTES +
+                retainedBytes(interner, canonicalMeterName) +
+                retainedBytes(interner, canonicalCustomerId) +
+                retainedBytes(interner, canonicalServiceName) +
+                retainedBytes(interner, canonicalServiceCall) +
+                retainedBytes(interner, canonicalDimensions) +
+                // Idempotency keys are unique, so they aren't interned.
+                (uniqueId == null ? 0 : stringBytes(uniqueId));
+
+        return new QueuedMeter(canonicalMeterName, canonicalCustomerId, meterValue, meterTimeInMillis,
+                canonicalServiceName, canonicalServiceCall, error, errorType, canonicalDimensions, priority, uniqueId,
+                sequence, retainedBytes);
+    }
+
+    private static int retainedBytes(final MeterInterner interner, final String value) {
+        return value == null || interner.isCanonical(value) ? 0 : stringBytes(value);
+    }
+
+    private static int retainedBytes(final MeterInterner interner, final Map<String, String> map) {
+        if (interner.isCanonical(map)) {
+            return 0;
+        }
+
+        // Immutable map: object header + a flat array of keys and values (load factor of 0.5).
+        int bytes = 16 + align(16 + map.size() * 4 * 4);
+        for (final Map.Entry<String, String> entry : map.entrySet()) {
+            bytes += retainedBytes(interner, entry.getKey()) + retainedBytes(interner, entry.getValue());
+        }
+        return bytes;
+    }
+
+    private static int stringBytes(final String value) {
+        // String object + its (latin1 compact) byte array.
+        return 24 + align(16 + value.length());
+    }
+
+    private static int align(final int bytes) {
+        return (bytes + 7) & ~7;
+    }
+}
@@ -0,0 +1,78 @@
+package com.amberflo.metering.pipeline;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed amount of sender threads which are shared by several {@link MeterPipeline}s (see
+ * {@link MeterPipeline.Builder#setSenderPool(SenderPool)}), instead of a designated sender thread per pipeline.
+ *
+ * Each pipeline still has its own queue, and sends at most a single batch at a time, so the meters of a pipeline keep
+ * their order. A pipeline whose end-point is slow holds a single thread of the pool, and the other pipelines keep
+ * sending on the rest of the threads.
+ */
+public class SenderPool implements AutoCloseable {
+    public static final int DEFAULT_THREADS = 4;
+
+    private static final AtomicInteger POOL_SEQUENCE = new AtomicInteger();
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * @param threads the amount of batches which can be sent at the same time (by all of the pipelines).
+     */
+    public SenderPool(final int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+
+        final int pool = POOL_SEQUENCE.incrementAndGet();
+        final AtomicInteger threadSequence = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(threads, task -> {
+            final Thread thread =
+                    new Thread(task, "meter-sender-pool-" + pool + "-" + threadSequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    public SenderPool() {
+        this(DEFAULT_THREADS);
+    }
+
+    void execute(final Runnable task) {
+        executor.execute(task);
+    }
+
+    ScheduledFuture<?> schedule(final Runnable task, final long delayInNanos) {
+        return executor.schedule(task, delayInNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isClosed() {
+        return executor.isShutdown();
+    }
+
+    /**
+     * Stops the threads of the pool. Close the pipelines which use the pool first, so their pending meters are sent.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the threads of the pool without waiting, and interrupts the batches which are still being sent (after the
+     * pipelines which use the pool were closed with a deadline, and persisted such batches).
+     */
+    void closeNow() {
+        executor.shutdownNow();
+    }
+}
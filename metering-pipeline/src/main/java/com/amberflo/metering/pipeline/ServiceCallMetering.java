@@ -0,0 +1,123 @@
+package com.amberflo.metering.pipeline;
+
+import com.amberflo.metering.ingest.extensions.ServiceMetering;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * A low overhead way to meter service calls through a {@link MeterPipeline}.
+ *
+ * Timing a call produces the same meters as the 'callCompleted'/'callError' and 'processingTime' templates of
+ * {@link ServiceMetering}:
+ * 1. A {@link ServiceMetering#CALL} meter (marked as an error, with the error type, if the call failed).
+ * 2. A {@link ServiceMetering#CALL_PROCESSING_TIME} meter with the duration of the call in millis.
+ *
+ * The duration is measured with {@link System#nanoTime()} (no time objects or zone conversions), and both meters are
+ * queued as a single pipeline entry (see {@link MeterPipeline#meterGroup(QueuedMeter...)}), so it's cheap enough to
+ * wrap every RPC.
+ *
+ * <pre>
+ *     serviceCallMetering.time(customerId, "process-request", () -> processRequest());
+ *
+ *     // or with a timer (a try-with-resources block works as well if you don't need to mark errors).
+ *     final CallTimer timer = serviceCallMetering.start(customerId, "process-request");
+ *     try {
+ *         processRequest();
+ *     } catch (final Exception e) {
+ *         timer.markError(e);
+ *         throw e;
+ *     } finally {
+ *         timer.close();
+ *     }
+ * </pre>
+ */
+public class ServiceCallMetering {
+    private static final double NANOS_IN_MILLI = 1_000_000d;
+
+    private final MeterPipeline pipeline;
+    private final String serviceName;
+
+    public ServiceCallMetering(final MeterPipeline pipeline) {
+        this(pipeline, null);
+    }
+
+    /**
+     * @param serviceName optional - the service name dimension of the meters.
+     */
+    public ServiceCallMetering(final MeterPipeline pipeline, final String serviceName) {
+        this.pipeline = pipeline;
+        this.serviceName = serviceName;
+    }
+
+    /**
+     * Runs and meters a service call. Exceptions are recorded as a call error and rethrown.
+     */
+    public void time(final String customerId, final String serviceCall, final Runnable call) {
+        final long startTime = System.nanoTime();
+        Throwable error = null;
+        try {
+            call.run();
+        } catch (final RuntimeException | Error e) {
+            error = e;
+            throw e;
+        } finally {
+            record(customerId, serviceCall, startTime, error == null ? null : error.getClass());
+        }
+    }
+
+    /**
+     * Runs and meters a service call. Exceptions are recorded as a call error and rethrown.
+     */
+    public <T> T time(final String customerId, final String serviceCall, final Callable<T> call) throws Exception {
+        final long startTime = System.nanoTime();
+        Throwable error = null;
+        try {
+            return call.call();
+        } catch (final Exception | Error e) {
+            error = e;
+            throw e;
+        } finally {
+            record(customerId, serviceCall, startTime, error == null ? null : error.getClass());
+        }
+    }
+
+    /**
+     * Starts timing a service call. The meters are queued when the returned timer is closed.
+     */
+    public CallTimer start(final String customerId, final String serviceCall) {
+        return new CallTimer(this, customerId, serviceCall, System.nanoTime());
+    }
+
+    void record(final String customerId, final String serviceCall, final long startTimeInNanos,
+                final Class<?> errorType) {
+        record(customerId, serviceCall, startTimeInNanos, errorType, 0);
+    }
+
+    /**
+     * Meters a call which started at the given {@link System#nanoTime()} and ended now. Use it when you can't wrap
+     * the call (interceptors, callbacks, etc).
+     * @param errorType the type of the error the call failed with (null if the call succeeded).
+     * @param dataUsageInMb if positive, a {@link ServiceMetering#CALL_DATA_USAGE} meter is queued as well.
+     */
+    public void record(final String customerId, final String serviceCall, final long startTimeInNanos,
+                       final Class<?> errorType, final double dataUsageInMb) {
+        final double durationInMillis = (System.nanoTime() - startTimeInNanos) / NANOS_IN_MILLI;
+        final long endTimeInMillis = System.currentTimeMillis();
+        final MeterInterner interner = pipeline.getInterner();
+        final boolean isError = errorType != null;
+
+        final QueuedMeter call = QueuedMeterBuilder.create(interner, ServiceMetering.CALL, customerId, 1,
+                endTimeInMillis, serviceName, serviceCall, isError, errorType, Map.of());
+        final QueuedMeter processingTime = QueuedMeterBuilder.create(interner, ServiceMetering.CALL_PROCESSING_TIME,
+                customerId, durationInMillis, endTimeInMillis, serviceName, serviceCall, false, null, Map.of());
+
+        if (dataUsageInMb > 0) {
+            final QueuedMeter dataUsage = QueuedMeterBuilder.create(interner, ServiceMetering.CALL_DATA_USAGE,
+                    customerId, dataUsageInMb, endTimeInMillis, serviceName, serviceCall, false, null, Map.of());
+            pipeline.meterGroup(call, processingTime, dataUsage);
+        } else {
+            pipeline.meterGroup(call, processingTime);
+        }
+    }
+}
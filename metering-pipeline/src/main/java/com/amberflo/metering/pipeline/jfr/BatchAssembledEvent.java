@@ -0,0 +1,28 @@
+package com.amberflo.metering.pipeline.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("com.amberflo.metering.BatchAssembled")
+@Label("Meters Batch Assembled")
+@Description("The sender thread of a meter pipeline assembled a batch of meters (the duration is the time it " +
+        "waited for the batch to fill up)")
+@Category({"Amberflo", "Metering"})
+@StackTrace(false)
+public class BatchAssembledEvent extends Event {
+    @Label("Pipeline")
+    String pipeline;
+
+    @Label("Batch Size")
+    int batchSize;
+
+    @Label("Oldest Meter Age")
+    @Description("The time the oldest meter of the batch spent in the queue")
+    @Timespan(Timespan.NANOSECONDS)
+    long oldestMeterAge;
+}
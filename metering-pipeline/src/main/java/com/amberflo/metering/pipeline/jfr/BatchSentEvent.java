@@ -0,0 +1,35 @@
+package com.amberflo.metering.pipeline.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.amberflo.metering.BatchSent")
+@Label("Meters Batch Sent")
+@Description("A sender completed sending a batch of meters to its end-point (the duration is the send latency)")
+@Category({"Amberflo", "Metering"})
+@StackTrace(false)
+public class BatchSentEvent extends Event {
+    @Label("Pipeline")
+    String pipeline;
+
+    @Label("Client Type")
+    String clientType;
+
+    @Label("Batch Size")
+    int batchSize;
+
+    @Label("Succeeded")
+    boolean succeeded;
+
+    @Label("Status Code")
+    @Description("The HTTP status of the last attempt (0 if there was no response, or if the sender isn't HTTP based)")
+    int statusCode;
+
+    @Label("Error")
+    @Description("The type of the error (if the send failed)")
+    String error;
+}
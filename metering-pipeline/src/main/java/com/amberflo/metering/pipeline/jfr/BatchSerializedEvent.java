@@ -0,0 +1,26 @@
+package com.amberflo.metering.pipeline.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.amberflo.metering.BatchSerialized")
+@Label("Meters Batch Serialized")
+@Description("A sender serialized a batch of meters")
+@Category({"Amberflo", "Metering"})
+@StackTrace(false)
+public class BatchSerializedEvent extends Event {
+    @Label("Client Type")
+    String clientType;
+
+    @Label("Batch Size")
+    int batchSize;
+
+    @Label("Serialized Size")
+    @DataAmount
+    long bytes;
+}
@@ -0,0 +1,29 @@
+package com.amberflo.metering.pipeline.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.amberflo.metering.MeterEnqueued")
+@Label("Meter Enqueued")
+@Description("A meter was queued by a meter pipeline")
+@Category({"Amberflo", "Metering"})
+@StackTrace(false)
+public class MeterEnqueuedEvent extends Event {
+    @Label("Pipeline")
+    String pipeline;
+
+    @Label("Meter Name")
+    String meterName;
+
+    @Label("Queue Depth")
+    @Description("The queue depth right after queueing the meter")
+    int queueDepth;
+
+    @Label("Accepted")
+    @Description("False if the meter was dropped")
+    boolean accepted;
+}
@@ -0,0 +1,121 @@
+package com.amberflo.metering.pipeline.jfr;
+
+/**
+ * Emits the Java Flight Recorder events of the meter pipeline.
+ *
+ * The events are cheap (no stack traces, and nothing is done unless the event is enabled in the recording), so they
+ * can be left on in production recordings. Use the 'metering.jfc' settings profile (a resource of this module) to
+ * enable them:
+ * <pre>
+ *     java -XX:StartFlightRecording=settings=/path/to/metering.jfc,filename=metering.jfr ...
+ * </pre>
+ *
+ * Duration events are started with a 'begin' method, and committed with the matching 'end' method.
+ */
+public final class MeteringEvents {
+    // The batch send event of the current thread (if it is enabled), so the sender can add its http status to it.
+    private static final ThreadLocal<BatchSentEvent> CURRENT_BATCH_SEND = new ThreadLocal<>();
+
+    private MeteringEvents() {
+    }
+
+    public static void meterEnqueued(final String pipeline, final String meterName, final int queueDepth,
+                                     final boolean accepted) {
+        final MeterEnqueuedEvent event = new MeterEnqueuedEvent();
+        if (event.shouldCommit()) {
+            event.pipeline = pipeline;
+            event.meterName = meterName;
+            event.queueDepth = queueDepth;
+            event.accepted = accepted;
+            event.commit();
+        }
+    }
+
+    public static BatchAssembledEvent beginBatchAssembly() {
+        final BatchAssembledEvent event = new BatchAssembledEvent();
+        event.begin();
+        return event;
+    }
+
+    public static void endBatchAssembly(final BatchAssembledEvent event, final String pipeline, final int batchSize,
+                                        final long oldestMeterAgeInNanos) {
+        event.end();
+        if (batchSize > 0 && event.shouldCommit()) {
+            event.pipeline = pipeline;
+            event.batchSize = batchSize;
+            event.oldestMeterAge = oldestMeterAgeInNanos;
+            event.commit();
+        }
+    }
+
+    public static BatchSerializedEvent beginBatchSerialization() {
+        final BatchSerializedEvent event = new BatchSerializedEvent();
+        event.begin();
+        return event;
+    }
+
+    public static void endBatchSerialization(final BatchSerializedEvent event, final String clientType,
+                                             final int batchSize, final long bytes) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.clientType = clientType;
+            event.batchSize = batchSize;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    public static BatchSentEvent beginBatchSend() {
+        final BatchSentEvent event = new BatchSentEvent();
+        event.begin();
+        if (event.isEnabled()) {
+            CURRENT_BATCH_SEND.set(event);
+        }
+        return event;
+    }
+
+    /**
+     * Called by a sender (on the thread which sends the batch) with the http status of the response it got - or 0 if
+     * there was no response. The status of the last attempt is reported by the batch send event.
+     */
+    public static void batchSendStatus(final int statusCode) {
+        final BatchSentEvent event = CURRENT_BATCH_SEND.get();
+        if (event != null) {
+            event.statusCode = statusCode;
+        }
+    }
+
+    /**
+     * @param error the error the send failed with (null if it succeeded).
+     */
+    public static void endBatchSend(final BatchSentEvent event, final String pipeline, final String clientType,
+                                    final int batchSize, final Throwable error) {
+        if (CURRENT_BATCH_SEND.get() == event) {
+            CURRENT_BATCH_SEND.remove();
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.pipeline = pipeline;
+            event.clientType = clientType;
+            event.batchSize = batchSize;
+            event.succeeded = error == null;
+            event.error = error == null ? null : error.getClass().getName();
+            event.commit();
+        }
+    }
+
+    public static PipelineDrainedEvent beginDrain() {
+        final PipelineDrainedEvent event = new PipelineDrainedEvent();
+        event.begin();
+        return event;
+    }
+
+    public static void endDrain(final PipelineDrainedEvent event, final String pipeline, final int pendingMeters) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.pipeline = pipeline;
+            event.pendingMeters = pendingMeters;
+            event.commit();
+        }
+    }
+}
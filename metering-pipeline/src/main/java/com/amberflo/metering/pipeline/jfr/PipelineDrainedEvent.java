@@ -0,0 +1,22 @@
+package com.amberflo.metering.pipeline.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.amberflo.metering.PipelineDrained")
+@Label("Meter Pipeline Drained")
+@Description("A meter pipeline was closed and sent all of its pending meters (the duration is the drain time)")
+@Category({"Amberflo", "Metering"})
+@StackTrace(false)
+public class PipelineDrainedEvent extends Event {
+    @Label("Pipeline")
+    String pipeline;
+
+    @Label("Pending Meters")
+    @Description("The amount of queued meters when the pipeline was closed")
+    int pendingMeters;
+}
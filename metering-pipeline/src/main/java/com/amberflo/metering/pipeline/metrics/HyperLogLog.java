@@ -0,0 +1,108 @@
+package com.amberflo.metering.pipeline.metrics;
+
+/**
+ * A HyperLogLog sketch - estimates the amount of distinct strings it saw with a fixed amount of memory (2^precision
+ * bytes), and a standard error of about 1.04 / sqrt(2^precision) (2.3% for the default precision of 11).
+ *
+ * Adding a value is lock free when it doesn't change the sketch, which is the common case once the sketch saw a few
+ * thousands values. The rare register updates are synchronized, and keep the estimate up to date incrementally, so
+ * {@link #estimate()} is cheap as well.
+ */
+public class HyperLogLog {
+    public static final int DEFAULT_PRECISION = 11;
+
+    private final int precision;
+    private final byte[] registers;
+    private final double alpha;
+    // Guarded by this.
+    private double inverseSum;
+    private int zeroRegisters;
+    private volatile long estimate;
+
+    /**
+     * @param precision between 4 and 16 - the sketch uses 2^precision bytes.
+     */
+    public HyperLogLog(final int precision) {
+        if (precision < 4 || precision > 16) {
+            throw new IllegalArgumentException("precision must be between 4 and 16: " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+        this.inverseSum = registers.length;
+        this.zeroRegisters = registers.length;
+
+        final int m = registers.length;
+        this.alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+    }
+
+    /**
+     * @return the amount of bytes used by a sketch of the given precision.
+     */
+    public static int sizeInBytes(final int precision) {
+        return 1 << precision;
+    }
+
+    /**
+     * @return true if the sketch changed (its estimate might have grown).
+     */
+    public boolean add(final String value) {
+        return addHash(hash(value));
+    }
+
+    public boolean addHash(final long hash) {
+        final int index = (int) (hash >>> (Long.SIZE - precision));
+        final int rank = Math.min(Long.numberOfLeadingZeros(hash << precision) + 1, Long.SIZE - precision + 1);
+        // A racy read - a stale value only means taking the lock for nothing.
+        if (registers[index] >= rank) {
+            return false;
+        }
+
+        synchronized (this) {
+            final int current = registers[index];
+            if (current >= rank) {
+                return false;
+            }
+            registers[index] = (byte) rank;
+            inverseSum += Math.scalb(1d, -rank) - Math.scalb(1d, -current);
+            if (current == 0) {
+                zeroRegisters--;
+            }
+            estimate = computeEstimate();
+            return true;
+        }
+    }
+
+    /**
+     * @return the estimated amount of distinct values.
+     */
+    public long estimate() {
+        return estimate;
+    }
+
+    private long computeEstimate() {
+        final int m = registers.length;
+        final double raw = alpha * m * m / inverseSum;
+        if (raw <= 2.5 * m && zeroRegisters > 0) {
+            // Small range correction (linear counting).
+            return Math.round(m * Math.log((double) m / zeroRegisters));
+        }
+        return Math.round(raw);
+    }
+
+    /**
+     * A 64 bit hash of a string (FNV-1a over its chars, with a final avalanche mix). Doesn't allocate.
+     */
+    public static long hash(final String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
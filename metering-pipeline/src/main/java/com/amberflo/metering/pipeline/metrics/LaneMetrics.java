@@ -0,0 +1,140 @@
+package com.amberflo.metering.pipeline.metrics;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Live metrics of a single priority lane of a {@link com.amberflo.metering.pipeline.MeterPipeline} (see
+ * {@link PipelineMetrics#addLane(String, IntSupplier, int)}).
+ *
+ * The lag of a lane is the time from queueing a meter until its batch was sent. A growing lag of the lower priority
+ * lanes is expected under load, as the billing lane is always drained first.
+ */
+public class LaneMetrics implements LaneMetricsMXBean {
+    public static final String JMX_TYPE = "MeterPipelineLane";
+
+    public static final String LANE_DEPTH = "metering.pipeline.lane.depth";
+    public static final String LANE_ENQUEUED = "metering.pipeline.lane.enqueued";
+    public static final String LANE_DROPPED = "metering.pipeline.lane.dropped";
+    public static final String LANE_LAG = "metering.pipeline.lane.lag.millis";
+
+    private static final double NANOS_IN_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String pipelineName;
+    private final String lane;
+    private final IntSupplier depth;
+    private final int capacity;
+    private final MetricsRegistry registry;
+    private final Map<String, String> tags;
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final Histogram lagNanos = new Histogram();
+
+    LaneMetrics(final String pipelineName, final String lane, final IntSupplier depth, final int capacity,
+                final MetricsRegistry registry, final Map<String, String> pipelineTags) {
+        this.pipelineName = pipelineName;
+        this.lane = lane;
+        this.depth = depth;
+        this.capacity = capacity;
+        this.registry = registry;
+
+        final Map<String, String> laneTags = new HashMap<>(pipelineTags);
+        laneTags.put("lane", lane);
+        this.tags = Map.copyOf(laneTags);
+
+        registry.gauge(LANE_DEPTH, tags, depth::getAsInt);
+    }
+
+    public void recordEnqueued(final int meters) {
+        enqueued.add(meters);
+        registry.increment(LANE_ENQUEUED, tags, meters);
+    }
+
+    /**
+     * Records meters of this lane which were lost (full lane, evicted for higher priority meters, etc).
+     */
+    public void recordDropped(final long meters) {
+        dropped.add(meters);
+        registry.increment(LANE_DROPPED, tags, meters);
+    }
+
+    /**
+     * Records the time from queueing a meter of this lane until its batch was sent.
+     */
+    public void recordLag(final long lagInNanos) {
+        lagNanos.record(lagInNanos);
+        registry.record(LANE_LAG, tags, lagInNanos / NANOS_IN_MILLI);
+    }
+
+    /**
+     * @return a point in time copy of all of the metrics (by their JMX attribute names).
+     */
+    public Map<String, Object> snapshot() {
+        final Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("Lane", getLane());
+        snapshot.put("Depth", getDepth());
+        snapshot.put("Capacity", getCapacity());
+        snapshot.put("EnqueuedCount", getEnqueuedCount());
+        snapshot.put("DroppedCount", getDroppedCount());
+        snapshot.put("LagMillisMean", getLagMillisMean());
+        snapshot.put("LagMillisP50", getLagMillisP50());
+        snapshot.put("LagMillisP99", getLagMillisP99());
+        snapshot.put("LagMillisMax", getLagMillisMax());
+        return snapshot;
+    }
+
+    @Override
+    public String getPipelineName() {
+        return pipelineName;
+    }
+
+    @Override
+    public String getLane() {
+        return lane;
+    }
+
+    @Override
+    public int getDepth() {
+        return depth.getAsInt();
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public long getEnqueuedCount() {
+        return enqueued.sum();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public double getLagMillisMean() {
+        return lagNanos.getMean() / NANOS_IN_MILLI;
+    }
+
+    @Override
+    public double getLagMillisP50() {
+        return lagNanos.getPercentile(0.5) / NANOS_IN_MILLI;
+    }
+
+    @Override
+    public double getLagMillisP99() {
+        return lagNanos.getPercentile(0.99) / NANOS_IN_MILLI;
+    }
+
+    @Override
+    public double getLagMillisMax() {
+        return lagNanos.getMax() / NANOS_IN_MILLI;
+    }
+}
@@ -0,0 +1,26 @@
+package com.amberflo.metering.pipeline.metrics;
+
+/**
+ * The JMX view of the {@link LaneMetrics}. Latencies are in millis.
+ */
+public interface LaneMetricsMXBean {
+    String getPipelineName();
+
+    String getLane();
+
+    int getDepth();
+
+    int getCapacity();
+
+    long getEnqueuedCount();
+
+    long getDroppedCount();
+
+    double getLagMillisMean();
+
+    double getLagMillisP50();
+
+    double getLagMillisP99();
+
+    double getLagMillisMax();
+}
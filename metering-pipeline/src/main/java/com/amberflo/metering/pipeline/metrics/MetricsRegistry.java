@@ -0,0 +1,42 @@
+package com.amberflo.metering.pipeline.metrics;
+
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A minimal metrics registry the {@link PipelineMetrics} reports to. Implement it in order to bridge the pipeline
+ * metrics to your metrics stack (micrometer, dropwizard, etc).
+ *
+ * The tags maps are created once per pipeline, so implementations can cache their meters by (name, tags).
+ * Implementations must be thread safe and cheap, as some of the methods are called for every meter.
+ */
+public interface MetricsRegistry {
+    MetricsRegistry NOOP = new MetricsRegistry() {
+        @Override
+        public void increment(final String name, final Map<String, String> tags, final long delta) {
+        }
+
+        @Override
+        public void record(final String name, final Map<String, String> tags, final double value) {
+        }
+
+        @Override
+        public void gauge(final String name, final Map<String, String> tags, final DoubleSupplier value) {
+        }
+    };
+
+    /**
+     * Increments a counter.
+     */
+    void increment(String name, Map<String, String> tags, long delta);
+
+    /**
+     * Records a value of a distribution (histogram).
+     */
+    void record(String name, Map<String, String> tags, double value);
+
+    /**
+     * Registers a gauge. Called once per gauge when the pipeline is created.
+     */
+    void gauge(String name, Map<String, String> tags, DoubleSupplier value);
+}
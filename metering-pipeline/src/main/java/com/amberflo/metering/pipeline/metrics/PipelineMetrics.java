@@ -0,0 +1,415 @@
+package com.amberflo.metering.pipeline.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Live metrics of a single {@link com.amberflo.metering.pipeline.MeterPipeline}.
+ *
+ * The metrics are kept in memory (for JMX and {@link #snapshot()}), and are also reported to a
+ * {@link MetricsRegistry} tagged by the pipeline name and the client type of its sender ('DirectClient',
+ * 'S3MeteringClient', 'StandardOutputClient', etc).
+ *
+ * Latencies:
+ * 1. Flush latency - the time from queueing the oldest meter of a batch until the batch was sent.
+ * 2. Send latency - the time it took the sender to send a batch.
+ *
+ * Each priority lane of the pipeline has its own {@link LaneMetrics} (depth, dropped meters and lag), which are
+ * published as a separate MBean.
+ */
+public class PipelineMetrics implements PipelineMetricsMXBean {
+    public static final String JMX_DOMAIN = "com.amberflo.metering";
+    public static final String JMX_TYPE = "MeterPipeline";
+
+    public static final String ENQUEUED = "metering.pipeline.enqueued";
+    public static final String QUEUE_DEPTH = "metering.pipeline.queue.depth";
+    public static final String QUEUE_DEPTH_HIGH_WATER_MARK = "metering.pipeline.queue.depth.max";
+    public static final String BATCH_SIZE = "metering.pipeline.batch.size";
+    public static final String FLUSH_LATENCY = "metering.pipeline.flush.latency.millis";
+    public static final String SEND_LATENCY = "metering.pipeline.send.latency.millis";
+    public static final String RETRIES = "metering.pipeline.retries";
+    public static final String DROPPED = "metering.pipeline.dropped";
+    public static final String PERSISTED = "metering.pipeline.persisted";
+    public static final String SAMPLED_OUT = "metering.pipeline.sampled.out";
+    public static final String CAPPED = "metering.pipeline.cardinality.capped";
+    public static final String DUPLICATES = "metering.pipeline.duplicates";
+    public static final String FAILED_BATCHES = "metering.pipeline.batches.failed";
+    public static final String BYTES_SENT = "metering.pipeline.bytes.sent";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PipelineMetrics.class);
+    private static final double NANOS_IN_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String pipelineName;
+    private final String clientType;
+    private final IntSupplier queueDepth;
+    private final MetricsRegistry registry;
+    private final Map<String, String> tags;
+
+    private final RateMeter enqueued = new RateMeter();
+    private final AtomicInteger queueDepthHighWaterMark = new AtomicInteger();
+    private final Histogram batchSizes = new Histogram();
+    private final Histogram flushLatencyNanos = new Histogram();
+    private final Histogram sendLatencyNanos = new Histogram();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder persisted = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+    private final LongAdder capped = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+
+    private final List<LaneMetrics> lanes = new CopyOnWriteArrayList<>();
+
+    private final List<ObjectName> laneObjectNames = new CopyOnWriteArrayList<>();
+
+    private volatile ObjectName objectName;
+
+    public PipelineMetrics(final String pipelineName, final String clientType, final IntSupplier queueDepth,
+                           final MetricsRegistry registry) {
+        this.pipelineName = pipelineName;
+        this.clientType = clientType;
+        this.queueDepth = queueDepth;
+        this.registry = registry;
+        this.tags = Map.of("pipeline", pipelineName, "clientType", clientType);
+
+        registry.gauge(QUEUE_DEPTH, tags, queueDepth::getAsInt);
+        registry.gauge(QUEUE_DEPTH_HIGH_WATER_MARK, tags, queueDepthHighWaterMark::get);
+    }
+
+    /**
+     * Adds the metrics of a priority lane of the pipeline. Call it before {@link #registerMBean()}.
+     * @param depth the current amount of entries in the lane.
+     */
+    public LaneMetrics addLane(final String lane, final IntSupplier depth, final int capacity) {
+        final LaneMetrics laneMetrics = new LaneMetrics(pipelineName, lane, depth, capacity, registry, tags);
+        lanes.add(laneMetrics);
+        return laneMetrics;
+    }
+
+    public List<LaneMetrics> getLanes() {
+        return List.copyOf(lanes);
+    }
+
+    /**
+     * Records meters which were queued.
+     * @param depth the queue depth right after queueing the meters.
+     */
+    public void recordEnqueued(final int meters, final int depth) {
+        enqueued.mark(meters);
+        queueDepthHighWaterMark.accumulateAndGet(depth, Math::max);
+        registry.increment(ENQUEUED, tags, meters);
+    }
+
+    /**
+     * Records meters which were lost (full queue, closed pipeline, failed batch, etc).
+     */
+    public void recordDropped(final long meters) {
+        dropped.add(meters);
+        registry.increment(DROPPED, tags, meters);
+    }
+
+    /**
+     * Records meters which weren't sent before the deadline of a close, and were written to the spill file (see
+     * {@link com.amberflo.metering.pipeline.MeterPipeline#close(java.time.Duration)}).
+     */
+    public void recordPersisted(final long meters) {
+        persisted.add(meters);
+        registry.increment(PERSISTED, tags, meters);
+    }
+
+    /**
+     * Records meters which weren't queued as they were sampled out (see
+     * {@link com.amberflo.metering.pipeline.MeterSampler}).
+     */
+    public void recordSampledOut(final long meters) {
+        sampledOut.add(meters);
+        registry.increment(SAMPLED_OUT, tags, meters);
+    }
+
+    /**
+     * Records meters whose dimensions were capped as their cardinality was too high (see
+     * {@link com.amberflo.metering.pipeline.CardinalityGuard}).
+     */
+    public void recordCapped(final long meters) {
+        capped.add(meters);
+        registry.increment(CAPPED, tags, meters);
+    }
+
+    /**
+     * Records meters which weren't sent as their idempotency keys were already sent (see
+     * {@link com.amberflo.metering.pipeline.DedupFilter}).
+     */
+    public void recordDuplicates(final long meters) {
+        duplicates.add(meters);
+        registry.increment(DUPLICATES, tags, meters);
+    }
+
+    /**
+     * Records a batch the pipeline handed to its sender.
+     */
+    public void recordBatch(final int size, final long flushLatencyInNanos, final long sendLatencyInNanos,
+                            final boolean succeeded) {
+        batchSizes.record(size);
+        flushLatencyNanos.record(flushLatencyInNanos);
+        sendLatencyNanos.record(sendLatencyInNanos);
+        registry.record(BATCH_SIZE, tags, size);
+        registry.record(FLUSH_LATENCY, tags, flushLatencyInNanos / NANOS_IN_MILLI);
+        registry.record(SEND_LATENCY, tags, sendLatencyInNanos / NANOS_IN_MILLI);
+
+        // The pipeline records the meters of a failed batch as dropped, unless it persists them on close.
+        if (!succeeded) {
+            failedBatches.increment();
+            registry.increment(FAILED_BATCHES, tags, 1);
+        }
+    }
+
+    /**
+     * Used by senders which retry sending a batch.
+     */
+    public void recordRetry() {
+        retries.increment();
+        registry.increment(RETRIES, tags, 1);
+    }
+
+    /**
+     * Used by senders to report the amount of (serialized) bytes they sent.
+     */
+    public void recordBytesSent(final long bytes) {
+        bytesSent.add(bytes);
+        registry.increment(BYTES_SENT, tags, bytes);
+    }
+
+    /**
+     * Registers this instance in the platform MBean server as
+     * 'com.amberflo.metering:type=MeterPipeline,name=[pipeline name],clientType=[client type]', and its lanes as
+     * 'com.amberflo.metering:type=MeterPipelineLane,pipeline=[pipeline name],lane=[lane]'.
+     */
+    public void registerMBean() {
+        try {
+            final ObjectName name = new ObjectName(JMX_DOMAIN + ":type=" + JMX_TYPE +
+                    ",name=" + ObjectName.quote(pipelineName) + ",clientType=" + ObjectName.quote(clientType));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+
+            for (final LaneMetrics lane : lanes) {
+                final ObjectName laneName = new ObjectName(JMX_DOMAIN + ":type=" + LaneMetrics.JMX_TYPE +
+                        ",pipeline=" + ObjectName.quote(pipelineName) + ",lane=" + lane.getLane());
+                ManagementFactory.getPlatformMBeanServer().registerMBean(lane, laneName);
+                laneObjectNames.add(laneName);
+            }
+        } catch (final JMException e) {
+            LOGGER.warn("Failed to register the metrics MBean of pipeline '{}'", pipelineName, e);
+        }
+    }
+
+    public void unregisterMBean() {
+        final List<ObjectName> names = new ArrayList<>(laneObjectNames);
+        laneObjectNames.clear();
+        if (objectName != null) {
+            names.add(objectName);
+            objectName = null;
+        }
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (final ObjectName name : names) {
+            try {
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (final JMException e) {
+                LOGGER.warn("Failed to unregister the metrics MBean '{}' of pipeline '{}'", name, pipelineName, e);
+            }
+        }
+    }
+
+    /**
+     * @return a point in time copy of all of the metrics (by their JMX attribute names).
+     */
+    public Map<String, Object> snapshot() {
+        final Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("PipelineName", getPipelineName());
+        snapshot.put("ClientType", getClientType());
+        snapshot.put("EnqueuedCount", getEnqueuedCount());
+        snapshot.put("EnqueueRatePerSecond", getEnqueueRatePerSecond());
+        snapshot.put("QueueDepth", getQueueDepth());
+        snapshot.put("QueueDepthHighWaterMark", getQueueDepthHighWaterMark());
+        snapshot.put("BatchCount", getBatchCount());
+        snapshot.put("BatchSizeMean", getBatchSizeMean());
+        snapshot.put("BatchSizeP50", getBatchSizeP50());
+        snapshot.put("BatchSizeP99", getBatchSizeP99());
+        snapshot.put("BatchSizeMax", getBatchSizeMax());
+        snapshot.put("FlushLatencyMillisMean", getFlushLatencyMillisMean());
+        snapshot.put("FlushLatencyMillisP50", getFlushLatencyMillisP50());
+        snapshot.put("FlushLatencyMillisP99", getFlushLatencyMillisP99());
+        snapshot.put("FlushLatencyMillisMax", getFlushLatencyMillisMax());
+        snapshot.put("SendLatencyMillisMean", getSendLatencyMillisMean());
+        snapshot.put("SendLatencyMillisP50", getSendLatencyMillisP50());
+        snapshot.put("SendLatencyMillisP99", getSendLatencyMillisP99());
+        snapshot.put("SendLatencyMillisMax", getSendLatencyMillisMax());
+        snapshot.put("RetryCount", getRetryCount());
+        snapshot.put("DroppedCount", getDroppedCount());
+        snapshot.put("PersistedCount", getPersistedCount());
+        snapshot.put("SampledOutCount", getSampledOutCount());
+        snapshot.put("CappedCount", getCappedCount());
+        snapshot.put("DuplicateCount", getDuplicateCount());
+        snapshot.put("FailedBatchCount", getFailedBatchCount());
+        snapshot.put("BytesSent", getBytesSent());
+
+        final List<Map<String, Object>> laneSnapshots = new ArrayList<>();
+        for (final LaneMetrics lane : lanes) {
+            laneSnapshots.add(lane.snapshot());
+        }
+        snapshot.put("Lanes", laneSnapshots);
+        return snapshot;
+    }
+
+    @Override
+    public String getPipelineName() {
+        return pipelineName;
+    }
+
+    @Override
+    public String getClientType() {
+        return clientType;
+    }
+
+    @Override
+    public long getEnqueuedCount() {
+        return enqueued.getCount();
+    }
+
+    @Override
+    public double getEnqueueRatePerSecond() {
+        return enqueued.getRatePerSecond();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    @Override
+    public int getQueueDepthHighWaterMark() {
+        return queueDepthHighWaterMark.get();
+    }
+
+    @Override
+    public long getBatchCount() {
+        return batchSizes.getCount();
+    }
+
+    @Override
+    public double getBatchSizeMean() {
+        return batchSizes.getMean();
+    }
+
+    @Override
+    public long getBatchSizeP50() {
+        return batchSizes.getPercentile(0.5);
+    }
+
+    @Override
+    public long getBatchSizeP99() {
+        return batchSizes.getPercentile(0.99);
+    }
+
+    @Override
+    public long getBatchSizeMax() {
+        return batchSizes.getMax();
+    }
+
+    @Override
+    public double getFlushLatencyMillisMean() {
+        return flushLatencyNanos.getMean() / NANOS_IN_MILLI;
+    }
+
+    @Override
+    public double getFlushLatencyMillisP50() {
+        return flushLatencyNanos.getPercentile(0.5) / NANOS_IN_MILLI;
+    }
+
+    @Override
+    public double getFlushLatencyMillisP99() {
+        return flushLatencyNanos.getPercentile(0.99) / NANOS_IN_MILLI;
+    }
+
+    @Override
+    public double getFlushLatencyMillisMax() {
+        return flushLatencyNanos.getMax() / NANOS_IN_MILLI;
+    }
+
+    @Override
+    public double getSendLatencyMillisMean() {
+        return sendLatencyNanos.getMean() / NANOS_IN_MILLI;
+    }
+
+    @Override
+    public double getSendLatencyMillisP50() {
+        return sendLatencyNanos.getPercentile(0.5) / NANOS_IN_MILLI;
+    }
+
+    @Override
+    public double getSendLatencyMillisP99() {
+        return sendLatencyNanos.getPercentile(0.99) / NANOS_IN_MILLI;
+    }
+
+    @Override
+    public double getSendLatencyMillisMax() {
+        return sendLatencyNanos.getMax() / NANOS_IN_MILLI;
+    }
+
+    @Override
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public long getPersistedCount() {
+        return persisted.sum();
+    }
+
+    @Override
+    public long getSampledOutCount() {
+        return sampledOut.sum();
+    }
+
+    @Override
+    public long getCappedCount() {
+        return capped.sum();
+    }
+
+    @Override
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+
+    @Override
+    public long getFailedBatchCount() {
+        return failedBatches.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+}
@@ -0,0 +1,60 @@
+package com.amberflo.metering.pipeline.metrics;
+
+/**
+ * The JMX view of the {@link PipelineMetrics}. Latencies are in millis.
+ */
+public interface PipelineMetricsMXBean {
+    String getPipelineName();
+
+    String getClientType();
+
+    long getEnqueuedCount();
+
+    double getEnqueueRatePerSecond();
+
+    int getQueueDepth();
+
+    int getQueueDepthHighWaterMark();
+
+    long getBatchCount();
+
+    double getBatchSizeMean();
+
+    long getBatchSizeP50();
+
+    long getBatchSizeP99();
+
+    long getBatchSizeMax();
+
+    double getFlushLatencyMillisMean();
+
+    double getFlushLatencyMillisP50();
+
+    double getFlushLatencyMillisP99();
+
+    double getFlushLatencyMillisMax();
+
+    double getSendLatencyMillisMean();
+
+    double getSendLatencyMillisP50();
+
+    double getSendLatencyMillisP99();
+
+    double getSendLatencyMillisMax();
+
+    long getRetryCount();
+
+    long getDroppedCount();
+
+    long getPersistedCount();
+
+    long getSampledOutCount();
+
+    long getCappedCount();
+
+    long getDuplicateCount();
+
+    long getFailedBatchCount();
+
+    long getBytesSent();
+}
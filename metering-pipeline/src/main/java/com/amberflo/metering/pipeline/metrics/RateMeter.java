@@ -0,0 +1,59 @@
+package com.amberflo.metering.pipeline.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events, and measures their rate over a sliding window of the last {@link #WINDOW_SECONDS} seconds.
+ */
+public class RateMeter {
+    public static final int WINDOW_SECONDS = 10;
+
+    // One extra slot for the current (incomplete) second.
+    private static final int SLOTS = WINDOW_SECONDS + 1;
+
+    private final LongAdder total = new LongAdder();
+    private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray seconds = new AtomicLongArray(SLOTS);
+
+    public void mark(final long events) {
+        total.add(events);
+
+        final long second = currentSecond();
+        final int slot = (int) Math.floorMod(second, (long) SLOTS);
+        final long slotSecond = seconds.get(slot);
+        if (slotSecond != second && seconds.compareAndSet(slot, slotSecond, second)) {
+            // The slot belonged to an older second - recycle it (a few concurrent marks might be lost, which is
+            // fine for a rate estimation).
+            counts.set(slot, 0);
+        }
+        counts.addAndGet(slot, events);
+    }
+
+    /**
+     * @return the total amount of events since this meter was created.
+     */
+    public long getCount() {
+        return total.sum();
+    }
+
+    /**
+     * @return the average amount of events per second over the last {@link #WINDOW_SECONDS} complete seconds.
+     */
+    public double getRatePerSecond() {
+        final long now = currentSecond();
+        long sum = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            final long second = seconds.get(i);
+            if (second < now && now - second <= WINDOW_SECONDS) {
+                sum += counts.get(i);
+            }
+        }
+        return (double) sum / WINDOW_SECONDS;
+    }
+
+    private static long currentSecond() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    }
+}
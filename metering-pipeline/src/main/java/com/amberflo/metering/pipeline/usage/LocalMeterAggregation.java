@@ -0,0 +1,124 @@
+package com.amberflo.metering.pipeline.usage;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of a {@link UsageMirror} query. It has the same structure as the
+ * {@link com.amberflo.metering.usage.model.response.DetailedMeterAggregation} of the usage api: a value for each group
+ * for the entire time range, and (if the query has a time grouping interval) a value for each interval.
+ */
+public class LocalMeterAggregation {
+    private final String meterApiName;
+    private final String aggregation;
+    private final long startTimeInSeconds;
+    private final long endTimeInSeconds;
+    private final List<Group> groups;
+
+    LocalMeterAggregation(final String meterApiName, final String aggregation, final long startTimeInSeconds,
+                          final long endTimeInSeconds, final List<Group> groups) {
+        this.meterApiName = meterApiName;
+        this.aggregation = aggregation;
+        this.startTimeInSeconds = startTimeInSeconds;
+        this.endTimeInSeconds = endTimeInSeconds;
+        this.groups = List.copyOf(groups);
+    }
+
+    public String getMeterApiName() {
+        return meterApiName;
+    }
+
+    public String getAggregation() {
+        return aggregation;
+    }
+
+    /**
+     * @return the start of the time range (extended according to the time grouping interval, like the usage api).
+     */
+    public long getStartTimeInSeconds() {
+        return startTimeInSeconds;
+    }
+
+    public long getEndTimeInSeconds() {
+        return endTimeInSeconds;
+    }
+
+    /**
+     * @return the groups (a single group with no group info if the query has no 'groupBy').
+     */
+    public List<Group> getGroups() {
+        return groups;
+    }
+
+    @Override
+    public String toString() {
+        return "LocalMeterAggregation{" +
+                "meterApiName='" + meterApiName + '\'' +
+                ", aggregation='" + aggregation + '\'' +
+                ", startTimeInSeconds=" + startTimeInSeconds +
+                ", endTimeInSeconds=" + endTimeInSeconds +
+                ", groups=" + groups +
+                '}';
+    }
+
+    public static class Group {
+        private final Map<String, String> groupInfo;
+        private final double value;
+        private final List<TimeValue> values;
+
+        Group(final Map<String, String> groupInfo, final double value, final List<TimeValue> values) {
+            this.groupInfo = Map.copyOf(groupInfo);
+            this.value = value;
+            this.values = List.copyOf(values);
+        }
+
+        /**
+         * @return the values of the 'groupBy' fields of this group.
+         */
+        public Map<String, String> getGroupInfo() {
+            return groupInfo;
+        }
+
+        /**
+         * @return the aggregated value of the entire time range.
+         */
+        public double getValue() {
+            return value;
+        }
+
+        /**
+         * @return the aggregated value of each time interval (ordered by time, only intervals with meters).
+         */
+        public List<TimeValue> getValues() {
+            return values;
+        }
+
+        @Override
+        public String toString() {
+            return "Group{groupInfo=" + groupInfo + ", value=" + value + ", values=" + values + '}';
+        }
+    }
+
+    public static class TimeValue {
+        private final long secondsSinceEpochUtc;
+        private final double value;
+
+        TimeValue(final long secondsSinceEpochUtc, final double value) {
+            this.secondsSinceEpochUtc = secondsSinceEpochUtc;
+            this.value = value;
+        }
+
+        public long getSecondsSinceEpochUtc() {
+            return secondsSinceEpochUtc;
+        }
+
+        public double getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return "TimeValue{secondsSinceEpochUtc=" + secondsSinceEpochUtc + ", value=" + value + '}';
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.amberflo.metering.pipeline.usage;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing table of the aggregated values (sum, count, min and max) of series by their int ids. Holds only
+ * primitive arrays, so recording a value doesn't allocate (unless the table grows).
+ *
+ * Not thread safe.
+ */
+final class SeriesTable {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int EMPTY = -1;
+
+    private int[] ids;
+    private double[] sums;
+    private long[] counts;
+    private double[] mins;
+    private double[] maxs;
+    private int size;
+
+    SeriesTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    void add(final int seriesId, final double value) {
+        if ((size + 1) * 2 > ids.length) {
+            grow();
+        }
+
+        final int index = indexOf(seriesId);
+        if (ids[index] == EMPTY) {
+            ids[index] = seriesId;
+            mins[index] = value;
+            maxs[index] = value;
+            size++;
+        } else {
+            mins[index] = Math.min(mins[index], value);
+            maxs[index] = Math.max(maxs[index], value);
+        }
+        sums[index] += value;
+        counts[index]++;
+    }
+
+    /**
+     * @return the slot of the given series, or -1 if the series has no values in this table.
+     */
+    int find(final int seriesId) {
+        final int index = indexOf(seriesId);
+        return ids[index] == EMPTY ? -1 : index;
+    }
+
+    double sum(final int slot) {
+        return sums[slot];
+    }
+
+    long count(final int slot) {
+        return counts[slot];
+    }
+
+    double min(final int slot) {
+        return mins[slot];
+    }
+
+    double max(final int slot) {
+        return maxs[slot];
+    }
+
+    void clear() {
+        if (size == 0) {
+            return;
+        }
+        Arrays.fill(ids, EMPTY);
+        Arrays.fill(sums, 0);
+        Arrays.fill(counts, 0);
+        size = 0;
+    }
+
+    private int indexOf(final int seriesId) {
+        final int mask = ids.length - 1;
+        // Series ids are sequential, so spread them a bit (Fibonacci hashing).
+        final int hash = seriesId * 0x9E3779B9;
+        int index = (hash ^ (hash >>> 16)) & mask;
+        while (ids[index] != EMPTY && ids[index] != seriesId) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void grow() {
+        final int[] oldIds = ids;
+        final double[] oldSums = sums;
+        final long[] oldCounts = counts;
+        final double[] oldMins = mins;
+        final double[] oldMaxs = maxs;
+
+        allocate(oldIds.length * 2);
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldIds[i] != EMPTY) {
+                final int index = indexOf(oldIds[i]);
+                ids[index] = oldIds[i];
+                sums[index] = oldSums[i];
+                counts[index] = oldCounts[i];
+                mins[index] = oldMins[i];
+                maxs[index] = oldMaxs[i];
+            }
+        }
+    }
+
+    private void allocate(final int capacity) {
+        ids = new int[capacity];
+        Arrays.fill(ids, EMPTY);
+        sums = new double[capacity];
+        counts = new long[capacity];
+        mins = new double[capacity];
+        maxs = new double[capacity];
+    }
+}
@@ -0,0 +1,477 @@
+package com.amberflo.metering.pipeline.usage;
+
+import com.amberflo.metering.pipeline.QueuedMeter;
+import com.amberflo.metering.usage.model.request.MeterAggregationMetadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded in-memory rolling aggregation of the meters recorded by this process (see
+ * {@link com.amberflo.metering.pipeline.MeterPipeline.Builder#setUsageMirror(UsageMirror)}).
+ *
+ * The usage api results lag behind the ingestion, and a remote query is too slow for a rate limit or a quota check
+ * in the hot path of a request. The mirror answers "how much did this customer use in the last hour on this node"
+ * locally, right after the meters were recorded:
+ * <pre>
+ *     final double lastHour = usageMirror.sum("ApiCalls", customerId, System.currentTimeMillis() - 3_600_000);
+ * </pre>
+ *
+ * The sum is NaN if meters of the customer weren't tracked since the given time, as the mirror was full - fall back to
+ * the usage api (or fail closed) in that case, rather than treating the customer as if it used nothing.
+ *
+ * It also answers the same {@link MeterAggregationMetadata} requests as the
+ * {@link com.amberflo.metering.usage.clients.UsageClient} ('groupBy', 'filter', 'take', time grouping intervals,
+ * etc), only for the meters of this process and for the retention period of the mirror.
+ *
+ * The meters are aggregated (sum, count, min and max) per series (a meter name, customer id and dimensions) and per
+ * time bucket. Each bucket keeps its series in a primitive table keyed by a series id, so recording a meter doesn't
+ * allocate once its series exists. The memory is bounded by the amount of buckets (retention / bucket size) and by
+ * the max amount of live series (series with values in a bucket of the retention period). A series whose values all
+ * aged out is dropped when a new bucket starts, and its id is reused. Meters of new series aren't tracked while the
+ * mirror has 'maxSeries' live series.
+ */
+public class UsageMirror {
+    public static final long DEFAULT_BUCKET_SIZE_IN_SEC = 60;
+    public static final long DEFAULT_RETENTION_IN_SEC = TimeUnit.HOURS.toSeconds(2);
+    public static final int DEFAULT_MAX_SERIES = 100_000;
+
+    // The size of the table of customers whose meters weren't tracked (see #overflowBuckets).
+    private static final int OVERFLOW_SLOTS = 4096;
+
+    /**
+     * The name of the customer id field for 'groupBy' and 'filter' (the dimensions are referred by their names).
+     */
+    public static final String CUSTOMER_ID_FIELD = "customerId";
+
+    private final long bucketSizeInMillis;
+    private final int maxSeries;
+    private final Bucket[] buckets;
+    // Meter name -> customer id -> series.
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, List<Series>>> series =
+            new ConcurrentHashMap<>();
+    private final Object seriesLock = new Object();
+    // The amount of live series, the ids of dropped series (for reuse), and the next new id. Guarded by the series lock.
+    private int seriesCount;
+    private int[] freeIds = new int[0];
+    private int freeIdCount;
+    private int nextId;
+    // The bucket in which the series were last checked for expiry.
+    private volatile long sweptBucketNumber = Long.MIN_VALUE;
+    // The last bucket in which a meter of a new series wasn't tracked (as the mirror was full), by the hash of the
+    // meter name and customer id. A hash collision makes a customer look untracked, but never the other way around.
+    private final AtomicLongArray overflowBuckets = new AtomicLongArray(OVERFLOW_SLOTS);
+    private final LongAdder untracked = new LongAdder();
+
+    /**
+     * A mirror with the default settings - 1 minute buckets, 2 hours retention and up to 100K series.
+     */
+    public UsageMirror() {
+        this(DEFAULT_BUCKET_SIZE_IN_SEC, DEFAULT_RETENTION_IN_SEC, DEFAULT_MAX_SERIES);
+    }
+
+    /**
+     * @param bucketSizeInSec the time resolution of the mirror.
+     * @param retentionInSec how far back meters are kept.
+     * @param maxSeries the max amount of distinct meter name, customer id and dimensions combinations.
+     */
+    public UsageMirror(final long bucketSizeInSec, final long retentionInSec, final int maxSeries) {
+        if (bucketSizeInSec <= 0 || retentionInSec < bucketSizeInSec || maxSeries <= 0) {
+            throw new IllegalArgumentException("Invalid usage mirror settings: bucketSizeInSec=" + bucketSizeInSec +
+                    ", retentionInSec=" + retentionInSec + ", maxSeries=" + maxSeries);
+        }
+        this.bucketSizeInMillis = TimeUnit.SECONDS.toMillis(bucketSizeInSec);
+        this.maxSeries = maxSeries;
+
+        // One more bucket for the current (partial) one.
+        final int bucketCount = (int) ((retentionInSec + bucketSizeInSec - 1) / bucketSizeInSec) + 1;
+        this.buckets = new Bucket[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            buckets[i] = new Bucket();
+        }
+        for (int i = 0; i < OVERFLOW_SLOTS; i++) {
+            overflowBuckets.set(i, Long.MIN_VALUE);
+        }
+    }
+
+    /**
+     * Adds a meter to the mirror. Meters older than the retention period (or from the future) aren't tracked.
+     */
+    public void record(final QueuedMeter meter) {
+        final long bucketNumber = Math.floorDiv(meter.getMeterTimeInMillis(), bucketSizeInMillis);
+        final long currentBucketNumber = Math.floorDiv(System.currentTimeMillis(), bucketSizeInMillis);
+        if (bucketNumber <= currentBucketNumber - buckets.length || bucketNumber > currentBucketNumber + 1) {
+            untracked.increment();
+            return;
+        }
+
+        if (currentBucketNumber != sweptBucketNumber) {
+            dropExpiredSeries(currentBucketNumber);
+        }
+
+        while (true) {
+            final Series meterSeries = seriesOf(meter.getMeterName(), meter.getCustomerId(), meter.getDimensions());
+            if (meterSeries == null) {
+                overflowBuckets.accumulateAndGet(overflowSlot(meter.getMeterName(), meter.getCustomerId()),
+                        currentBucketNumber, Math::max);
+                untracked.increment();
+                return;
+            }
+
+            // Written before the evicted flag is read, and read by the sweep after it set the flag - so either the
+            // sweep keeps the series, or this meter looks up its series again (see #dropExpiredSeries). An atomic max,
+            // so concurrent writers can't move it backwards (and get a live series evicted). It is only written when
+            // it grows, so a hot series isn't written by each meter.
+            final AtomicLong lastBucketNumber = meterSeries.lastBucketNumber;
+            long last;
+            while ((last = lastBucketNumber.get()) < bucketNumber &&
+                    !lastBucketNumber.compareAndSet(last, bucketNumber)) {
+                // Another writer moved it - check again.
+            }
+            if (meterSeries.evicted) {
+                continue;
+            }
+            if (!bucketOf(bucketNumber).add(bucketNumber, meterSeries.id, meter.getMeterValue())) {
+                untracked.increment();
+            }
+            return;
+        }
+    }
+
+    /**
+     * The hot path query - the sum of the given meter of a customer since the given time (at the resolution of the
+     * mirror buckets).
+     * @return NaN if meters of the customer weren't tracked since the given time (see {@link #isTracked}).
+     */
+    public double sum(final String meterName, final String customerId, final long fromTimeInMillis) {
+        if (!isTracked(meterName, customerId, fromTimeInMillis)) {
+            return Double.NaN;
+        }
+        final Map<String, List<Series>> meterSeries = series.get(meterName);
+        final List<Series> customerSeries = meterSeries == null ? null : meterSeries.get(customerId);
+        if (customerSeries == null) {
+            return 0;
+        }
+
+        final long fromBucketNumber = Math.max(Math.floorDiv(fromTimeInMillis, bucketSizeInMillis),
+                oldestLiveBucketNumber());
+        double sum = 0;
+        for (final Bucket bucket : buckets) {
+            synchronized (bucket) {
+                if (bucket.bucketNumber < fromBucketNumber) {
+                    continue;
+                }
+                for (final Series seriesOfCustomer : customerSeries) {
+                    final int slot = bucket.table.find(seriesOfCustomer.id);
+                    if (slot >= 0) {
+                        sum += bucket.table.sum(slot);
+                    }
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return false if meters of the given customer weren't tracked since the given time, as the mirror had
+     * 'maxSeries' live series (rarely, also for a customer whose meters were all tracked - but never true for one
+     * whose meters weren't). The local usage of such a customer is unknown.
+     */
+    public boolean isTracked(final String meterName, final String customerId, final long fromTimeInMillis) {
+        final long fromBucketNumber = Math.max(Math.floorDiv(fromTimeInMillis, bucketSizeInMillis),
+                oldestLiveBucketNumber());
+        return overflowBuckets.get(overflowSlot(meterName, customerId)) < fromBucketNumber;
+    }
+
+    /**
+     * Answers a usage api request with the meters of this process.
+     * @throws IllegalArgumentException for a request the mirror doesn't support (an unknown aggregation type, etc).
+     */
+    public LocalMeterAggregation query(final MeterAggregationMetadata request) {
+        final UsageQuery query = UsageQuery.from(request);
+
+        // The series of the request by their group.
+        final Map<Map<String, String>, List<Series>> seriesByGroup = new LinkedHashMap<>();
+        final Map<String, List<Series>> meterSeries = series.getOrDefault(query.meterApiName, new ConcurrentHashMap<>());
+        for (final List<Series> customerSeries : meterSeries.values()) {
+            for (final Series candidate : customerSeries) {
+                if (matches(candidate, query.filter)) {
+                    seriesByGroup.computeIfAbsent(groupInfo(candidate, query.groupBy), group -> new ArrayList<>())
+                            .add(candidate);
+                }
+            }
+        }
+
+        final List<LocalMeterAggregation.Group> groups = new ArrayList<>();
+        for (final Map.Entry<Map<String, String>, List<Series>> group : seriesByGroup.entrySet()) {
+            final Aggregate total = new Aggregate();
+            final TreeMap<Long, Aggregate> intervals = new TreeMap<>();
+            aggregate(query, group.getValue(), total, intervals);
+
+            if (total.count > 0) {
+                final List<LocalMeterAggregation.TimeValue> values = new ArrayList<>();
+                intervals.forEach((time, aggregate) -> values.add(
+                        new LocalMeterAggregation.TimeValue(time, aggregate.value(query.aggregation))));
+                groups.add(new LocalMeterAggregation.Group(group.getKey(), total.value(query.aggregation), values));
+            }
+        }
+
+        if (query.takeLimit != null) {
+            final Comparator<LocalMeterAggregation.Group> byValue =
+                    Comparator.comparingDouble(LocalMeterAggregation.Group::getValue);
+            groups.sort(query.takeAscending ? byValue : byValue.reversed());
+            if (groups.size() > query.takeLimit) {
+                groups.subList(query.takeLimit.intValue(), groups.size()).clear();
+            }
+        }
+
+        return new LocalMeterAggregation(query.meterApiName, query.aggregation.name(), query.startTimeInSeconds,
+                query.endTimeInSeconds, groups);
+    }
+
+    /**
+     * @return the amount of meters which weren't tracked (too many series, or out of the retention period).
+     */
+    public long getUntrackedCount() {
+        return untracked.sum();
+    }
+
+    /**
+     * @return the amount of live series.
+     */
+    public int getSeriesCount() {
+        synchronized (seriesLock) {
+            return seriesCount;
+        }
+    }
+
+    private void aggregate(final UsageQuery query, final List<Series> groupSeries, final Aggregate total,
+                           final Map<Long, Aggregate> intervals) {
+        final long bucketSizeInSec = TimeUnit.MILLISECONDS.toSeconds(bucketSizeInMillis);
+        final long oldestLiveBucketNumber = oldestLiveBucketNumber();
+        for (final Bucket bucket : buckets) {
+            synchronized (bucket) {
+                final long bucketStartInSec = bucket.bucketNumber * bucketSizeInSec;
+                // A bucket which aged out might still hold values of a dropped series whose id was reused.
+                if (bucket.bucketNumber < 0 || bucket.bucketNumber < oldestLiveBucketNumber || bucketStartInSec < query.startTimeInSeconds ||
+                        bucketStartInSec >= query.endTimeInSeconds) {
+                    continue;
+                }
+
+                final Aggregate interval = query.timeGroupingInterval == null ? null : intervals.computeIfAbsent(
+                        UsageQuery.truncate(bucketStartInSec, query.timeGroupingInterval), time -> new Aggregate());
+                for (final Series groupMember : groupSeries) {
+                    final int slot = bucket.table.find(groupMember.id);
+                    if (slot >= 0) {
+                        total.add(bucket.table, slot);
+                        if (interval != null) {
+                            interval.add(bucket.table, slot);
+                        }
+                    }
+                }
+            }
+        }
+        intervals.values().removeIf(interval -> interval.count == 0);
+    }
+
+    private static boolean matches(final Series candidate, final Map<String, Set<String>> filter) {
+        for (final Map.Entry<String, Set<String>> condition : filter.entrySet()) {
+            if (!condition.getValue().contains(fieldValue(candidate, condition.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Map<String, String> groupInfo(final Series member, final List<String> groupBy) {
+        if (groupBy.isEmpty()) {
+            return Map.of();
+        }
+
+        final Map<String, String> groupInfo = new HashMap<>();
+        for (final String field : groupBy) {
+            final String value = fieldValue(member, field);
+            if (value != null) {
+                groupInfo.put(field, value);
+            }
+        }
+        return groupInfo;
+    }
+
+    private static String fieldValue(final Series member, final String field) {
+        return CUSTOMER_ID_FIELD.equals(field) ? member.customerId : member.dimensions.get(field);
+    }
+
+    /**
+     * @return the oldest bucket of the retention period.
+     */
+    private long oldestLiveBucketNumber() {
+        return Math.floorDiv(System.currentTimeMillis(), bucketSizeInMillis) - buckets.length + 1;
+    }
+
+    private static int overflowSlot(final String meterName, final String customerId) {
+        final int hash = (31 * meterName.hashCode() + String.valueOf(customerId).hashCode()) * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (OVERFLOW_SLOTS - 1);
+    }
+
+    private Bucket bucketOf(final long bucketNumber) {
+        return buckets[(int) Math.floorMod(bucketNumber, (long) buckets.length)];
+    }
+
+    /**
+     * @return the series of the given attributes, or null if it's a new series and the mirror is full.
+     */
+    private Series seriesOf(final String meterName, final String customerId, final Map<String, String> dimensions) {
+        final Map<String, List<Series>> meterSeries = series.get(meterName);
+        final List<Series> customerSeries = meterSeries == null ? null : meterSeries.get(customerId);
+        if (customerSeries != null) {
+            for (final Series existing : customerSeries) {
+                if (!existing.evicted && existing.dimensions.equals(dimensions)) {
+                    return existing;
+                }
+            }
+        }
+
+        synchronized (seriesLock) {
+            final List<Series> lockedCustomerSeries = series
+                    .computeIfAbsent(meterName, name -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(customerId, id -> new CopyOnWriteArrayList<>());
+            for (final Series existing : lockedCustomerSeries) {
+                if (existing.dimensions.equals(dimensions)) {
+                    return existing;
+                }
+            }
+
+            if (seriesCount >= maxSeries) {
+                return null;
+            }
+            final Series newSeries =
+                    new Series(freeIdCount > 0 ? freeIds[--freeIdCount] : nextId++, customerId, dimensions);
+            seriesCount++;
+            lockedCustomerSeries.add(newSeries);
+            return newSeries;
+        }
+    }
+
+    /**
+     * Drops the series which have no values in the buckets of the retention period, and frees their ids. Runs once
+     * per bucket (by the first meter which is recorded in it).
+     */
+    private void dropExpiredSeries(final long currentBucketNumber) {
+        synchronized (seriesLock) {
+            if (sweptBucketNumber == currentBucketNumber) {
+                return;
+            }
+            sweptBucketNumber = currentBucketNumber;
+
+            final long oldestLiveBucketNumber = currentBucketNumber - buckets.length + 1;
+            for (final Map<String, List<Series>> meterSeries : series.values()) {
+                for (final List<Series> customerSeries : meterSeries.values()) {
+                    for (final Series candidate : customerSeries) {
+                        if (candidate.lastBucketNumber.get() >= oldestLiveBucketNumber) {
+                            continue;
+                        }
+                        // A meter which is being recorded to the series either sees the flag, or its bucket is seen
+                        // here (see #record).
+                        candidate.evicted = true;
+                        if (candidate.lastBucketNumber.get() >= oldestLiveBucketNumber) {
+                            candidate.evicted = false;
+                            continue;
+                        }
+                        customerSeries.remove(candidate);
+                        freeId(candidate.id);
+                        seriesCount--;
+                    }
+                }
+                meterSeries.values().removeIf(List::isEmpty);
+            }
+            series.values().removeIf(Map::isEmpty);
+        }
+    }
+
+    private void freeId(final int id) {
+        if (freeIdCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, Math.max(16, freeIds.length * 2));
+        }
+        freeIds[freeIdCount++] = id;
+    }
+
+    private static final class Series {
+        private final int id;
+        private final String customerId;
+        private final Map<String, String> dimensions;
+        // The newest bucket the series has values in.
+        private final AtomicLong lastBucketNumber = new AtomicLong(Long.MIN_VALUE);
+        // Set once the series was dropped - its id might already be reused.
+        private volatile boolean evicted;
+
+        private Series(final int id, final String customerId, final Map<String, String> dimensions) {
+            this.id = id;
+            this.customerId = customerId;
+            this.dimensions = dimensions;
+        }
+    }
+
+    /**
+     * The aggregated values of a single time bucket. Guarded by its own monitor.
+     */
+    private static final class Bucket {
+        private long bucketNumber = -1;
+        private final SeriesTable table = new SeriesTable();
+
+        private synchronized boolean add(final long number, final int seriesId, final double value) {
+            if (number != bucketNumber) {
+                if (number < bucketNumber) {
+                    // The slot already holds a newer bucket.
+                    return false;
+                }
+                table.clear();
+                bucketNumber = number;
+            }
+            table.add(seriesId, value);
+            return true;
+        }
+    }
+
+    private static final class Aggregate {
+        private double sum;
+        private long count;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+
+        private void add(final SeriesTable table, final int slot) {
+            sum += table.sum(slot);
+            count += table.count(slot);
+            min = Math.min(min, table.min(slot));
+            max = Math.max(max, table.max(slot));
+        }
+
+        private double value(final UsageQuery.Aggregation aggregation) {
+            switch (aggregation) {
+                case SUM:
+                    return sum;
+                case MIN:
+                    return min;
+                case MAX:
+                    return max;
+                case COUNT:
+                    return count;
+                default:
+                    throw new IllegalArgumentException("Unsupported aggregation: " + aggregation);
+            }
+        }
+    }
+}
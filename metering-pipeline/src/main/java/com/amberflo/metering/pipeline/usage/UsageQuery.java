@@ -0,0 +1,143 @@
+package com.amberflo.metering.pipeline.usage;
+
+import com.amberflo.metering.common.JsonSerializerFactory;
+import com.amberflo.metering.usage.model.request.MeterAggregationMetadata;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link MeterAggregationMetadata} request, as read by the {@link UsageMirror}.
+ *
+ * The request is read through its json form (the one the usage client sends), so the mirror supports exactly what the
+ * usage api gets: the meter, aggregation type, time range, time grouping interval, group by, filter and take.
+ */
+final class UsageQuery {
+    enum Aggregation {
+        SUM, MIN, MAX, COUNT
+    }
+
+    enum Interval {
+        HOUR, DAY, WEEK, MONTH
+    }
+
+    final String meterApiName;
+    final Aggregation aggregation;
+    final Interval timeGroupingInterval;
+    final long startTimeInSeconds;
+    final long endTimeInSeconds;
+    final List<String> groupBy;
+    final Map<String, Set<String>> filter;
+    final Long takeLimit;
+    final boolean takeAscending;
+
+    private UsageQuery(final JsonObject request) {
+        this.meterApiName = requiredString(request, "meterApiName");
+        this.aggregation = Aggregation.valueOf(requiredString(request, "aggregation").toUpperCase(Locale.ROOT));
+        this.timeGroupingInterval = has(request, "timeGroupingInterval") ?
+                Interval.valueOf(request.get("timeGroupingInterval").getAsString().toUpperCase(Locale.ROOT)) : null;
+
+        if (!has(request, "timeRange")) {
+            throw new IllegalArgumentException("timeRange is required");
+        }
+        final JsonObject timeRange = request.getAsJsonObject("timeRange");
+        // Like the usage api, the time range is extended according to the time grouping interval (or hours).
+        final Interval rangeInterval = timeGroupingInterval == null ? Interval.HOUR : timeGroupingInterval;
+        this.startTimeInSeconds = truncate(timeRange.get("startTimeInSeconds").getAsLong(), rangeInterval);
+        final long end = has(timeRange, "endTimeInSeconds") ? timeRange.get("endTimeInSeconds").getAsLong() :
+                Instant.now().getEpochSecond();
+        final long truncatedEnd = truncate(end, rangeInterval);
+        this.endTimeInSeconds = truncatedEnd == end ? end : next(truncatedEnd, rangeInterval);
+
+        this.groupBy = new ArrayList<>();
+        if (has(request, "groupBy")) {
+            for (final JsonElement field : request.getAsJsonArray("groupBy")) {
+                groupBy.add(field.getAsString());
+            }
+        }
+
+        this.filter = new HashMap<>();
+        if (has(request, "filter")) {
+            for (final Map.Entry<String, JsonElement> entry : request.getAsJsonObject("filter").entrySet()) {
+                final Set<String> values = new HashSet<>();
+                for (final JsonElement value : entry.getValue().getAsJsonArray()) {
+                    values.add(value.getAsString());
+                }
+                filter.put(entry.getKey(), values);
+            }
+        }
+
+        if (has(request, "take")) {
+            final JsonObject take = request.getAsJsonObject("take");
+            this.takeLimit = take.get("limit").getAsLong();
+            this.takeAscending = has(take, "isAscending") && take.get("isAscending").getAsBoolean();
+        } else {
+            this.takeLimit = null;
+            this.takeAscending = false;
+        }
+    }
+
+    static UsageQuery from(final MeterAggregationMetadata request) {
+        return new UsageQuery(JsonSerializerFactory.getGson().toJsonTree(request).getAsJsonObject());
+    }
+
+    /**
+     * @return the start of the interval (in UTC) the given time is in.
+     */
+    static long truncate(final long epochSeconds, final Interval interval) {
+        final ZonedDateTime time = Instant.ofEpochSecond(epochSeconds).atZone(ZoneOffset.UTC);
+        switch (interval) {
+            case HOUR:
+                return time.truncatedTo(ChronoUnit.HOURS).toEpochSecond();
+            case DAY:
+                return time.truncatedTo(ChronoUnit.DAYS).toEpochSecond();
+            case WEEK:
+                return time.truncatedTo(ChronoUnit.DAYS)
+                        .with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)).toEpochSecond();
+            case MONTH:
+                return time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1).toEpochSecond();
+            default:
+                throw new IllegalArgumentException("Unsupported interval: " + interval);
+        }
+    }
+
+    private static long next(final long intervalStart, final Interval interval) {
+        final ZonedDateTime time = Instant.ofEpochSecond(intervalStart).atZone(ZoneOffset.UTC);
+        switch (interval) {
+            case HOUR:
+                return time.plusHours(1).toEpochSecond();
+            case DAY:
+                return time.plusDays(1).toEpochSecond();
+            case WEEK:
+                return time.plusWeeks(1).toEpochSecond();
+            case MONTH:
+                return time.plusMonths(1).toEpochSecond();
+            default:
+                throw new IllegalArgumentException("Unsupported interval: " + interval);
+        }
+    }
+
+    private static boolean has(final JsonObject object, final String field) {
+        return object.has(field) && !object.get(field).isJsonNull();
+    }
+
+    private static String requiredString(final JsonObject object, final String field) {
+        if (!has(object, field)) {
+            throw new IllegalArgumentException(field + " is required");
+        }
+        return object.get(field).getAsString();
+    }
+}
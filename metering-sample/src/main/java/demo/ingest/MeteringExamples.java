@@ -224,6 +224,9 @@ public class MeteringExamples {
 
     /**
      * You can have a similar decorator/interceptor method to this one in your code.
+     *
+     * If you meter every RPC, see {@link demo.pipeline.ServiceCallTimingExample} for a lower overhead version of this
+     * decorator.
      */
     private static void serviceMeteringMultiCalls(final Runnable runnable) {
         final LocalDateTime startTime = LocalDateTime.now();
@@ -0,0 +1,113 @@
+package demo.interceptors;
+
+import com.amberflo.metering.interceptors.MeteringHttpFilter;
+import com.amberflo.metering.interceptors.RequestMetering;
+import com.amberflo.metering.pipeline.MeterPipeline;
+import com.amberflo.metering.pipeline.ServiceCallMetering;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Measures the latency overhead of the {@link MeteringHttpFilter}.
+ *
+ * The benchmark starts a local {@link HttpServer} with the same handler mapped twice: once without the metering
+ * interceptor ('/plain') and once with it ('/metered'). It then sends the same requests (with a customer id header)
+ * to both paths in an interleaved order, and prints the p50/p99 latency of each and the difference between them.
+ *
+ * The pipeline uses a no-op sender, so the benchmark measures the cost of the instrumentation on the request path
+ * (timing, building and queueing the meters) and not the cost of sending the meters to Amberflo, which happens on the
+ * pipeline's sender thread anyway.
+ */
+public class InterceptorOverheadBenchmark {
+    private final static int WARMUP_REQUESTS = 5_000;
+    private final static int MEASURED_REQUESTS = 20_000;
+    private final static String CUSTOMER_ID = "YWJjNDU2";
+    private final static byte[] RESPONSE_BODY = "{\"status\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(final String[] args) throws Exception {
+        // Without it the server's small writes are delayed by the TCP stack (~40ms per request), which would hide
+        // everything else.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        final HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        final HttpHandler handler = exchange -> {
+            exchange.sendResponseHeaders(200, RESPONSE_BODY.length);
+            try (final OutputStream body = exchange.getResponseBody()) {
+                body.write(RESPONSE_BODY);
+            }
+        };
+
+        try (final MeterPipeline pipeline = MeterPipeline.builder(batch -> { }).build()) {
+            final RequestMetering requestMetering = new RequestMetering(new ServiceCallMetering(pipeline));
+            server.createContext("/plain", handler);
+            server.createContext("/metered", handler).getFilters().add(new MeteringHttpFilter(requestMetering));
+            server.start();
+
+            final String baseUrl = "http://localhost:" + server.getAddress().getPort();
+            final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            final HttpRequest plain = request(baseUrl + "/plain");
+            final HttpRequest metered = request(baseUrl + "/metered");
+
+            for (int i = 0; i < WARMUP_REQUESTS; i++) {
+                send(client, plain);
+                send(client, metered);
+            }
+
+            final long[] plainLatencies = new long[MEASURED_REQUESTS];
+            final long[] meteredLatencies = new long[MEASURED_REQUESTS];
+            for (int i = 0; i < MEASURED_REQUESTS; i++) {
+                plainLatencies[i] = send(client, plain);
+                meteredLatencies[i] = send(client, metered);
+            }
+
+            report("off", plainLatencies);
+            report("on", meteredLatencies);
+            System.out.printf("overhead: p50 %+.1f us, p99 %+.1f us%n",
+                    micros(percentile(meteredLatencies, 0.5) - percentile(plainLatencies, 0.5)),
+                    micros(percentile(meteredLatencies, 0.99) - percentile(plainLatencies, 0.99)));
+            System.out.println("metered calls: " + pipeline.getMetrics().getEnqueuedCount());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static HttpRequest request(final String url) {
+        return HttpRequest.newBuilder(URI.create(url)).header(RequestMetering.DEFAULT_CUSTOMER_ID_HEADER, CUSTOMER_ID)
+                .GET().build();
+    }
+
+    /**
+     * @return the latency of the request in nanos.
+     */
+    private static long send(final HttpClient client, final HttpRequest request) throws Exception {
+        final long startTime = System.nanoTime();
+        client.send(request, HttpResponse.BodyHandlers.discarding());
+        return System.nanoTime() - startTime;
+    }
+
+    private static void report(final String interceptor, final long[] latencies) {
+        Arrays.sort(latencies);
+        System.out.printf("interceptor %s: p50 %.1f us, p99 %.1f us%n", interceptor,
+                micros(percentile(latencies, 0.5)), micros(percentile(latencies, 0.99)));
+    }
+
+    /**
+     * @param sortedLatencies a sorted array.
+     */
+    private static long percentile(final long[] sortedLatencies, final double percentile) {
+        return sortedLatencies[(int) Math.ceil(percentile * sortedLatencies.length) - 1];
+    }
+
+    private static double micros(final long nanos) {
+        return nanos / 1000d;
+    }
+}
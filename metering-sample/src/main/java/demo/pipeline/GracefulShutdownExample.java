@@ -0,0 +1,133 @@
+package demo.pipeline;
+
+import com.amberflo.metering.pipeline.DrainReport;
+import com.amberflo.metering.pipeline.IngestApiSender;
+import com.amberflo.metering.pipeline.MeterPipeline;
+import com.amberflo.metering.pipeline.QueuedMeterBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Shows how a pipeline is closed within a deadline - like a pod which gets a SIGTERM and has 30 seconds before it is
+ * killed.
+ *
+ * The example queues meters while a local ingest stand-in is slow, and closes the pipeline with a short deadline. The
+ * pending batches are sent in parallel, and the meters which weren't sent by the deadline are persisted to a spill
+ * file. A second pipeline (the 'next start' of the app) is built with the same spill file, queues the persisted meters
+ * again and sends them.
+ *
+ * The stand-in commits each meter once per 'uniqueId' (like the ingest api), so a batch which was interrupted by the
+ * deadline after the stand-in received it isn't counted twice when it is sent again.
+ */
+public class GracefulShutdownExample {
+    private final static String METER_NAME = "ApiCalls";
+    private final static int METERS = 20_000;
+    private final static int BATCH_SIZE = 100;
+    private final static int DRAIN_PARALLELISM = 8;
+    private final static Duration DEADLINE = Duration.ofSeconds(2);
+    private final static long SLOW_RESPONSE_MILLIS = 400;
+
+    private final static Set<String> committed = ConcurrentHashMap.newKeySet();
+    private final static AtomicLong receivedRecords = new AtomicLong();
+    private static volatile boolean slow = true;
+
+    public static void main(final String[] args) throws Exception {
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        final ExecutorService serverThreads = Executors.newFixedThreadPool(DRAIN_PARALLELISM);
+        final HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/ingest", GracefulShutdownExample::ingest);
+        server.setExecutor(serverThreads);
+        server.start();
+        final String ingestUrl = "http://localhost:" + server.getAddress().getPort() + "/ingest";
+
+        final Path spillFile = Files.createTempDirectory("meters").resolve("unsent-meters.ndjson");
+        try {
+            final MeterPipeline pipeline = pipeline(ingestUrl, spillFile);
+            for (int i = 0; i < METERS; i++) {
+                pipeline.meter(QueuedMeterBuilder
+                        .createInstance(METER_NAME, System.currentTimeMillis(), "customer-" + i % 50)
+                        .build(pipeline.getInterner()));
+            }
+
+            // A SIGTERM would call the same method from the shutdown hook of the pipeline.
+            final DrainReport shutdown = pipeline.close(DEADLINE);
+            System.out.println("shutdown within " + DEADLINE.toMillis() + " ms: " + shutdown);
+            if (Files.exists(spillFile)) {
+                try (final Stream<String> lines = Files.lines(spillFile)) {
+                    System.out.println("spill file: " + spillFile + " (" + lines.count() + " meters)");
+                }
+            }
+
+            // The next start - the end-point is fast again.
+            slow = false;
+            final MeterPipeline restarted = pipeline(ingestUrl, spillFile);
+            System.out.println("spill file exists after the restart: " + Files.exists(spillFile));
+            restarted.close();
+        } finally {
+            server.stop(0);
+            serverThreads.shutdown();
+        }
+
+        System.out.println("records received: " + receivedRecords.get());
+        System.out.println("records committed: " + committed.size() + " of " + METERS);
+        if (committed.size() != METERS) {
+            System.out.println("FAILED - meters were lost");
+            System.exit(1);
+        }
+        System.out.println("OK - no meter was lost");
+    }
+
+    private static MeterPipeline pipeline(final String ingestUrl, final Path spillFile) {
+        return MeterPipeline.builder(new IngestApiSender(ingestUrl, "shutdown-example", 3, 10))
+                .setName("shutdown-example")
+                .setMaxAsyncQueueSize(METERS)
+                .setMaxBatchSize(BATCH_SIZE)
+                .setDrainParallelism(DRAIN_PARALLELISM)
+                .setSpillFile(spillFile)
+                // Removed once the pipeline is closed explicitly.
+                .setShutdownHook(Duration.ofSeconds(25))
+                .build();
+    }
+
+    /**
+     * The stand-in ingest api: commits each record once per unique id (slowly, until the 'restart').
+     */
+    private static void ingest(final HttpExchange exchange) throws IOException {
+        try (final InputStreamReader body = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            for (final JsonElement element : JsonParser.parseReader(body).getAsJsonArray()) {
+                receivedRecords.incrementAndGet();
+                committed.add(element.getAsJsonObject().get("uniqueId").getAsString());
+            }
+        }
+
+        if (slow) {
+            try {
+                Thread.sleep(SLOW_RESPONSE_MILLIS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        exchange.sendResponseHeaders(200, -1);
+        try (final OutputStream ignored = exchange.getResponseBody()) {
+            // No body.
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package demo.pipeline;
+
+import com.amberflo.metering.pipeline.DedupFilter;
+import com.amberflo.metering.pipeline.IngestApiSender;
+import com.amberflo.metering.pipeline.MeterPipeline;
+import com.amberflo.metering.pipeline.MeterSender;
+import com.amberflo.metering.pipeline.QueuedMeter;
+import com.amberflo.metering.pipeline.QueuedMeterBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A stress run for the idempotency keys and the {@link DedupFilter}.
+ *
+ * The run starts a local stand-in for the ingest api, which accepts every record it gets (it doesn't deduplicate
+ * anything). After accepting a batch, the stand-in fails some of the requests on purpose - either with a 500 or by
+ * responding only after the client timed out. The client can't tell these batches were accepted, so it retries them.
+ * On top of that, part of the meters are replayed with their original keys: first through the same pipeline (where
+ * the dedup filter should drop them) and then through a new pipeline (like after a restart).
+ *
+ * Two checks are made on the records the stand-in accepted:
+ * 1. The sum of all of them is the sum of the original meters, plus the batches which failed after they were accepted
+ *    (and were retried), plus the replays after the restart - and nothing else. Any other duplicate (for example a
+ *    replay which the dedup filter didn't drop) or any lost meter breaks it.
+ * 2. Once the records are deduplicated by their 'uniqueId' (like the real ingest api does), their sum is exactly the
+ *    sum of the original meters - which only holds if a retried or replayed meter keeps its key.
+ *
+ * The run is made twice: with the {@link IngestApiSender}, which keeps the keys of a retried batch and should pass
+ * both checks, and with a sender which generates new keys for each attempt (like the metering client senders), which
+ * should fail the second one. It exits with a non zero status if either run doesn't end as expected.
+ */
+public class IdempotencyStressExample {
+    private final static String METER_NAME = "ApiCalls";
+    private final static String CUSTOMER_ID = "YWJjNDU2";
+    private final static int METERS = 50_000;
+    private final static int NEW_KEYS_METERS = 5_000;
+    private final static int REPLAY_EVERY = 10;
+    private final static int BATCH_SIZE = 100;
+    // Each Nth request fails after it was accepted.
+    private final static int FAIL_WITH_500_EVERY = 7;
+    private final static int FAIL_WITH_TIMEOUT_EVERY = 23;
+    private final static int HTTP_TIMEOUT_IN_SEC = 1;
+    private final static int HTTP_RETRIES_COUNT = 5;
+
+    public static void main(final String[] args) throws Exception {
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        System.out.println("Keys kept across retries (IngestApiSender):");
+        final boolean stableKeysPassed = run(METERS, ingestUrl ->
+                new IngestApiSender(ingestUrl, "stress-test", HTTP_RETRIES_COUNT, HTTP_TIMEOUT_IN_SEC));
+
+        System.out.println();
+        System.out.println("New keys for each attempt:");
+        final boolean newKeysPassed = run(NEW_KEYS_METERS, NewKeysPerAttemptSender::new);
+
+        if (!stableKeysPassed || newKeysPassed) {
+            System.out.println("FAILED - " + (stableKeysPassed ?
+                    "the checks didn't catch the meters which were double counted with new keys" :
+                    "meters were lost or double counted"));
+            System.exit(1);
+        }
+        System.out.println("OK - no meter was lost or double counted, and the checks caught the run with new keys");
+    }
+
+    /**
+     * @return true if both checks passed.
+     */
+    private static boolean run(final int meters, final Function<String, MeterSender> senderFactory)
+            throws Exception {
+        final IngestStandIn ingestApi = new IngestStandIn();
+        double expectedSum = 0;
+        double replayedAfterRestartSum = 0;
+        final List<QueuedMeter> replayed = new ArrayList<>();
+        final long duplicates;
+        try {
+            final String ingestUrl = ingestApi.start();
+            final DedupFilter dedupFilter = new DedupFilter();
+            try (final MeterPipeline pipeline = pipeline(senderFactory.apply(ingestUrl), dedupFilter, meters)) {
+                for (int i = 0; i < meters; i++) {
+                    final QueuedMeter meter = QueuedMeterBuilder
+                            .createInstance(METER_NAME, System.currentTimeMillis(), CUSTOMER_ID)
+                            .setMeterValue(i % 10 + 1)
+                            .build();
+                    expectedSum += meter.getMeterValue();
+                    if (i % REPLAY_EVERY == 0) {
+                        replayed.add(meter);
+                    }
+                    meter(pipeline, meter);
+                }
+            }
+
+            // Replaying meters with the same dedup filter - it should drop all of them.
+            try (final MeterPipeline pipeline = pipeline(senderFactory.apply(ingestUrl), dedupFilter, meters)) {
+                for (final QueuedMeter meter : replayed) {
+                    meter(pipeline, copy(meter));
+                }
+                pipeline.close();
+                duplicates = pipeline.getMetrics().getDuplicateCount();
+            }
+
+            // Replaying meters after a 'restart' (a new dedup filter) - they reach the ingest api again.
+            try (final MeterPipeline pipeline = pipeline(senderFactory.apply(ingestUrl), new DedupFilter(), meters)) {
+                for (final QueuedMeter meter : replayed) {
+                    replayedAfterRestartSum += meter.getMeterValue();
+                    meter(pipeline, copy(meter));
+                }
+            }
+        } finally {
+            ingestApi.stop();
+        }
+
+        final double expectedAcceptedSum = expectedSum + ingestApi.failedAfterAcceptSum + replayedAfterRestartSum;
+        final Map<String, Double> byKey = new HashMap<>();
+        for (final AcceptedRecord record : ingestApi.accepted) {
+            byKey.putIfAbsent(record.uniqueId, record.meterValue);
+        }
+        double dedupedSum = 0;
+        for (final double value : byKey.values()) {
+            dedupedSum += value;
+        }
+
+        System.out.println("  requests: " + ingestApi.requests.get() + " (" + ingestApi.injectedFailures.get() +
+                " failed after accepting their records)");
+        System.out.println("  replays dropped by the dedup filter: " + duplicates + " of " + replayed.size());
+        System.out.printf("  accepted sum: %.0f, expected: %.0f (meters %.0f + retried after a failure %.0f" +
+                        " + replayed after the restart %.0f)%n", ingestApi.acceptedSum, expectedAcceptedSum,
+                expectedSum, ingestApi.failedAfterAcceptSum, replayedAfterRestartSum);
+        System.out.printf("  sum by unique id: %.0f, expected: %.0f%n", dedupedSum, expectedSum);
+
+        final boolean acceptedSumPassed = ingestApi.acceptedSum == expectedAcceptedSum;
+        final boolean dedupedSumPassed = dedupedSum == expectedSum;
+        System.out.println("  accepted sum check: " + (acceptedSumPassed ? "passed" : "FAILED") +
+                ", sum by unique id check: " + (dedupedSumPassed ? "passed" : "FAILED"));
+        return acceptedSumPassed && dedupedSumPassed;
+    }
+
+    private static MeterPipeline pipeline(final MeterSender sender, final DedupFilter dedupFilter,
+                                          final int meters) {
+        return MeterPipeline.builder(sender)
+                .setDedupFilter(dedupFilter)
+                .setMaxAsyncQueueSize(meters)
+                .setMaxBatchSize(BATCH_SIZE)
+                .build();
+    }
+
+    private static void meter(final MeterPipeline pipeline, final QueuedMeter meter) {
+        if (!pipeline.meter(meter)) {
+            throw new IllegalStateException("The pipeline queue is full");
+        }
+    }
+
+    private static QueuedMeter copy(final QueuedMeter meter) {
+        return copy(meter, meter.getUniqueId());
+    }
+
+    private static QueuedMeter copy(final QueuedMeter meter, final String uniqueId) {
+        return QueuedMeterBuilder
+                .createInstance(meter.getMeterName(), meter.getMeterTimeInMillis(), meter.getCustomerId())
+                .setMeterValue(meter.getMeterValue())
+                .setUniqueId(uniqueId)
+                .build();
+    }
+
+    /**
+     * Retries a batch with new keys for each attempt, like the metering client senders (which generate a new id for
+     * each meter message) - so the ingest api can't tell a retry from a new meter.
+     */
+    private static final class NewKeysPerAttemptSender implements MeterSender {
+        private final IngestApiSender sender;
+
+        private NewKeysPerAttemptSender(final String ingestUrl) {
+            this.sender = new IngestApiSender(ingestUrl, "stress-test", 0, HTTP_TIMEOUT_IN_SEC);
+        }
+
+        @Override
+        public void send(final List<QueuedMeter> batch) throws Exception {
+            for (int attempt = 0; ; attempt++) {
+                final List<QueuedMeter> rekeyed = new ArrayList<>(batch.size());
+                for (final QueuedMeter meter : batch) {
+                    rekeyed.add(copy(meter, UUID.randomUUID().toString()));
+                }
+                try {
+                    sender.send(rekeyed);
+                    return;
+                } catch (final IOException e) {
+                    if (attempt >= HTTP_RETRIES_COUNT) {
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class AcceptedRecord {
+        private final String uniqueId;
+        private final double meterValue;
+
+        private AcceptedRecord(final String uniqueId, final double meterValue) {
+            this.uniqueId = uniqueId;
+            this.meterValue = meterValue;
+        }
+    }
+
+    /**
+     * The stand-in ingest api: accepts every record, and then fails some of the requests. Handles a request at a time.
+     */
+    private static final class IngestStandIn {
+        private final List<AcceptedRecord> accepted = new ArrayList<>();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong injectedFailures = new AtomicLong();
+        private double acceptedSum;
+        private double failedAfterAcceptSum;
+        private HttpServer server;
+
+        private String start() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.createContext("/ingest", this::ingest);
+            server.start();
+            return "http://localhost:" + server.getAddress().getPort() + "/ingest";
+        }
+
+        private void stop() {
+            if (server != null) {
+                // Waits for the request which is being handled (if any).
+                server.stop(HTTP_TIMEOUT_IN_SEC * 2);
+            }
+        }
+
+        private void ingest(final HttpExchange exchange) throws IOException {
+            final long request = requests.incrementAndGet();
+            final JsonArray records;
+            try (final InputStreamReader body =
+                         new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+                records = JsonParser.parseReader(body).getAsJsonArray();
+            }
+
+            double batchSum = 0;
+            synchronized (this) {
+                for (final JsonElement element : records) {
+                    final JsonObject record = element.getAsJsonObject();
+                    final double meterValue = record.get("meterValue").getAsDouble();
+                    accepted.add(new AcceptedRecord(record.get("uniqueId").getAsString(), meterValue));
+                    batchSum += meterValue;
+                }
+                acceptedSum += batchSum;
+            }
+
+            int status = 200;
+            if (request % FAIL_WITH_500_EVERY == 0 || request % FAIL_WITH_TIMEOUT_EVERY == 0) {
+                injectedFailures.incrementAndGet();
+                synchronized (this) {
+                    failedAfterAcceptSum += batchSum;
+                }
+                if (request % FAIL_WITH_500_EVERY == 0) {
+                    status = 500;
+                } else {
+                    try {
+                        Thread.sleep(HTTP_TIMEOUT_IN_SEC * 1500L);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+
+            exchange.sendResponseHeaders(status, -1);
+            try (final OutputStream ignored = exchange.getResponseBody()) {
+                // No body.
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package demo.pipeline;
+
+import com.amberflo.metering.pipeline.IngestApiSender;
+import com.amberflo.metering.pipeline.MeterPipeline;
+import com.amberflo.metering.pipeline.MeterPipelines;
+import com.amberflo.metering.pipeline.QueuedMeterBuilder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This example shows how to meter on behalf of several Amberflo accounts in the same JVM, with a
+ * {@link MeterPipelines} registry.
+ *
+ * Each account gets a named pipeline of its own (with its own queue and metrics), and all of the pipelines share the
+ * sender threads and the HTTP connection pool of the registry. The pipelines can be used concurrently, and there is no
+ * global context to swap.
+ *
+ * The app keys are taken from the "AMBERFLO_APP_KEYS" system property, for example:
+ * -DAMBERFLO_APP_KEYS=tenant-a=key-a,tenant-b=key-b
+ */
+public class MultiTenantExample {
+    private final static String METER_NAME = "ApiCalls";
+    private final static String CUSTOMER_ID = "YWJjNDU2";
+    private final static int METERS_PER_TENANT = 10_000;
+    private final static int SENDER_THREADS = 2;
+
+    public static void main(final String[] args) throws InterruptedException {
+        final Map<String, String> appKeys = appKeys(System.getProperty("AMBERFLO_APP_KEYS", ""));
+        if (appKeys.isEmpty()) {
+            System.out.println("Set the AMBERFLO_APP_KEYS system property (tenant=appKey,...)");
+            return;
+        }
+
+        try (final MeterPipelines pipelines = MeterPipelines.builder()
+                .setIngestUrl(System.getProperty("AMBERFLO_INGEST_URL", IngestApiSender.DEFAULT_INGEST_URL))
+                // Far less threads than tenants - each thread sends a single batch at a time.
+                .setSenderThreads(SENDER_THREADS)
+                .setPipelineDefaults(settings -> settings
+                        .setMaxAsyncQueueSize(METERS_PER_TENANT)
+                        .setMaxBatchSize(100))
+                .build()) {
+
+            for (final Map.Entry<String, String> tenant : appKeys.entrySet()) {
+                pipelines.registerAppKey(tenant.getKey(), tenant.getValue());
+            }
+
+            // Meter for all of the tenants at the same time.
+            final List<Thread> threads = new ArrayList<>();
+            for (final String tenant : pipelines.names()) {
+                final MeterPipeline pipeline = pipelines.get(tenant);
+                final Thread thread = new Thread(() -> {
+                    for (int i = 0; i < METERS_PER_TENANT; i++) {
+                        pipeline.meter(QueuedMeterBuilder
+                                .createInstance(METER_NAME, System.currentTimeMillis(), CUSTOMER_ID)
+                                .build(pipeline.getInterner()));
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+
+            // Each pipeline has its own metrics, which are also published over JMX by the name of the pipeline.
+            for (final String tenant : pipelines.names()) {
+                while (pipelines.get(tenant).getQueueDepth() > 0) {
+                    Thread.sleep(100);
+                }
+                System.out.println(tenant + " metrics: " + pipelines.get(tenant).getMetrics().snapshot());
+            }
+        }
+    }
+
+    private static Map<String, String> appKeys(final String property) {
+        final Map<String, String> appKeys = new LinkedHashMap<>();
+        for (final String entry : property.split(",")) {
+            final int separator = entry.indexOf('=');
+            if (separator > 0) {
+                appKeys.put(entry.substring(0, separator).trim(), entry.substring(separator + 1).trim());
+            }
+        }
+        return appKeys;
+    }
+}
@@ -0,0 +1,80 @@
+package demo.pipeline;
+
+import com.amberflo.metering.ingest.MeteringContext;
+import com.amberflo.metering.ingest.meter_message.Domain;
+import com.amberflo.metering.ingest.meter_message.ThreadContext;
+import com.amberflo.metering.pipeline.CardinalityGuard;
+import com.amberflo.metering.pipeline.MeterInterner;
+import com.amberflo.metering.pipeline.MeterPipeline;
+import com.amberflo.metering.pipeline.MeteringClientSender;
+import com.amberflo.metering.pipeline.QueuedMeterBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This example shows how to queue meters with the {@link MeterPipeline}.
+ *
+ * The pipeline is useful when you record bursts of near identical meters (same meter name, customer, service and
+ * dimensions). Instead of having each queued meter hold its own copy of the strings and its own dimensions map, the
+ * pipeline interns them with a {@link MeterInterner}, so all of the queued meters share the same instances.
+ *
+ * The pipeline also tracks the cardinality of each dimension with a {@link CardinalityGuard}, so a dimension with an
+ * unbounded amount of values (such as a request id) is caught before it makes the usage queries huge.
+ *
+ * As the pipeline has its own queue and sender thread, you should set "isAsync" to false in your metering config.
+ */
+public class PipelineExample {
+    private final static String METER_NAME = "TrancsactionCount";
+    private final static String CUSTOMER_ID = "YWJjNDU2";
+    private final static String SERVICE_CALL = "process-request";
+    private final static int METERS_IN_BURST = 20000;
+
+    public static void main(final String[] args) {
+        System.setProperty(MeteringContext.METERING_DOMAIN, Domain.Dev.name());
+
+        final MeterInterner interner = new MeterInterner(MeterInterner.DEFAULT_MAX_ENTRIES);
+        try (final MeterPipeline pipeline = MeterPipeline.builder(MeteringClientSender.fromContext())
+                .setInterner(interner)
+                .setCardinalityGuard(CardinalityGuard.fromConfig())
+                .setMaxAsyncQueueSize(METERS_IN_BURST)
+                .setMaxBatchSize(100)
+                .build()) {
+
+            for (int i = 0; i < METERS_IN_BURST; i++) {
+                // A new map per meter - just like a request handler would create.
+                final Map<String, String> sessionInfo = new HashMap<>();
+                sessionInfo.put("country", "US");
+                sessionInfo.put("state", "WA");
+
+                pipeline.meter(QueuedMeterBuilder
+                        .createInstance(METER_NAME, System.currentTimeMillis(), CUSTOMER_ID)
+                        .setMeterValue(i)
+                        .setServiceCall(SERVICE_CALL)
+                        .setDimensionsMap(sessionInfo)
+                        .build(interner));
+            }
+
+            // All of the meters above share a single copy of the strings and the dimensions map, so each of them
+            // retains only its own fields (the value and time).
+            System.out.println("Queue depth: " + pipeline.getQueueDepth());
+            System.out.println("Bytes retained per queued meter: " + pipeline.getRetainedBytesPerMeter());
+
+            // The estimated amount of distinct values of each dimension (by meter name).
+            System.out.println("Dimension cardinality: " + pipeline.getCardinalityGuard().getEstimates());
+
+            // The pipeline metrics are also published over JMX (see PipelineMetrics for more info).
+            System.out.println("Pipeline metrics: " + pipeline.getMetrics().snapshot());
+        }
+
+        // You can also share a canonical dimensions map with the ThreadContext.
+        final Map<String, String> sessionInfo = new HashMap<>();
+        sessionInfo.put("session", "789");
+        try (final ThreadContext context = new ThreadContext()) {
+            context.setCustomerInfo(CUSTOMER_ID)
+                    .properties().setServiceCall(SERVICE_CALL).setDimensionsMap(interner.dimensions(sessionInfo));
+        }
+
+        MeteringContext.flushAndClose();
+    }
+}
@@ -0,0 +1,70 @@
+package demo.pipeline;
+
+import com.amberflo.metering.ingest.MeteringContext;
+import com.amberflo.metering.ingest.meter_message.Domain;
+import com.amberflo.metering.pipeline.CallTimer;
+import com.amberflo.metering.pipeline.MeterPipeline;
+import com.amberflo.metering.pipeline.MeterPriority;
+import com.amberflo.metering.pipeline.MeterSampler;
+import com.amberflo.metering.pipeline.MeterSenders;
+import com.amberflo.metering.pipeline.ServiceCallMetering;
+
+/**
+ * This example shows how to meter service calls with the {@link ServiceCallMetering}.
+ *
+ * It's the pipeline version of the 'serviceMeteringMultiCalls' decorator in {@link demo.ingest.MeteringExamples}.
+ * Instead of creating time objects and calling 3 templates per call, the call is timed with a nano-time clock, and
+ * the 'Call' and 'Call.processingTime' meters are queued together as a single entry.
+ *
+ * The pipeline also samples the 'Call.processingTime' meters according to the "sampling" section of the
+ * 'dev-metering.json' config (see {@link MeterSampler}). The 'Call' meters are on the unsampled list, so all of them
+ * are sent. The "priorities" section of the config puts the 'Call' meters in the billing lane of the pipeline, so
+ * they are sent first and are the last to be dropped if the pipeline is overloaded (see {@link MeterPriority}).
+ *
+ * The sender is chosen by the "clientType" of the config (see {@link MeterSenders}) - set it to 'FileSinkClient' to
+ * capture the meters of a load test in local NDJSON files instead of printing each of them.
+ */
+public class ServiceCallTimingExample {
+    private final static String CUSTOMER_ID = "YWJjNDU2";
+    private final static String SERVICE_CALL = "process-request";
+    private final static String SERVICE_NAME = "magic-service";
+
+    public static void main(final String[] args) throws Exception {
+        System.setProperty(MeteringContext.METERING_DOMAIN, Domain.Dev.name());
+
+        try (final MeterPipeline pipeline = MeterPipeline.builder(MeterSenders.fromConfig())
+                .setSampler(MeterSampler.fromConfig())
+                .setPriorities(MeterPriority.fromConfig())
+                .build()) {
+            final ServiceCallMetering serviceCallMetering = new ServiceCallMetering(pipeline, SERVICE_NAME);
+
+            // Option 1: wrap a runnable or a callable. Exceptions are metered as a call error and rethrown.
+            serviceCallMetering.time(CUSTOMER_ID, SERVICE_CALL, ServiceCallTimingExample::processRequest);
+            final String result = serviceCallMetering.time(CUSTOMER_ID, SERVICE_CALL, () -> "done");
+            System.out.println(result);
+
+            try {
+                serviceCallMetering.time(CUSTOMER_ID, SERVICE_CALL, () -> {
+                    throw new IllegalStateException("failed to process the request");
+                });
+            } catch (final IllegalStateException e) {
+                System.out.println("The call was metered as an error: " + e.getMessage());
+            }
+
+            // Option 2: a timer. The meters are queued when the timer is closed.
+            try (final CallTimer timer = serviceCallMetering.start(CUSTOMER_ID, SERVICE_CALL)) {
+                processRequest();
+            }
+        }
+
+        MeteringContext.flushAndClose();
+    }
+
+    private static void processRequest() {
+        try {
+            Thread.sleep(300);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package demo.pipeline;
+
+import com.amberflo.metering.pipeline.HttpTransport;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compares the latency of calls over a new connection (a new transport per call, like a client which is created per
+ * request) with calls over a warm connection of a shared {@link HttpTransport}.
+ *
+ * By default the calls go to a local plain http stand-in, so the difference is only the TCP connection setup. Pass an
+ * https url (for example https://app.amberflo.io/ingest with -DAMBERFLO_APP_KEY=...) as the first argument in order to
+ * include the TLS handshake and the real network round trips.
+ */
+public class TransportLatencyBenchmark {
+    private final static int WARMUP_CALLS = 20;
+    private final static int MEASURED_CALLS = 200;
+    private final static byte[] RESPONSE_BODY = "{\"status\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(final String[] args) throws Exception {
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        HttpServer server = null;
+        final String url;
+        if (args.length > 0) {
+            url = args[0];
+        } else {
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.createContext("/ingest", exchange -> {
+                exchange.getRequestBody().readAllBytes();
+                exchange.sendResponseHeaders(200, RESPONSE_BODY.length);
+                try (final OutputStream body = exchange.getResponseBody()) {
+                    body.write(RESPONSE_BODY);
+                }
+            });
+            server.start();
+            url = "http://localhost:" + server.getAddress().getPort() + "/ingest";
+        }
+
+        try {
+            final HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url))
+                    .header("Content-Type", "application/json")
+                    .header("X-API-Key", System.getProperty("AMBERFLO_APP_KEY", ""))
+                    .POST(HttpRequest.BodyPublishers.ofString("[]"));
+
+            final long[] cold = new long[MEASURED_CALLS];
+            final long[] warm = new long[MEASURED_CALLS];
+            final HttpTransport shared = HttpTransport.builder().build();
+            for (int i = 0; i < WARMUP_CALLS; i++) {
+                send(HttpTransport.builder().build(), request);
+                send(shared, request);
+            }
+
+            // Interleaved, so both modes see the same network conditions.
+            for (int i = 0; i < MEASURED_CALLS; i++) {
+                cold[i] = send(HttpTransport.builder().build(), request);
+                warm[i] = send(shared, request);
+            }
+
+            report("cold (a new connection per call)", cold);
+            report("warm (a shared transport)", warm);
+            System.out.printf("saved per call: p50 %.2f ms%n",
+                    millis(percentile(cold, 0.5) - percentile(warm, 0.5)));
+        } finally {
+            if (server != null) {
+                server.stop(0);
+            }
+        }
+    }
+
+    /**
+     * @return the latency of the call in nanos (without creating the transport).
+     */
+    private static long send(final HttpTransport transport, final HttpRequest.Builder request) throws Exception {
+        final long startTime = System.nanoTime();
+        transport.send(request);
+        return System.nanoTime() - startTime;
+    }
+
+    private static void report(final String mode, final long[] latencies) {
+        Arrays.sort(latencies);
+        System.out.printf("%s: p50 %.2f ms, p99 %.2f ms, max %.2f ms%n", mode,
+                millis(percentile(latencies, 0.5)), millis(percentile(latencies, 0.99)),
+                millis(latencies[latencies.length - 1]));
+    }
+
+    /**
+     * @param sortedLatencies a sorted array.
+     */
+    private static long percentile(final long[] sortedLatencies, final double percentile) {
+        return sortedLatencies[(int) Math.ceil(percentile * sortedLatencies.length) - 1];
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / 1_000_000d;
+    }
+}
@@ -0,0 +1,71 @@
+package demo.usage;
+
+import com.amberflo.metering.ingest.MeteringContext;
+import com.amberflo.metering.ingest.meter_message.Domain;
+import com.amberflo.metering.pipeline.MeterPipeline;
+import com.amberflo.metering.pipeline.MeteringClientSender;
+import com.amberflo.metering.pipeline.usage.LocalMeterAggregation;
+import com.amberflo.metering.pipeline.usage.UsageMirror;
+import com.amberflo.metering.usage.model.request.AggregationInterval;
+import com.amberflo.metering.usage.model.request.AggregationType;
+import com.amberflo.metering.usage.model.request.MeterAggregationMetadata;
+import com.amberflo.metering.usage.model.request.MeterAggregationMetadataBuilder;
+import com.amberflo.metering.usage.model.request.TimeRange;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This example shows how to query the usage of the meters recorded by this process with a {@link UsageMirror}.
+ *
+ * The usage api results lag behind the ingestion, and a remote query per request is too slow for rate limit or quota
+ * checks. The mirror keeps a rolling aggregation of the meters queued by the pipeline, and answers the same
+ * requests as the {@link com.amberflo.metering.usage.clients.UsageClient} (for the meters of this process only).
+ */
+public class LocalUsageExample {
+    private final static String METER_NAME = "ApiCalls";
+    private final static String CUSTOMER_ID = "YWJjNDU2";
+    private final static double HOURLY_QUOTA = 100;
+
+    public static void main(final String[] args) {
+        System.setProperty(MeteringContext.METERING_DOMAIN, Domain.Dev.name());
+
+        final UsageMirror usageMirror = new UsageMirror();
+        try (final MeterPipeline pipeline = MeterPipeline.builder(MeteringClientSender.fromContext())
+                .setUsageMirror(usageMirror)
+                .build()) {
+
+            for (int i = 0; i < 120; i++) {
+                // Step 1 - a quota check in the hot path (no remote call).
+                final long hourAgo = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+                final double used = usageMirror.sum(METER_NAME, CUSTOMER_ID, hourAgo);
+                // NaN if the mirror was full and didn't track the customer - fail closed.
+                if (Double.isNaN(used) || used >= HOURLY_QUOTA) {
+                    System.out.println("Request " + i + " was throttled - the customer used its hourly quota");
+                    continue;
+                }
+
+                // Step 2 - meter the request. The mirror is updated right away.
+                pipeline.meter(CUSTOMER_ID, METER_NAME, 1, System.currentTimeMillis(),
+                        Map.of("region", i % 2 == 0 ? "us-west-2" : "us-east-1"));
+            }
+
+            // Step 3 - the same request model as the usage api.
+            final TimeRange lastHours = TimeRange.builder()
+                    .startTimeInSeconds(OffsetDateTime.now().minusHours(1).toEpochSecond())
+                    .build();
+            final MeterAggregationMetadata request =
+                    MeterAggregationMetadataBuilder.instance(METER_NAME, AggregationType.SUM, lastHours)
+                            .setTimeGroupingInterval(AggregationInterval.HOUR)
+                            .setGroupBy(List.of(UsageMirror.CUSTOMER_ID_FIELD, "region"))
+                            .setFilter(Map.of(UsageMirror.CUSTOMER_ID_FIELD, List.of(CUSTOMER_ID)))
+                            .build();
+            final LocalMeterAggregation result = usageMirror.query(request);
+            System.out.println(result);
+        }
+
+        MeteringContext.flushAndClose();
+    }
+}